@@ -0,0 +1,70 @@
+package no.ntnu.coap.gateway.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Realistic message parts shared by the benchmarks: header sets as sent by
+ * browsers and upstream HTTP servers, and sensor-like JSON payloads.
+ */
+public final class Fixtures {
+
+    /**
+     * Headers of a typical browser GET towards the gateway.
+     */
+    public static Header[] browserRequestHeaders() {
+        return new Header[]{
+                new BasicHeader("Host", "gateway.example.org:8080"),
+                new BasicHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:56.0) Gecko/20100101 Firefox/56.0"),
+                new BasicHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8"),
+                new BasicHeader("Accept-Language", "en-US,en;q=0.5"),
+                new BasicHeader("Accept-Encoding", "gzip, deflate"),
+                new BasicHeader("Cache-Control", "max-age=0"),
+                new BasicHeader("Cookie", "session=8f14e45fceea167a5a36dedd4bea2543; _ga=GA1.2.1204935211.1506000000; theme=dark"),
+                new BasicHeader("Connection", "keep-alive"),
+                new BasicHeader("Upgrade-Insecure-Requests", "1")
+        };
+    }
+
+    /**
+     * Headers of a typical response from an upstream HTTP server.
+     */
+    public static Header[] upstreamResponseHeaders() {
+        return new Header[]{
+                new BasicHeader("Date", "Thu, 21 Sep 2017 12:37:53 GMT"),
+                new BasicHeader("Server", "nginx/1.12.1"),
+                new BasicHeader("Content-Type", "application/json; charset=UTF-8"),
+                new BasicHeader("Cache-Control", "max-age=30, must-revalidate"),
+                new BasicHeader("Etag", "5a1f3c09"),
+                new BasicHeader("Set-Cookie", "session=8f14e45fceea167a5a36dedd4bea2543; Path=/; HttpOnly"),
+                new BasicHeader("Vary", "Accept-Encoding"),
+                new BasicHeader("Connection", "keep-alive")
+        };
+    }
+
+    /**
+     * Builds a JSON document of roughly the requested size, made of sensor
+     * readings.
+     */
+    public static byte[] jsonPayload(int size) {
+        StringBuilder builder = new StringBuilder(size + 64);
+        builder.append('[');
+        int i = 0;
+        while (builder.length() < size - 1) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"id\":").append(i)
+                    .append(",\"t\":1506000").append(i % 1000)
+                    .append(",\"temp\":2").append(i % 10).append(".5}");
+            i++;
+        }
+        builder.append(']');
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Fixtures() {
+    }
+}
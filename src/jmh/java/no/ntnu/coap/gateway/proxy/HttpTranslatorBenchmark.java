@@ -0,0 +1,124 @@
+package no.ntnu.coap.gateway.proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the static translations every proxied request goes through. Run
+ * with the GC profiler (the default of the jmh task) to get the allocation
+ * per operation next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpTranslatorBenchmark {
+
+    private static final String PROXY_RESOURCE = "proxy";
+    private static final String PROXY_PATH = "/proxy/coap://[fd00::12]:5683/sensors/temperature?unit=celsius";
+    private static final String HTTP_UPSTREAM = "http://backend.example.org/api/v1/readings";
+
+    /**
+     * Payload size in bytes of the messages carrying an entity.
+     */
+    @Param({"32", "512", "4096"})
+    public int payloadSize;
+
+    private Header[] browserHeaders;
+    private HttpRequest httpGet;
+    private HttpRequest httpPost;
+    private HttpResponse upstreamHttpResponse;
+    private HttpResponse outgoingHttpResponse;
+    private Request coapGet;
+    private Request coapPost;
+    private Response coapResponse;
+
+    @Setup
+    public void setup() {
+        byte[] payload = Fixtures.jsonPayload(payloadSize);
+        browserHeaders = Fixtures.browserRequestHeaders();
+
+        httpGet = new BasicHttpRequest("GET", PROXY_PATH, HttpVersion.HTTP_1_1);
+        httpGet.setHeaders(browserHeaders);
+
+        // byte array entities are repeatable, so they survive being consumed
+        // by the translator on every invocation
+        BasicHttpEntityEnclosingRequest post = new BasicHttpEntityEnclosingRequest("POST", PROXY_PATH, HttpVersion.HTTP_1_1);
+        post.setHeaders(browserHeaders);
+        post.setHeader("Content-Type", "application/json; charset=UTF-8");
+        post.setEntity(new ByteArrayEntity(payload, ContentType.APPLICATION_JSON));
+        httpPost = post;
+
+        upstreamHttpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        upstreamHttpResponse.setHeaders(Fixtures.upstreamResponseHeaders());
+        upstreamHttpResponse.setEntity(new ByteArrayEntity(payload, ContentType.APPLICATION_JSON));
+
+        outgoingHttpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+
+        coapGet = new Request(Code.GET);
+        coapGet.getOptions().setProxyUri(HTTP_UPSTREAM);
+        coapGet.getOptions().setAccept(CustomMediaTypeRegistry.APPLICATION_JSON);
+
+        coapPost = new Request(Code.POST);
+        coapPost.getOptions().setProxyUri(HTTP_UPSTREAM);
+        coapPost.getOptions().setContentFormat(CustomMediaTypeRegistry.APPLICATION_JSON);
+        coapPost.getOptions().addETag(new byte[]{0x5a, 0x1f, 0x3c, 0x09});
+        coapPost.getOptions().addOption(new Option(CustomOptionNumberRegistry.COOKIE, "session=8f14e45fceea167a5a36dedd4bea2543"));
+        coapPost.setPayload(payload);
+
+        coapResponse = new Response(ResponseCode.CONTENT);
+        coapResponse.getOptions().setContentFormat(CustomMediaTypeRegistry.APPLICATION_JSON);
+        coapResponse.getOptions().setMaxAge(30);
+        coapResponse.getOptions().addETag(new byte[]{0x5a, 0x1f, 0x3c, 0x09});
+        coapResponse.setPayload(payload);
+    }
+
+    @Benchmark
+    public Request getCoapRequestGet() throws TranslationException {
+        return HttpTranslator.getCoapRequest(httpGet, PROXY_RESOURCE, true);
+    }
+
+    @Benchmark
+    public Request getCoapRequestPost() throws TranslationException {
+        return HttpTranslator.getCoapRequest(httpPost, PROXY_RESOURCE, true);
+    }
+
+    @Benchmark
+    public Response getCoapResponse() throws TranslationException {
+        return HttpTranslator.getCoapResponse(upstreamHttpResponse, coapGet);
+    }
+
+    @Benchmark
+    public HttpRequest getHttpRequest() throws TranslationException {
+        return HttpTranslator.getHttpRequest(coapPost);
+    }
+
+    @Benchmark
+    public HttpResponse getHttpResponse() throws TranslationException {
+        HttpTranslator.getHttpResponse(httpGet, coapResponse, outgoingHttpResponse);
+        return outgoingHttpResponse;
+    }
+
+    @Benchmark
+    public List<Option> getCoapOptions() {
+        return HttpTranslator.getCoapOptions(browserHeaders);
+    }
+}
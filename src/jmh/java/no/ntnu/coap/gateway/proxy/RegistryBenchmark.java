@@ -0,0 +1,66 @@
+package no.ntnu.coap.gateway.proxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the media type and option number registries, which are consulted
+ * for every header and option of every translated message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RegistryBenchmark {
+
+    /**
+     * The media types of a browser Accept header, plus one unknown type that
+     * has to walk the whole registry.
+     */
+    private static final String[] MEDIA_TYPES = {
+            "text/html", "application/xhtml+xml", "application/xml", "application/json", "image/webp"
+    };
+
+    private static final String[] WILDCARDS = {"*/*", "text/*", "application/*", "image/*"};
+
+    /**
+     * The option numbers of a typical proxied request and response.
+     */
+    private static final int[] OPTION_NUMBERS = {
+            CustomOptionNumberRegistry.IF_MATCH,
+            CustomOptionNumberRegistry.ETAG,
+            CustomOptionNumberRegistry.CONTENT_FORMAT,
+            CustomOptionNumberRegistry.MAX_AGE,
+            CustomOptionNumberRegistry.ACCEPT,
+            CustomOptionNumberRegistry.COOKIE,
+            CustomOptionNumberRegistry.SET_COOKIE,
+            CustomOptionNumberRegistry.PROXY_URI,
+            CustomOptionNumberRegistry.BLOCK2,
+            CustomOptionNumberRegistry.SIZE2
+    };
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        for (String mediaType : MEDIA_TYPES) {
+            blackhole.consume(CustomMediaTypeRegistry.parse(mediaType));
+        }
+    }
+
+    @Benchmark
+    public void parseWildcard(Blackhole blackhole) {
+        for (String wildcard : WILDCARDS) {
+            blackhole.consume(CustomMediaTypeRegistry.parseWildcard(wildcard));
+        }
+    }
+
+    @Benchmark
+    public void getFormatByNr(Blackhole blackhole) {
+        for (int optionNumber : OPTION_NUMBERS) {
+            blackhole.consume(CustomOptionNumberRegistry.getFormatByNr(optionNumber));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package no.ntnu.coap.gateway.proxy;
+
+import java.util.Random;
+
+/**
+ * Draws integers in [0, items) following a Zipfian distribution, so that a
+ * few keys are very popular and most of them are rarely requested. Uses the
+ * rejection-free method by Gray et al., "Quickly Generating Billion-Record
+ * Synthetic Databases" (SIGMOD 1994).
+ */
+public final class ZipfianGenerator {
+    private final int items;
+    private final double theta;
+    private final double alpha;
+    private final double zetan;
+    private final double eta;
+    private final Random random;
+
+    public ZipfianGenerator(int items, double theta, long seed) {
+        if (items < 2) {
+            throw new IllegalArgumentException("items < 2");
+        }
+        this.items = items;
+        this.theta = theta;
+        this.random = new Random(seed);
+
+        double zeta2 = zeta(2, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.zetan = zeta(items, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+    }
+
+    public int next() {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return (int) (items * Math.pow(eta * u - eta + 1, alpha));
+    }
+
+    /**
+     * Fills an array with successive draws, so that benchmarks do not pay for
+     * the generator inside the measured loop.
+     */
+    public int[] sequence(int length) {
+        int[] sequence = new int[length];
+        for (int i = 0; i < length; i++) {
+            sequence[i] = next();
+        }
+        return sequence;
+    }
+
+    private static double zeta(int n, double theta) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
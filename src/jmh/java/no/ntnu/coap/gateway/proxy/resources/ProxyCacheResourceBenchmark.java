@@ -0,0 +1,188 @@
+package no.ntnu.coap.gateway.proxy.resources;
+
+import no.ntnu.coap.gateway.proxy.CustomMediaTypeRegistry;
+import no.ntnu.coap.gateway.proxy.Fixtures;
+import no.ntnu.coap.gateway.proxy.ProxyProperties;
+import no.ntnu.coap.gateway.proxy.ZipfianGenerator;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the hit, miss, insert and invalidation paths of the proxy cache from
+ * many threads at once. Keys are proxy URIs drawn from a Zipfian
+ * distribution, requested either with an Accept option or without one (which
+ * makes the cache probe every registered media type).
+ * <p>
+ * The jmh task runs it at the default thread count; {@link #main(String[])}
+ * sweeps it from 1 to 64 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyCacheResourceBenchmark {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    private static final int SEQUENCE_LENGTH = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class SharedCache {
+
+        /**
+         * Number of distinct proxy URIs requested.
+         */
+        @Param({"10000"})
+        public int keys;
+
+        /**
+         * Skew of the key popularity, 0.99 being the usual YCSB setting.
+         */
+        @Param({"0.99"})
+        public double theta;
+
+        /**
+         * Value of HTTP_CACHE_SIZE for the run; every parameter set runs in
+         * its own fork, so the cache picks it up when it is first loaded.
+         */
+        @Param({"32", "4096"})
+        public int cacheSize;
+
+        @Param({"true", "false"})
+        public boolean withAccept;
+
+        /**
+         * Value of CACHE_ENGINE for the run, picked up like cacheSize.
+         */
+        @Param({"lru", "tinylfu"})
+        public String engine;
+
+        @Param({"512"})
+        public int payloadSize;
+
+        ProxyCacheResource cache;
+        Request[] requests;
+        Response[] responses;
+
+        @Setup
+        public void setup() {
+            NetworkConfig.getStandard().setInt(NetworkConfig.Keys.HTTP_CACHE_SIZE, cacheSize);
+            ProxyProperties.std.set("CACHE_ENGINE", engine);
+            cache = new ProxyCacheResource(true);
+
+            byte[] payload = Fixtures.jsonPayload(payloadSize);
+            requests = new Request[keys];
+            responses = new Response[keys];
+            for (int i = 0; i < keys; i++) {
+                requests[i] = createRequest(i, withAccept);
+                responses[i] = createResponse(payload);
+            }
+
+            // warm the cache with the most popular keys
+            for (int i = 0; i < Math.min(keys, cacheSize); i++) {
+                insert(i);
+            }
+        }
+
+        void insert(int key) {
+            Request request = requests[key];
+            Response response = responses[key];
+            response.getOptions().setMaxAge(60);
+            response.setTimestamp(System.nanoTime());
+            request.setResponse(response);
+            cache.cacheResponse(request, response);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class KeySequence {
+        private int[] sequence;
+        private int cursor;
+
+        @Setup
+        public void setup(SharedCache shared) {
+            sequence = new ZipfianGenerator(shared.keys, shared.theta, ThreadLocalRandom.current().nextLong())
+                    .sequence(SEQUENCE_LENGTH);
+        }
+
+        int next() {
+            int key = sequence[cursor];
+            cursor = (cursor + 1) & (SEQUENCE_LENGTH - 1);
+            return key;
+        }
+    }
+
+    @Benchmark
+    public Response getResponse(SharedCache shared, KeySequence keys) {
+        return shared.cache.getResponse(shared.requests[keys.next()]);
+    }
+
+    @Benchmark
+    public void cacheResponse(SharedCache shared, KeySequence keys) {
+        shared.insert(keys.next());
+    }
+
+    @Benchmark
+    public void invalidateRequest(SharedCache shared, KeySequence keys) {
+        shared.cache.invalidateRequest(shared.requests[keys.next()]);
+    }
+
+    /**
+     * The proxy's actual access pattern: look up, and insert on a miss.
+     */
+    @Benchmark
+    public Response getOrInsert(SharedCache shared, KeySequence keys) {
+        int key = keys.next();
+        Response response = shared.cache.getResponse(shared.requests[key]);
+        if (response == null) {
+            shared.insert(key);
+        }
+        return response;
+    }
+
+    private static Request createRequest(int key, boolean withAccept) {
+        Request request = new Request(Code.GET);
+        request.getOptions().setProxyUri("coap://[fd00::" + Integer.toHexString(key % 256) + "]:5683/sensors/" + key + "/temperature");
+        if (withAccept) {
+            request.getOptions().setAccept(CustomMediaTypeRegistry.APPLICATION_JSON);
+        }
+        return request;
+    }
+
+    private static Response createResponse(byte[] payload) {
+        Response response = new Response(ResponseCode.CONTENT);
+        response.getOptions().setContentFormat(CustomMediaTypeRegistry.APPLICATION_JSON);
+        response.getOptions().setMaxAge(60);
+        response.setPayload(payload);
+        return response;
+    }
+
+    /**
+     * Runs the suite once per thread count in {@link #THREAD_COUNTS}. Any
+     * further JMH command line options are passed on.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (int threads : THREAD_COUNTS) {
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(ProxyCacheResourceBenchmark.class.getName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build()).run();
+        }
+    }
+}
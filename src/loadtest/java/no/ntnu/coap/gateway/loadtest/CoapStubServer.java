@@ -0,0 +1,90 @@
+package no.ntnu.coap.gateway.loadtest;
+
+import no.ntnu.coap.gateway.proxy.CustomMediaTypeRegistry;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local CoAP server standing in for the constrained devices. It answers GET
+ * on /sensors/&lt;anything&gt; with a payload of a fixed size after a fixed
+ * delay, and a fixed Max-Age.
+ */
+final class CoapStubServer {
+    private final CoapServer server = new CoapServer();
+    private final CoapEndpoint endpoint;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    CoapStubServer(long delayMillis, int payloadSize, long maxAge) {
+        endpoint = new CoapEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.addEndpoint(endpoint);
+        server.add(new SensorResource(delayMillis, payloadSize, maxAge));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+        server.destroy();
+    }
+
+    int getPort() {
+        return endpoint.getAddress().getPort();
+    }
+
+    /**
+     * Serves every path below /sensors with the same representation.
+     */
+    private final class SensorResource extends CoapResource {
+        private final long delayMillis;
+        private final byte[] payload;
+        private final long maxAge;
+
+        SensorResource(long delayMillis, int payloadSize, long maxAge) {
+            super("sensors");
+            this.delayMillis = delayMillis;
+            this.maxAge = maxAge;
+
+            payload = new byte[payloadSize];
+            Arrays.fill(payload, (byte) 'x');
+        }
+
+        @Override
+        public Resource getChild(String name) {
+            return this;
+        }
+
+        @Override
+        public void handleGET(final CoapExchange exchange) {
+            if (delayMillis <= 0) {
+                exchange.respond(createResponse());
+                return;
+            }
+
+            // answer with a separate response, as a sleepy device would
+            exchange.accept();
+            scheduler.schedule(() -> exchange.respond(createResponse()), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private Response createResponse() {
+            Response response = new Response(ResponseCode.CONTENT);
+            response.setPayload(payload);
+            response.getOptions().setContentFormat(CustomMediaTypeRegistry.TEXT_PLAIN);
+            response.getOptions().setMaxAge(maxAge);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package no.ntnu.coap.gateway.loadtest;
+
+import no.ntnu.coap.gateway.proxy.DirectProxyCoapResolver;
+import no.ntnu.coap.gateway.proxy.http.ProxyHttpServer;
+import no.ntnu.coap.gateway.proxy.resources.ProxyCoapClientResource;
+import org.apache.commons.cli.*;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Self-contained load test of the HTTP to CoAP path. Starts a local CoAP stub
+ * and the HTTP gateway on ephemeral loopback ports, then sends GET requests to
+ * /proxy/coap://... at a fixed rate regardless of how fast responses come back
+ * (open loop). Latencies are measured from the time each request was due, so
+ * a stalled gateway shows up in the percentiles instead of slowing the load
+ * down.
+ * <p>
+ * Run with: gradle loadTest -PloadTest.args="--rate 2000 --duration 60"
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        final CommandLine cli;
+        try {
+            cli = new DefaultParser().parse(getCliOptions(), args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("loadTest", getCliOptions());
+            return;
+        }
+        if (cli.hasOption("help")) {
+            new HelpFormatter().printHelp("loadTest", getCliOptions());
+            return;
+        }
+
+        final int rate = Integer.parseInt(cli.getOptionValue("rate", "1000"));
+        final int duration = Integer.parseInt(cli.getOptionValue("duration", "30"));
+        final int warmup = Integer.parseInt(cli.getOptionValue("warmup", "5"));
+        final int resources = Integer.parseInt(cli.getOptionValue("resources", "100"));
+        final int connections = Integer.parseInt(cli.getOptionValue("connections", "64"));
+        final int timeout = Integer.parseInt(cli.getOptionValue("timeout", "10000"));
+        final long delay = Long.parseLong(cli.getOptionValue("delay", "0"));
+        final int payload = Integer.parseInt(cli.getOptionValue("payload", "256"));
+        final long maxAge = Long.parseLong(cli.getOptionValue("maxAge", "60"));
+
+        if (!cli.hasOption("verbose")) {
+            // the gateway logs every request at INFO
+            Logger root = Logger.getLogger("");
+            root.setLevel(Level.WARNING);
+            for (Handler handler : root.getHandlers()) {
+                handler.setLevel(Level.WARNING);
+            }
+        }
+
+        final CoapStubServer coapServer = new CoapStubServer(delay, payload, maxAge);
+        coapServer.start();
+
+        final ProxyHttpServer httpServer = new ProxyHttpServer(0);
+        final ProxyCoapClientResource coap2coap = new ProxyCoapClientResource("coap2coap");
+        httpServer.setProxyCoapResolver(new DirectProxyCoapResolver(coap2coap));
+        httpServer.getCacheResource().setForwardingResource(coap2coap);
+        httpServer.acceptConnections(true);
+
+        final int coapPort = coapServer.getPort();
+        final int httpPort = httpServer.getPort();
+        System.out.printf("CoAP stub on port %d (delay %d ms, payload %d bytes, max-age %d s)%n", coapPort, delay, payload, maxAge);
+        System.out.printf("HTTP gateway on port %d%n", httpPort);
+        System.out.printf("Sending %d req/s over %d resources for %d s (+%d s warm-up)%n", rate, resources, duration, warmup);
+
+        final String[] uris = new String[resources];
+        for (int i = 0; i < resources; i++) {
+            uris[i] = "/proxy/coap://127.0.0.1:" + coapPort + "/sensors/" + i;
+        }
+
+        final Result result = run(new HttpHost(InetAddress.getLoopbackAddress(), httpPort), uris, rate,
+                warmup, duration, connections, timeout);
+        result.print(System.out);
+
+        coapServer.stop();
+        System.exit(0);
+    }
+
+    private static Result run(HttpHost target, String[] uris, int rate, int warmup, int duration,
+                              int connections, int timeout) throws IOException, InterruptedException {
+        PoolingNHttpClientConnectionManager connectionManager =
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        connectionManager.setMaxTotal(connections);
+        connectionManager.setDefaultMaxPerRoute(connections);
+
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .setConnectionRequestTimeout(timeout)
+                        .build())
+                .build();
+        client.start();
+
+        final Result result = new Result();
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+
+        long intended = start;
+        for (long i = 0; intended < end; i++, intended = start + i * intervalNanos) {
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(intended - now);
+            }
+
+            final long scheduledAt = intended;
+            final boolean measured = scheduledAt >= measureFrom;
+            if (measured) {
+                result.sent.incrementAndGet();
+            }
+
+            BasicHttpRequest request = new BasicHttpRequest("GET", uris[(int) (i % uris.length)]);
+            client.execute(target, request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    long latency = System.nanoTime() - scheduledAt;
+                    try {
+                        EntityUtils.consume(response.getEntity());
+                    } catch (IOException e) {
+                        // the response is complete, only the connection suffers
+                    }
+                    if (measured) {
+                        result.record(latency, response.getStatusLine().getStatusCode());
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (measured) {
+                        result.failed.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (measured) {
+                        result.failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        // give the outstanding requests the chance to complete
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (result.outstanding() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        result.elapsedNanos = end - measureFrom;
+
+        client.close();
+        return result;
+    }
+
+    private static Options getCliOptions() {
+        final Options options = new Options();
+        options.addOption(numeric("rate", "Requests per second to send (default 1000)"));
+        options.addOption(numeric("duration", "Measured seconds (default 30)"));
+        options.addOption(numeric("warmup", "Seconds of load before measuring (default 5)"));
+        options.addOption(numeric("resources", "Distinct CoAP resources requested round-robin (default 100)"));
+        options.addOption(numeric("connections", "Maximum HTTP connections to the gateway (default 64)"));
+        options.addOption(numeric("timeout", "HTTP timeout in milliseconds (default 10000)"));
+        options.addOption(numeric("delay", "Delay of the CoAP stub responses in milliseconds (default 0)"));
+        options.addOption(numeric("payload", "Size of the CoAP stub payload in bytes (default 256)"));
+        options.addOption(numeric("maxAge", "Max-Age of the CoAP stub responses in seconds, 0 disables caching (default 60)"));
+        options.addOption(Option.builder("verbose").longOpt("verbose").desc("Keep the gateway's INFO logging").build());
+        options.addOption(Option.builder("help").longOpt("help").desc("Print this message").build());
+        return options;
+    }
+
+    private static Option numeric(String name, String description) {
+        return Option.builder(name)
+                .hasArg()
+                .longOpt(name)
+                .desc(description)
+                .type(Integer.class)
+                .build();
+    }
+
+    /**
+     * Outcome of a run, updated concurrently by the client callbacks.
+     */
+    private static final class Result {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong success = new AtomicLong();
+        private final AtomicLong clientErrors = new AtomicLong();
+        private final AtomicLong serverErrors = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private long elapsedNanos;
+
+        void record(long latencyNanos, int status) {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+            if (status >= 500) {
+                serverErrors.incrementAndGet();
+            } else if (status >= 400) {
+                clientErrors.incrementAndGet();
+            } else {
+                success.incrementAndGet();
+            }
+        }
+
+        long outstanding() {
+            return sent.get() - success.get() - clientErrors.get() - serverErrors.get() - failed.get();
+        }
+
+        void print(java.io.PrintStream out) {
+            long completed = success.get() + clientErrors.get() + serverErrors.get();
+            double seconds = elapsedNanos / 1e9;
+
+            out.println();
+            out.printf("Requests:   %d sent, %d completed, %d outstanding%n", sent.get(), completed, outstanding());
+            out.printf("Errors:     %d 4.xx, %d 5.xx, %d failed/timed out%n", clientErrors.get(), serverErrors.get(), failed.get());
+            out.printf("Throughput: %.1f req/s completed, %.1f req/s successful%n", completed / seconds, success.get() / seconds);
+            out.printf("Latency:    p50 %s, p90 %s, p99 %s, p99.9 %s, max %s%n",
+                    format(latencies.getValueAtQuantile(0.5)),
+                    format(latencies.getValueAtQuantile(0.9)),
+                    format(latencies.getValueAtQuantile(0.99)),
+                    format(latencies.getValueAtQuantile(0.999)),
+                    format(latencies.getMax()));
+        }
+
+        private static String format(long micros) {
+            return micros < 1000 ? micros + " us" : String.format("%.2f ms", micros / 1000.0);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package no.ntnu.coap.gateway;
 
+import no.ntnu.coap.gateway.proxy.resources.ProxyCacheResource;
 import no.ntnu.coap.gateway.proxy.resources.ProxyCoapClientResource;
+import no.ntnu.coap.gateway.proxy.resources.StatsResource;
 import org.apache.commons.cli.*;
 import org.eclipse.californium.core.CoapServer;
 import no.ntnu.coap.gateway.proxy.DirectProxyCoapResolver;
+import no.ntnu.coap.gateway.proxy.HttpTranslator;
 import no.ntnu.coap.gateway.proxy.http.ProxyHttpServer;
 import no.ntnu.coap.gateway.proxy.resources.ForwardingResource;
 import no.ntnu.coap.gateway.proxy.resources.ProxyHttpClientResource;
@@ -30,6 +33,9 @@ public class App {
             return;
         }
 
+        // both modes translate with the mappings, reload them when edited
+        HttpTranslator.watchMappings();
+
         final ProxyCoapClientResource coap2coap = new ProxyCoapClientResource("coap2coap");
 
         if (mode.equals("http")) {
@@ -37,16 +43,26 @@ public class App {
 
             final ProxyHttpServer httpServer = new ProxyHttpServer(httpPort);
             httpServer.setProxyCoapResolver(new DirectProxyCoapResolver(coap2coap));
+            httpServer.getCacheResource().setForwardingResource(coap2coap);
             httpServer.acceptConnections(false);
         } else if (mode.equals("coap")) {
             System.out.println("Starting CoAP gateway on port " + coapPort);
 
             final ForwardingResource coap2http = new ProxyHttpClientResource("coap2http");
 
+            // cache the responses of CoAP servers for CoAP clients as well
+            final ProxyCacheResource cacheResource = new ProxyCacheResource(true);
+            final StatsResource statsResource = new StatsResource(cacheResource);
+            cacheResource.setForwardingResource(coap2coap);
+            coap2coap.setCacheResource(cacheResource);
+            coap2coap.setStatsResource(statsResource);
+
             // Create CoAP Server on PORT with proxy resources form CoAP to CoAP and HTTP
             final CoapServer targetServerA = new CoapServer(coapPort);
             targetServerA.add(coap2coap);
             targetServerA.add(coap2http);
+            targetServerA.add(cacheResource);
+            targetServerA.add(statsResource);
             targetServerA.start();
         }
     }
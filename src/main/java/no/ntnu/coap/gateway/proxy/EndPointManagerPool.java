@@ -1,8 +1,11 @@
 package no.ntnu.coap.gateway.proxy;
 
+import no.ntnu.coap.gateway.proxy.jfr.EndpointLeaseEvent;
+import no.ntnu.coap.gateway.proxy.stats.ExchangeCounter;
 import org.eclipse.californium.core.network.EndpointManager;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 public class EndPointManagerPool {
@@ -11,6 +14,17 @@ public class EndPointManagerPool {
 
     private static final Logger LOGGER = Logger.getLogger(EndPointManagerPool.class.getName());
 
+    // managers created because the pool was empty
+    private static final LongAdder createdOnDemand = new LongAdder();
+
+    // counts the messages of the endpoints of the managers handed out
+    private static final ExchangeCounter exchangeCounter = new ExchangeCounter();
+    private static final Set<EndpointManager> counted = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // the flight recorder events of the managers handed out while recording,
+    // guarded by managers
+    private static final Map<EndpointManager, EndpointLeaseEvent> leases = new IdentityHashMap<>();
+
     private static Queue<EndpointManager> initManagerPool(final int size) {
         final Queue<EndpointManager> clients = new ArrayDeque<>(size);
 
@@ -22,14 +36,76 @@ public class EndPointManagerPool {
     }
 
     public static EndpointManager getManager() {
+        EndpointManager manager = null;
         synchronized (managers) {
             if (managers.size() > 0) {
-                return managers.remove();
+                manager = managers.remove();
+            }
+        }
+
+        boolean created = manager == null;
+        if (created) {
+            LOGGER.warning("Out of endpoint managers, creating more");
+            createdOnDemand.increment();
+            manager = createManager();
+        }
+        countExchanges(manager);
+
+        EndpointLeaseEvent event = new EndpointLeaseEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            event.createdOnDemand = created;
+            synchronized (managers) {
+                event.idle = managers.size();
+                leases.put(manager, event);
             }
         }
+        return manager;
+    }
+
+    /**
+     * Adds the exchange counter to the endpoint of a manager the first time
+     * it is handed out, as the endpoint is only created then.
+     */
+    private static void countExchanges(EndpointManager manager) {
+        boolean first;
+        synchronized (counted) {
+            first = counted.add(manager);
+        }
+        if (first) {
+            manager.getDefaultEndpoint().addInterceptor(exchangeCounter);
+        }
+    }
+
+    /**
+     * @return the number of managers in the pool, not handed out
+     */
+    public static int getIdleCount() {
+        synchronized (managers) {
+            return managers.size();
+        }
+    }
+
+    /**
+     * @return the number of managers created, initially and on demand
+     */
+    public static long getCreatedCount() {
+        return INIT_SIZE + createdOnDemand.sum();
+    }
+
+    /**
+     * @return the number of managers created because the pool was empty
+     */
+    public static long getCreatedOnDemandCount() {
+        return createdOnDemand.sum();
+    }
 
-        LOGGER.warning("Out of endpoint managers, creating more");
-        return createManager();
+    /**
+     * Gets the counter of the messages of the endpoints of the managers
+     * handed out.
+     */
+    public static ExchangeCounter getExchangeCounter() {
+        return exchangeCounter;
     }
 
     private static EndpointManager createManager() {
@@ -39,12 +115,21 @@ public class EndPointManagerPool {
     public static void putClient(final EndpointManager manager) {
         if (manager == null) return;
 
+        EndpointLeaseEvent event;
         synchronized (managers) {
+            event = leases.isEmpty() ? null : leases.remove(manager);
             managers.add(manager);
 
             if (managers.size() > INIT_SIZE) {
                 LOGGER.warning("Beyond pool capacity, current count: " + managers.size());
             }
         }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
     }
 }
@@ -0,0 +1,31 @@
+package no.ntnu.coap.gateway.proxy;
+
+/**
+ * The HTTP request methods the proxy knows how to look up in the mapping
+ * tables.
+ */
+public enum HttpMethod {
+    GET, HEAD, POST, PUT, DELETE, OPTIONS, TRACE, CONNECT, PATCH;
+
+    private static final HttpMethod[] VALUES = values();
+
+    /**
+     * Gets the method matching the given name, ignoring case.
+     *
+     * @param method the method of an http request line
+     * @return the method or null if it is not known
+     */
+    public static HttpMethod parse(String method) {
+        if (method == null) {
+            return null;
+        }
+
+        for (HttpMethod value : VALUES) {
+            if (value.name().equalsIgnoreCase(method)) {
+                return value;
+            }
+        }
+
+        return null;
+    }
+}
@@ -23,7 +23,6 @@ import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.EnglishReasonPhraseCatalog;
 import org.apache.http.message.*;
 import org.apache.http.util.EntityUtils;
 import org.eclipse.californium.core.coap.CoAP.Code;
@@ -42,8 +41,7 @@ import java.nio.CharBuffer;
 import java.nio.charset.*;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
-import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
@@ -56,19 +54,19 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  */
 public final class HttpTranslator {
 
-    private static final String KEY_COAP_CODE = "coap.response.code.";
-    private static final String KEY_COAP_OPTION = "coap.message.option.";
-    private static final String KEY_COAP_MEDIA = "coap.message.media.";
-    private static final String KEY_HTTP_CODE = "http.response.code.";
-    private static final String KEY_HTTP_METHOD = "http.request.method.";
-    private static final String KEY_HTTP_HEADER = "http.message.header.";
-    private static final String KEY_HTTP_CONTENT_TYPE = "http.message.content-type.";
-
     /**
      * Property file containing the mappings between coap messages and http
      * messages.
      */
-    public static final Properties HTTP_TRANSLATION_PROPERTIES = new MappingProperties("Proxy.properties");
+    public static final String MAPPING_FILE = "Proxy.properties";
+
+    /**
+     * The compiled mappings. Every translation reads the reference once, so a
+     * reload never mixes old and new mappings within one message.
+     */
+    private static volatile MappingTables mappings = MappingTables.compile(new MappingProperties(MAPPING_FILE));
+
+    private static final AtomicBoolean watchingMappings = new AtomicBoolean();
 
     // Error constants
     public static final int STATUS_TIMEOUT = HttpStatus.SC_GATEWAY_TIMEOUT;
@@ -79,6 +77,33 @@ public final class HttpTranslator {
 
     protected static final Logger LOGGER = Logger.getLogger(HttpTranslator.class.getName());
 
+    /**
+     * Gets the mappings currently used by the translations.
+     */
+    public static MappingTables getMappings() {
+        return mappings;
+    }
+
+    /**
+     * Reloads the mappings whenever the mapping file changes, from a daemon
+     * thread started on the first call.
+     */
+    public static void watchMappings() {
+        if (watchingMappings.compareAndSet(false, true)) {
+            MappingWatcher.start(MAPPING_FILE, HttpTranslator::setMappings);
+        }
+    }
+
+    /**
+     * Replaces the mappings used by the translations.
+     */
+    public static void setMappings(MappingTables mappings) {
+        if (mappings == null) {
+            throw new IllegalArgumentException("mappings == null");
+        }
+        HttpTranslator.mappings = mappings;
+    }
+
     /**
      * Gets the coap media type associated to the http entity. Firstly, it looks
      * for a valid mapping in the property file. If this step fails, then it
@@ -131,11 +156,9 @@ public final class HttpTranslator {
             httpContentTypeString = httpContentTypeString.split(";")[0];
 
             // retrieve the mapping from the property file
-            String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_CONTENT_TYPE + httpContentTypeString);
+            coapContentType = mappings.getMediaType(httpContentTypeString);
 
-            if (coapContentTypeString != null) {
-                coapContentType = Integer.parseInt(coapContentTypeString);
-            } else {
+            if (coapContentType == CustomMediaTypeRegistry.UNDEFINED) {
                 // try to parse the media type if the property file has given to
                 // mapping
                 coapContentType = CustomMediaTypeRegistry.parse(httpContentTypeString);
@@ -171,42 +194,32 @@ public final class HttpTranslator {
         }
 
         List<Option> optionList = new LinkedList<Option>();
+        MappingTables tables = mappings;
 
         // iterate over the headers
         for (Header header : headers) {
             try {
-                String headerName = header.getName().toLowerCase();
+                String headerName = header.getName();
 
                 // FIXME: CoAP does no longer support multiple accept-options.
                 // If an HTTP request contains multiple accepts, this method
                 // fails. Therefore, we currently skip accepts at the moment.
-                if (headerName.startsWith("accept")) {
+                if (headerName.regionMatches(true, 0, "accept", 0, 6)) {
                     continue;
                 }
 
-
                 // get the mapping from the property file
-                String optionCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_HEADER + headerName);
+                int optionNumber = tables.getOptionNumber(headerName);
 
                 // ignore the header if not found in the properties file
-                if (optionCodeString == null || optionCodeString.isEmpty()) {
-                    if (headerName.equals("set-cookie")) {
+                if (optionNumber == PerfectHashTable.NOT_FOUND) {
+                    if (headerName.equalsIgnoreCase("set-cookie")) {
                         LOGGER.warning("is set-cookie");
 
                     }
                     continue;
                 }
 
-                // get the option number
-                int optionNumber = CustomOptionNumberRegistry.RESERVED_0;
-                try {
-                    optionNumber = Integer.parseInt(optionCodeString.trim());
-                } catch (Exception e) {
-                    LOGGER.warning("Problems in the parsing: " + e.getMessage());
-                    // ignore the option if not recognized
-                    continue;
-                }
-
                 // ignore the content-type because it will be handled within the
                 // payload
                 if (optionNumber == CustomOptionNumberRegistry.CONTENT_FORMAT) {
@@ -372,24 +385,16 @@ public final class HttpTranslator {
         }
 
         // get the http method
-        String httpMethod = httpRequest.getRequestLine().getMethod().toLowerCase();
+        String httpMethod = httpRequest.getRequestLine().getMethod();
 
         // get the coap method
-        String coapMethodString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_METHOD + httpMethod);
-        if (coapMethodString == null || coapMethodString.contains("error")) {
-            throw new InvalidMethodException(httpMethod + " method not mapped");
-        }
-
-        int coapMethod = 0;
-        try {
-            coapMethod = Integer.parseInt(coapMethodString.trim());
-        } catch (NumberFormatException e) {
-            LOGGER.warning("Cannot convert the http method in coap method: " + e);
-            throw new TranslationException("Cannot convert the http method in coap method", e);
+        Code coapMethod = mappings.getCoapMethod(HttpMethod.parse(httpMethod));
+        if (coapMethod == null) {
+            throw new InvalidMethodException(httpMethod.toLowerCase() + " method not mapped");
         }
 
         // create the request -- since HTTP is reliable use CON
-        Request coapRequest = new Request(Code.valueOf(coapMethod), Type.CON);
+        Request coapRequest = new Request(coapMethod, Type.CON);
 
         // get the uri
         String uriString = httpRequest.getRequestLine().getUri();
@@ -515,18 +520,11 @@ public final class HttpTranslator {
             }
         } else {
             // get the translation from the property file
-            String coapCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_CODE + httpCode);
-
-            if (coapCodeString == null || coapCodeString.isEmpty()) {
-                LOGGER.warning("coapCodeString == null");
-                throw new TranslationException("coapCodeString == null");
-            }
+            coapCode = mappings.getCoapCode(httpCode);
 
-            try {
-                coapCode = ResponseCode.valueOf(Integer.parseInt(coapCodeString.trim()));
-            } catch (NumberFormatException e) {
-                LOGGER.warning("Cannot convert the status code in number: " + e.getMessage());
-                throw new TranslationException("Cannot convert the status code in number", e);
+            if (coapCode == null) {
+                LOGGER.warning("coapCode == null");
+                throw new TranslationException("coapCode == null");
             }
         }
 
@@ -600,29 +598,9 @@ public final class HttpTranslator {
                 contentType = ContentType.APPLICATION_OCTET_STREAM;
                 LOGGER.warning("No content type has been set, using octet-stream instead");
             } else {
-                int coapContentType = coapMessage.getOptions().getContentFormat();
-                // search for the media type inside the property file
-                String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_MEDIA + coapContentType);
-
-                // if the content-type has not been found in the property file,
-                // try to get its string value (expressed in mime type)
-                if (coapContentTypeString == null || coapContentTypeString.isEmpty()) {
-                    coapContentTypeString = CustomMediaTypeRegistry.toString(coapContentType);
-
-                    // if the coap content-type is printable, it is needed to
-                    // set the default charset (i.e., UTF-8)
-                    if (CustomMediaTypeRegistry.isPrintable(coapContentType)) {
-                        coapContentTypeString += "; charset=UTF-8";
-                    }
-                }
-
-                // parse the content type
-                try {
-                    contentType = ContentType.parse(coapContentTypeString);
-                } catch (UnsupportedCharsetException e) {
-                    LOGGER.warning("Cannot convert string to ContentType: " + e.getMessage());
-                    contentType = ContentType.APPLICATION_OCTET_STREAM;
-                }
+                // search for the media type inside the property file, falling
+                // back to its string value (expressed in mime type)
+                contentType = mappings.getContentType(coapMessage.getOptions().getContentFormat());
             }
 
             // get the charset
@@ -685,6 +663,7 @@ public final class HttpTranslator {
         }
 
         List<Header> headers = new LinkedList<Header>();
+        MappingTables tables = mappings;
 
         // iterate over each option
         for (Option option : optionList) {
@@ -694,10 +673,10 @@ public final class HttpTranslator {
             int optionNumber = option.getNumber();
             if (optionNumber != CustomOptionNumberRegistry.CONTENT_FORMAT && optionNumber != CustomOptionNumberRegistry.PROXY_URI) {
                 // get the mapping from the property file
-                String headerName = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_OPTION + optionNumber);
+                String headerName = tables.getHeaderName(optionNumber);
 
                 // set the header
-                if (headerName != null && !headerName.isEmpty()) {
+                if (headerName != null) {
                     // format the value
                     String stringOptionValue = null;
                     if (CustomOptionNumberRegistry.getFormatByNr(optionNumber) == CustomOptionNumberRegistry.optionFormats.STRING) {
@@ -834,24 +813,14 @@ public final class HttpTranslator {
 
         // get/set the response code
         ResponseCode coapCode = coapResponse.getCode();
-        String httpCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_CODE + coapCode.value);
-
-        if (httpCodeString == null || httpCodeString.isEmpty()) {
-            LOGGER.warning("httpCodeString == null");
-            throw new TranslationException("httpCodeString == null");
-        }
+        StatusLine statusLine = mappings.getHttpStatusLine(coapCode);
 
-        int httpCode = 0;
-        try {
-            httpCode = Integer.parseInt(httpCodeString.trim());
-        } catch (NumberFormatException e) {
-            LOGGER.warning("Cannot convert the coap code in http status code" + e);
-            throw new TranslationException("Cannot convert the coap code in http status code", e);
+        if (statusLine == null) {
+            LOGGER.warning("statusLine == null");
+            throw new TranslationException("statusLine == null");
         }
 
-        // create the http response and set the status line
-        String reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(httpCode, Locale.ENGLISH);
-        StatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, httpCode, reason);
+        // set the precomputed status line
         httpResponse.setStatusLine(statusLine);
 
         // set the headers
@@ -19,8 +19,11 @@ package no.ntnu.coap.gateway.proxy;
 
 import org.eclipse.californium.core.coap.OptionNumberRegistry;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.logging.Logger;
 
@@ -44,7 +47,52 @@ public class MappingProperties extends java.util.Properties {
         initUserDefined(fileName);
     }
 
+    /**
+     * Loads the mappings from the given file on top of the defaults. Unlike
+     * {@link #MappingProperties(String)}, a missing or unreadable file is
+     * reported to the caller instead of terminating the process, as needed
+     * when reloading a file that is being edited.
+     */
+    public MappingProperties(File file) throws IOException {
+        init();
+        try (InputStream is = new FileInputStream(file)) {
+            load(is);
+        }
+    }
+
+    /**
+     * Locates the mapping file on disk: a file of the given name in the working
+     * directory overrides the one on the classpath, which can only be located
+     * if it is not packed into a jar.
+     *
+     * @return the file or null if it is not on disk
+     */
+    public static File locate(String fileName) {
+        File file = new File(fileName);
+        if (file.isFile()) {
+            return file;
+        }
+
+        URL resourceUrl = MappingProperties.class.getClassLoader().getResource(fileName);
+        if (resourceUrl == null || !"file".equals(resourceUrl.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(resourceUrl.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
     private void load(String fileName) throws IOException {
+        File file = new File(fileName);
+        if (file.isFile()) {
+            try (InputStream is = new FileInputStream(file)) {
+                load(is);
+            }
+            return;
+        }
+
         ClassLoader classLoader = getClass().getClassLoader();
         URL resourceUrl = classLoader.getResource(fileName);
         if (resourceUrl == null) {
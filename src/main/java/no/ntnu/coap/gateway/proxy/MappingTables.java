@@ -0,0 +1,252 @@
+package no.ntnu.coap.gateway.proxy;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.ParseException;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicStatusLine;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * The mappings of {@link MappingProperties} compiled into typed lookup tables,
+ * so that translating a message neither concatenates property keys nor parses
+ * numbers. Instances are immutable; a change of the mappings is applied by
+ * compiling a new instance and swapping it in (see {@link MappingWatcher}).
+ */
+public final class MappingTables {
+
+    private static final Logger LOGGER = Logger.getLogger(MappingTables.class.getName());
+
+    static final String KEY_COAP_CODE = "coap.response.code.";
+    static final String KEY_COAP_OPTION = "coap.message.option.";
+    static final String KEY_COAP_MEDIA = "coap.message.media.";
+    static final String KEY_HTTP_CODE = "http.response.code.";
+    static final String KEY_HTTP_METHOD = "http.request.method.";
+    static final String KEY_HTTP_HEADER = "http.message.header.";
+    static final String KEY_HTTP_CONTENT_TYPE = "http.message.content-type.";
+
+    private static final int HTTP_CODES = 600;
+    private static final int COAP_CODES = 256;
+    private static final int MAX_TABLE_INDEX = 1 << 16;
+
+    private final ResponseCode[] coapCodes;
+    private final StatusLine[] httpStatusLines;
+    private final Code[] coapMethods;
+    private final PerfectHashTable optionNumbers;
+    private final String[] headerNames;
+    private final PerfectHashTable mediaTypes;
+    private final ContentType[] contentTypes;
+
+    private MappingTables(ResponseCode[] coapCodes, StatusLine[] httpStatusLines, Code[] coapMethods,
+                          PerfectHashTable optionNumbers, String[] headerNames,
+                          PerfectHashTable mediaTypes, ContentType[] contentTypes) {
+        this.coapCodes = coapCodes;
+        this.httpStatusLines = httpStatusLines;
+        this.coapMethods = coapMethods;
+        this.optionNumbers = optionNumbers;
+        this.headerNames = headerNames;
+        this.mediaTypes = mediaTypes;
+        this.contentTypes = contentTypes;
+    }
+
+    /**
+     * Compiles the tables from the mapping properties. Entries that cannot be
+     * parsed are logged and left out, as if they were not mapped.
+     *
+     * @param properties the mapping properties
+     * @return the tables
+     */
+    public static MappingTables compile(Properties properties) {
+        ResponseCode[] coapCodes = new ResponseCode[HTTP_CODES];
+        StatusLine[] httpStatusLines = new StatusLine[COAP_CODES];
+        Code[] coapMethods = new Code[HttpMethod.values().length];
+        Map<String, Integer> optionNumbers = new HashMap<String, Integer>();
+        Map<Integer, String> headerNames = new HashMap<Integer, String>();
+        Map<String, Integer> mediaTypes = new HashMap<String, Integer>();
+        Map<Integer, String> contentTypeNames = new HashMap<Integer, String>();
+
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key).trim();
+
+            try {
+                if (key.startsWith(KEY_HTTP_CODE)) {
+                    int httpCode = parseIndex(key.substring(KEY_HTTP_CODE.length()), HTTP_CODES);
+                    coapCodes[httpCode] = ResponseCode.valueOf(Integer.parseInt(value));
+                } else if (key.startsWith(KEY_COAP_CODE)) {
+                    int coapCode = parseIndex(key.substring(KEY_COAP_CODE.length()), COAP_CODES);
+                    int httpCode = Integer.parseInt(value);
+                    String reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(httpCode, Locale.ENGLISH);
+                    httpStatusLines[coapCode] = new BasicStatusLine(HttpVersion.HTTP_1_1, httpCode, reason);
+                } else if (key.startsWith(KEY_HTTP_METHOD)) {
+                    HttpMethod method = HttpMethod.parse(key.substring(KEY_HTTP_METHOD.length()));
+                    if (method == null) {
+                        LOGGER.warning("Ignoring mapping of unknown http method: " + key);
+                    } else if (!value.contains("error")) {
+                        // methods mapped to an error are left unmapped
+                        coapMethods[method.ordinal()] = Code.valueOf(Integer.parseInt(value));
+                    }
+                } else if (key.startsWith(KEY_HTTP_HEADER)) {
+                    if (!value.isEmpty()) {
+                        optionNumbers.put(key.substring(KEY_HTTP_HEADER.length()), Integer.parseInt(value));
+                    }
+                } else if (key.startsWith(KEY_COAP_OPTION)) {
+                    if (!value.isEmpty()) {
+                        headerNames.put(parseIndex(key.substring(KEY_COAP_OPTION.length()), MAX_TABLE_INDEX), value);
+                    }
+                } else if (key.startsWith(KEY_HTTP_CONTENT_TYPE)) {
+                    mediaTypes.put(key.substring(KEY_HTTP_CONTENT_TYPE.length()), Integer.parseInt(value));
+                } else if (key.startsWith(KEY_COAP_MEDIA)) {
+                    if (!value.isEmpty()) {
+                        contentTypeNames.put(parseIndex(key.substring(KEY_COAP_MEDIA.length()), MAX_TABLE_INDEX), value);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException included
+                LOGGER.warning("Ignoring invalid mapping " + key + "=" + value + ": " + e.getMessage());
+            }
+        }
+
+        return new MappingTables(coapCodes, httpStatusLines, coapMethods,
+                PerfectHashTable.build(optionNumbers), toArray(headerNames),
+                PerfectHashTable.build(mediaTypes), compileContentTypes(contentTypeNames));
+    }
+
+    /**
+     * Gets the CoAP response code an HTTP status code maps to.
+     *
+     * @return the code or null if the status code is not mapped
+     */
+    public ResponseCode getCoapCode(int httpCode) {
+        return httpCode >= 0 && httpCode < HTTP_CODES ? coapCodes[httpCode] : null;
+    }
+
+    /**
+     * Gets the HTTP status line a CoAP response code maps to.
+     *
+     * @return the status line or null if the code is not mapped
+     */
+    public StatusLine getHttpStatusLine(ResponseCode coapCode) {
+        return coapCode.value >= 0 && coapCode.value < COAP_CODES ? httpStatusLines[coapCode.value] : null;
+    }
+
+    /**
+     * Gets the CoAP method an HTTP method maps to.
+     *
+     * @return the method or null if the proxy does not implement the method
+     */
+    public Code getCoapMethod(HttpMethod httpMethod) {
+        return httpMethod == null ? null : coapMethods[httpMethod.ordinal()];
+    }
+
+    /**
+     * Gets the CoAP option number an HTTP header maps to. The name is matched
+     * regardless of case.
+     *
+     * @return the option number or -1 if the header is not mapped
+     */
+    public int getOptionNumber(String headerName) {
+        return optionNumbers.get(headerName);
+    }
+
+    /**
+     * Gets the HTTP header name a CoAP option maps to.
+     *
+     * @return the header name or null if the option is not mapped
+     */
+    public String getHeaderName(int optionNumber) {
+        return optionNumber >= 0 && optionNumber < headerNames.length ? headerNames[optionNumber] : null;
+    }
+
+    /**
+     * Gets the CoAP media type explicitly mapped to an HTTP mime type. The
+     * mime type must not carry parameters and is matched regardless of case.
+     *
+     * @return the media type or {@link CustomMediaTypeRegistry#UNDEFINED}
+     */
+    public int getMediaType(String mimeType) {
+        int mediaType = mediaTypes.get(mimeType);
+        return mediaType == PerfectHashTable.NOT_FOUND ? CustomMediaTypeRegistry.UNDEFINED : mediaType;
+    }
+
+    /**
+     * Gets the HTTP content type for a CoAP media type: the mapped one if
+     * present, otherwise the one of the media type registry (with the UTF-8
+     * charset for printable types), and application/octet-stream if neither
+     * can be parsed.
+     *
+     * @return the content type, never null
+     */
+    public ContentType getContentType(int mediaType) {
+        if (mediaType >= 0 && mediaType < contentTypes.length) {
+            return contentTypes[mediaType];
+        }
+        return parseContentType(defaultContentTypeName(mediaType));
+    }
+
+    private static ContentType[] compileContentTypes(Map<Integer, String> names) {
+        int length = 0;
+        for (int mediaType : names.keySet()) {
+            length = Math.max(length, mediaType + 1);
+        }
+        for (int mediaType : CustomMediaTypeRegistry.getAllMediaTypes()) {
+            length = Math.max(length, mediaType + 1);
+        }
+
+        ContentType[] contentTypes = new ContentType[length];
+        for (int mediaType = 0; mediaType < length; mediaType++) {
+            String name = names.get(mediaType);
+            contentTypes[mediaType] = parseContentType(name != null ? name : defaultContentTypeName(mediaType));
+        }
+        return contentTypes;
+    }
+
+    private static String defaultContentTypeName(int mediaType) {
+        String name = CustomMediaTypeRegistry.toString(mediaType);
+
+        // if the coap content-type is printable, it is needed to set the
+        // default charset (i.e., UTF-8)
+        if (CustomMediaTypeRegistry.isPrintable(mediaType)) {
+            name += "; charset=UTF-8";
+        }
+        return name;
+    }
+
+    private static ContentType parseContentType(String name) {
+        try {
+            return ContentType.parse(name);
+        } catch (ParseException | UnsupportedCharsetException e) {
+            LOGGER.warning("Cannot convert string to ContentType: " + e.getMessage());
+            return ContentType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
+    private static String[] toArray(Map<Integer, String> entries) {
+        int length = 0;
+        for (int index : entries.keySet()) {
+            length = Math.max(length, index + 1);
+        }
+
+        String[] array = new String[length];
+        for (Map.Entry<Integer, String> entry : entries.entrySet()) {
+            array[entry.getKey()] = entry.getValue();
+        }
+        return array;
+    }
+
+    private static int parseIndex(String value, int bound) {
+        int index = Integer.parseInt(value.trim());
+        if (index < 0 || index >= bound) {
+            throw new IllegalArgumentException(index + " is out of range");
+        }
+        return index;
+    }
+}
@@ -0,0 +1,102 @@
+package no.ntnu.coap.gateway.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the mapping file and hands freshly compiled {@link MappingTables} to
+ * a listener whenever the file changes. A file that cannot be read or compiled
+ * is logged and the listener keeps its previous tables.
+ */
+final class MappingWatcher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(MappingWatcher.class.getName());
+
+    /**
+     * Editors often write a file in several steps; wait for them to settle.
+     */
+    private static final long SETTLE_MILLIS = 200;
+
+    private final File file;
+    private final Consumer<MappingTables> listener;
+
+    private MappingWatcher(File file, Consumer<MappingTables> listener) {
+        this.file = file;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching the mapping file in a daemon thread. Nothing is watched
+     * if the file is not on disk (e.g. packed into the jar).
+     */
+    static void start(String fileName, Consumer<MappingTables> listener) {
+        File file = MappingProperties.locate(fileName);
+        if (file == null) {
+            LOGGER.info(fileName + " is not on disk, mappings will not be reloaded");
+            return;
+        }
+
+        Thread thread = new Thread(new MappingWatcher(file.getAbsoluteFile(), listener), "MappingWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        Path directory = file.getParentFile().toPath();
+        Path name = file.toPath().getFileName();
+
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            LOGGER.info("Watching " + file + " for mapping changes");
+
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= name.equals(event.context());
+                }
+                if (!key.reset()) {
+                    LOGGER.warning("Cannot watch " + directory + " anymore, mappings will not be reloaded");
+                    return;
+                }
+
+                if (changed) {
+                    Thread.sleep(SETTLE_MILLIS);
+                    drain(watchService);
+                    reload();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot watch " + file + ", mappings will not be reloaded", e);
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private static void drain(WatchService watchService) {
+        WatchKey key;
+        while ((key = watchService.poll()) != null) {
+            key.pollEvents();
+            key.reset();
+        }
+    }
+
+    private void reload() {
+        try {
+            listener.accept(MappingTables.compile(new MappingProperties(file)));
+            LOGGER.info("Reloaded mappings from " + file);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot reload " + file + ", keeping the previous mappings", e);
+        }
+    }
+}
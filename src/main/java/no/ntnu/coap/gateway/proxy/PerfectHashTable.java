@@ -0,0 +1,110 @@
+package no.ntnu.coap.gateway.proxy;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable, case-insensitive map from ASCII strings to ints. The table is
+ * built with a seed that gives every key its own slot, so a lookup hashes the
+ * name once, probes exactly one slot and does not allocate (in particular, the
+ * name is never lower-cased into a new string).
+ */
+final class PerfectHashTable {
+    public static final int NOT_FOUND = -1;
+
+    private static final int MAX_SEEDS = 1 << 12;
+
+    private final String[] keys;
+    private final int[] values;
+    private final int mask;
+    private final int seed;
+
+    private PerfectHashTable(String[] keys, int[] values, int seed) {
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys.length - 1;
+        this.seed = seed;
+    }
+
+    /**
+     * Builds the table, searching for a seed (and if needed a larger table)
+     * without collisions. Keys differing only in case are the same key.
+     */
+    static PerfectHashTable build(Map<String, Integer> entries) {
+        Map<String, Integer> normalized = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+            normalized.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+
+        int size = Integer.highestOneBit(Math.max(1, normalized.size()) * 2 - 1) << 1;
+        while (true) {
+            for (int seed = 0; seed < MAX_SEEDS; seed++) {
+                String[] keys = new String[size];
+                int[] values = new int[size];
+                if (fill(normalized, keys, values, seed)) {
+                    return new PerfectHashTable(keys, values, seed);
+                }
+            }
+            size <<= 1;
+        }
+    }
+
+    /**
+     * Gets the value for the given name.
+     *
+     * @return the value or {@link #NOT_FOUND}
+     */
+    public int get(String name) {
+        return get(name, 0, name.length());
+    }
+
+    /**
+     * Gets the value for the region [from, to) of the given string.
+     *
+     * @return the value or {@link #NOT_FOUND}
+     */
+    public int get(String name, int from, int to) {
+        int slot = slot(name, from, to);
+        String key = keys[slot];
+
+        if (key != null && key.length() == to - from && key.regionMatches(true, 0, name, from, to - from)) {
+            return values[slot];
+        }
+        return NOT_FOUND;
+    }
+
+    private int slot(String name, int from, int to) {
+        return hash(name, from, to, seed) & mask;
+    }
+
+    private static boolean fill(Map<String, Integer> entries, String[] keys, int[] values, int seed) {
+        int mask = keys.length - 1;
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            int slot = hash(key, 0, key.length(), seed) & mask;
+            if (keys[slot] != null) {
+                return false;
+            }
+            keys[slot] = key;
+            values[slot] = entry.getValue();
+        }
+        return true;
+    }
+
+    private static int hash(String name, int from, int to, int seed) {
+        int h = seed * 0x9E3779B9;
+        for (int i = from; i < to; i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        // spread the bits, the low ones are used for the slot
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
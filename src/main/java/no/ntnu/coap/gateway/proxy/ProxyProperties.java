@@ -197,9 +197,121 @@ public class ProxyProperties extends java.util.Properties {
         // 60 * 60 * 24 => 1 day
         set("CACHE_RESPONSE_MAX_AGE", 60 * 60 * 24);
 
-        // number of entries contained in the cache
+        // number of entries contained in the cache; not read, the proxy cache
+        // holds HTTP_CACHE_SIZE entries, set in the NetworkConfig file
+        // (Californium.properties)
         set("CACHE_SIZE", 10000);
 
+        // which entries the proxy cache keeps when full: "lru" evicts the
+        // least recently used, "tinylfu" admits entries by frequency of use so
+        // that one-off requests do not flush the frequently used entries
+        set("CACHE_ENGINE", "lru");
+
+        // number of translated HTTP responses kept to answer cache hits
+        // without translating them again; if zero, they are not kept
+        set("HTTP_RESPONSE_CACHE_SIZE", 10000);
+
+        // how the proxy cache holds responses: "object" keeps the response
+        // objects, "compact" keeps them serialized
+        set("CACHE_ENTRY_MODE", "object");
+
+        // memory budget of the proxy cache; if zero, the cache is bounded by
+        // the number of entries instead, HTTP_CACHE_SIZE in the NetworkConfig
+        // file
+        set("CACHE_MAX_BYTES", 0); // [bytes]
+
+        // maximum of each partition of the proxy cache, in entries or in bytes
+        // if CACHE_MAX_BYTES is set; the cache is partitioned by upstream host
+        // and port, and the entries a partition evicts go to a pool shared by
+        // all partitions and bounded like the unpartitioned cache, by
+        // CACHE_MAX_BYTES or HTTP_CACHE_SIZE in the NetworkConfig file; if
+        // zero, the cache is not partitioned
+        set("CACHE_PARTITION_MAXIMUM", 0);
+
+        // maximums overriding the one above per partition, separated by ';':
+        // <host[:port]> <maximum>, the port only if not the default one
+        set("CACHE_PARTITION_QUOTAS", "");
+
+        // number of hosts without a quota above given a partition of their
+        // own; the hosts beyond it share the partition '*', which a quota
+        // above can also size
+        set("CACHE_PARTITION_COUNT", 64);
+
+        // whether compact cache entries deflate their payload, and from which
+        // payload size on
+        set("CACHE_COMPRESSION", false);
+        set("CACHE_COMPRESSION_THRESHOLD", 256); // [bytes]
+
+        // seconds after expiry during which the proxy cache serves a response
+        // while refreshing it, and instead of an error of the origin
+        set("CACHE_STALE_WHILE_REVALIDATE", 0); // [seconds]
+        set("CACHE_STALE_IF_ERROR", 0); // [seconds]
+
+        // policies overriding the two above per route, separated by ';':
+        // <uri prefix> <stale-while-revalidate> <stale-if-error>
+        set("CACHE_POLICY_ROUTES", "");
+
+        // second-level cache of memory-mapped segment files that takes the
+        // responses evicted for size and survives restarts
+        set("CACHE_L2_ENABLED", false);
+        set("CACHE_L2_DIRECTORY", "cache");
+        set("CACHE_L2_SEGMENT_BYTES", 64 * 1024 * 1024); // [bytes]
+        set("CACHE_L2_MAX_SEGMENTS", 16);
+
+        // observe upstream the resources requested at least OBSERVE_HOT_REQUESTS
+        // times within a window through the proxy cache, until they are
+        // requested fewer than OBSERVE_COLD_REQUESTS times within a window
+        set("OBSERVE_ENABLED", false);
+        set("OBSERVE_WINDOW", 10); // [seconds]
+        set("OBSERVE_HOT_REQUESTS", 10);
+        set("OBSERVE_COLD_REQUESTS", 1);
+
+        // observe relations held by an endpoint manager, and endpoint managers
+        // taken from the pool for observe relations
+        set("OBSERVE_MAX_RELATIONS_PER_MANAGER", 64);
+        set("OBSERVE_MAX_MANAGERS", 4);
+
+        // snapshot the counters of the proxy every METRICS_JOURNAL_INTERVAL into
+        // a ring of METRICS_JOURNAL_FILES csv files of up to
+        // METRICS_JOURNAL_FILE_BYTES each; also started by POST on stats/cache
+        set("METRICS_JOURNAL_ENABLED", false);
+        set("METRICS_JOURNAL_DIRECTORY", "metrics");
+        set("METRICS_JOURNAL_INTERVAL", 5); // [seconds]
+        set("METRICS_JOURNAL_FILE_BYTES", 1024 * 1024); // [bytes]
+        set("METRICS_JOURNAL_FILES", 8);
+
+        // the number of most requested addresses and resources the statistics
+        // keep track of; the others are only counted in a sketch
+        set("STATS_TRACKED_ADDRESSES", 64);
+        set("STATS_TRACKED_ROUTES", 512);
+
+        // the interval at which the observers of stats/cache and stats/proxy
+        // are notified of the statistics that changed
+        set("STATS_NOTIFY_INTERVAL", 10); // [seconds]
+
+        // log the HTTP requests answered after more than
+        // REQUEST_SLOW_THRESHOLD with the time of each stage, 0 to log none,
+        // and tell the time of each stage in a Server-Timing header
+        set("REQUEST_SLOW_THRESHOLD", 1000); // [milliseconds]
+        set("HTTP_SERVER_TIMING", false);
+
+        // log every request served, and every request forwarded over HTTP, to
+        // ACCESS_LOG_FILE from a background thread, as json lines or binary
+        // records; up to ACCESS_LOG_BUFFER requests wait to be written, those
+        // beyond are dropped
+        set("ACCESS_LOG_ENABLED", false);
+        // a relative path is resolved against the working directory of the
+        // proxy; the rotated files are written next to it
+        set("ACCESS_LOG_FILE", "access.log");
+        set("ACCESS_LOG_FORMAT", "json"); // json or binary
+        set("ACCESS_LOG_BUFFER", 8192); // [records]
+        // the share of the successful requests logged, errors are all logged
+        set("ACCESS_LOG_SAMPLE_RATE", 1.0);
+        // rotate the log at ACCESS_LOG_FILE_BYTES, keeping ACCESS_LOG_FILES
+        // older files
+        set("ACCESS_LOG_FILE_BYTES", 10 * 1024 * 1024); // [bytes]
+        set("ACCESS_LOG_FILES", 5);
+
         // the number of notifications until a CON notification will be used
         set("OBSERVING_REFRESH_INTERVAL", 10);
 
@@ -0,0 +1,109 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.Weigher;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The storage behind the proxy cache, deciding which entries to keep when it
+ * is full.
+ * <p>
+ * Entries are bounded either by count or by weight, and removed a fixed time
+ * after they were written. Removals are reported to a listener with their
+ * cause, as with Guava caches; replaced entries are reported as
+ * {@link RemovalCause#REPLACED}.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public interface CacheEngine<K, V> {
+
+    /**
+     * Gets the value of the key, recording an access to it.
+     *
+     * @return the value or null if not present
+     */
+    V getIfPresent(K key);
+
+    void put(K key, V value);
+
+    /**
+     * Puts the value unless the key has one.
+     *
+     * @return the current value of the key, null if the given value was put
+     */
+    V putIfAbsent(K key, V value);
+
+    /**
+     * Replaces the value of the key if it is the given one.
+     *
+     * @return true if the value was replaced
+     */
+    boolean replace(K key, V oldValue, V newValue);
+
+    void invalidate(K key);
+
+    void invalidateAll(Iterable<? extends K> keys);
+
+    void invalidateAll();
+
+    /**
+     * Gets a read-only view of the entries, which does not record accesses.
+     */
+    Map<K, V> asMap();
+
+    long size();
+
+    /**
+     * @return the number of entries removed for size or age
+     */
+    long evictionCount();
+
+    /**
+     * Receives the entries removed from an engine.
+     */
+    interface RemovalListener<K, V> {
+        void onRemoval(K key, V value, RemovalCause cause);
+    }
+
+    /**
+     * The engines to choose from.
+     */
+    enum Policy {
+        /**
+         * Evicts the least recently used entries, see {@link LruCacheEngine}.
+         */
+        LRU,
+        /**
+         * Admits entries by their frequency of use, see
+         * {@link TinyLfuCacheEngine}.
+         */
+        TINYLFU;
+
+        public static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+
+        /**
+         * Creates an engine of this policy.
+         *
+         * @param maximum         the maximum number of entries, or their
+         *                        maximum weight if a weigher is given
+         * @param weigher         weighs the entries, null to count them
+         * @param expireAfterWrite the time after which entries are removed
+         * @param unit            the unit of that time
+         * @param listener        receives the removed entries
+         */
+        public <K, V> CacheEngine<K, V> create(long maximum, Weigher<? super K, ? super V> weigher,
+                                               long expireAfterWrite, TimeUnit unit, RemovalListener<K, V> listener) {
+            switch (this) {
+                case TINYLFU:
+                    return new TinyLfuCacheEngine<K, V>(maximum, weigher, expireAfterWrite, unit, listener);
+                default:
+                    return new LruCacheEngine<K, V>(maximum, weigher, expireAfterWrite, unit, listener);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Response;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A response held by the cache together with its freshness: the time it was
+ * stored (or last validated) and its max-age at that time. How the response
+ * itself is held depends on the {@link Mode}.
+ * <p>
+ * Entries are immutable, so hits need no synchronization: each hit gets its
+ * own response to modify, and a validated entry is replaced by a new one (see
+ * {@link #withLifetime(long, long)}) sharing the same response.
+ */
+public abstract class CacheEntry {
+
+    /**
+     * How cached responses are held in memory.
+     */
+    public enum Mode {
+        /**
+         * A snapshot of the code, options and payload of the response; each
+         * hit gets a new response sharing the payload.
+         */
+        OBJECT,
+        /**
+         * A compact serialized form (see {@link CompactResponseCodec}),
+         * decoded into a new response on every hit.
+         */
+        COMPACT;
+
+        public static Mode parse(String mode) {
+            return mode != null && mode.trim().equalsIgnoreCase("compact") ? COMPACT : OBJECT;
+        }
+    }
+
+    /**
+     * Rough heap footprint of a response object graph besides its payload and
+     * option values (response, option set, lists and boxed values).
+     */
+    private static final int OBJECT_OVERHEAD = 320;
+    private static final int OPTION_OVERHEAD = 32;
+
+    private final byte[] etag;
+    private final long timestamp;
+    private final long maxAge;
+
+    CacheEntry(Response response, long timestamp, long maxAge) {
+        List<byte[]> etags = response.getOptions().getETags();
+        this.etag = etags.isEmpty() ? null : etags.get(0);
+        this.timestamp = timestamp;
+        this.maxAge = maxAge;
+    }
+
+    CacheEntry(CacheEntry entry, long timestamp, long maxAge) {
+        this.etag = entry.etag;
+        this.timestamp = timestamp;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Creates an entry for the given response, held as configured.
+     *
+     * @param response  the response
+     * @param mode      how to hold the response
+     * @param codec     the codec of compact entries
+     * @param timestamp the time the response was received, see {@link System#nanoTime()}
+     */
+    public static CacheEntry create(Response response, Mode mode, CompactResponseCodec codec, long timestamp) {
+        long maxAge = getMaxAge(response);
+        if (mode == Mode.COMPACT) {
+            return new CompactEntry(response, codec, codec.encode(response), timestamp, maxAge);
+        }
+        return new ObjectEntry(response, timestamp, maxAge);
+    }
+
+    /**
+     * Gets a new response with the cached code, options and payload, which
+     * the caller may modify. The payload array is shared and must not be
+     * written to.
+     */
+    public abstract Response getResponse();
+
+    /**
+     * Creates an entry for the same response whose lifetime restarts, after
+     * the response has been validated.
+     *
+     * @param maxAge      the max-age of the validating response
+     * @param currentTime the current time, see {@link System#nanoTime()}
+     */
+    public abstract CacheEntry withLifetime(long maxAge, long currentTime);
+
+    /**
+     * Gets the approximate number of heap bytes held by this entry.
+     */
+    public abstract int getWeight();
+
+    /**
+     * Gets the entity-tag of the cached response, needed to validate it once
+     * it is stale.
+     *
+     * @return the entity-tag or null if the response has none
+     */
+    public byte[] getETag() {
+        return etag;
+    }
+
+    /**
+     * Gets the number of seconds the response is still fresh for. The result
+     * is zero or negative once the response is stale.
+     *
+     * @param currentTime the current time, see {@link System#nanoTime()}
+     */
+    public long getRemainingLifetime(long currentTime) {
+        // calculate the time that the response has spent in the cache
+        long secondsInCache = TimeUnit.NANOSECONDS.toSeconds(currentTime - timestamp);
+        return maxAge - secondsInCache;
+    }
+
+    /**
+     * Gets the time the response was stored or last validated, see
+     * {@link System#nanoTime()}.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the max-age of the response at {@link #getTimestamp()}.
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    private static long getMaxAge(Response response) {
+        Long maxAgeOption = response.getOptions().getMaxAge();
+        return maxAgeOption != null ? maxAgeOption : OptionNumberRegistry.Defaults.MAX_AGE;
+    }
+
+    private static final class ObjectEntry extends CacheEntry {
+        private final ResponseCode code;
+        private final OptionSet options;
+        private final byte[] payload;
+        private final int weight;
+
+        ObjectEntry(Response response, long timestamp, long maxAge) {
+            super(response, timestamp, maxAge);
+            // the response goes on to the client, keep a copy of its options;
+            // only the options present are added, as the copy of each hit
+            // copies every list created, empty or not, and the copy is never
+            // read through the getters that create them
+            this.code = response.getCode();
+            this.options = new OptionSet();
+            this.payload = response.getPayload();
+
+            int weight = OBJECT_OVERHEAD + response.getPayloadSize();
+            for (Option option : response.getOptions().asSortedList()) {
+                options.addOption(option);
+                weight += OPTION_OVERHEAD + option.getLength();
+            }
+            this.weight = weight;
+        }
+
+        private ObjectEntry(ObjectEntry entry, long timestamp, long maxAge) {
+            super(entry, timestamp, maxAge);
+            this.code = entry.code;
+            this.options = entry.options;
+            this.payload = entry.payload;
+            this.weight = entry.weight;
+        }
+
+        @Override
+        public Response getResponse() {
+            Response response = new Response(code);
+            response.setOptions(new OptionSet(options));
+            response.setPayload(payload);
+            return response;
+        }
+
+        @Override
+        public CacheEntry withLifetime(long maxAge, long currentTime) {
+            return new ObjectEntry(this, currentTime, maxAge);
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    private static final class CompactEntry extends CacheEntry {
+        private static final int ARRAY_OVERHEAD = 16 + 32;
+
+        private final CompactResponseCodec codec;
+        private final byte[] bytes;
+
+        CompactEntry(Response response, CompactResponseCodec codec, byte[] bytes, long timestamp, long maxAge) {
+            super(response, timestamp, maxAge);
+            this.codec = codec;
+            this.bytes = bytes;
+        }
+
+        private CompactEntry(CompactEntry entry, long timestamp, long maxAge) {
+            super(entry, timestamp, maxAge);
+            this.codec = entry.codec;
+            this.bytes = entry.bytes;
+        }
+
+        @Override
+        public Response getResponse() {
+            return codec.decode(bytes);
+        }
+
+        @Override
+        public CacheEntry withLifetime(long maxAge, long currentTime) {
+            return new CompactEntry(this, currentTime, maxAge);
+        }
+
+        @Override
+        public int getWeight() {
+            return ARRAY_OVERHEAD + bytes.length;
+        }
+    }
+}
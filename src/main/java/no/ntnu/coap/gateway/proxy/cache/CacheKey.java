@@ -0,0 +1,217 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import org.eclipse.californium.core.coap.Request;
+
+import java.util.Arrays;
+
+/**
+ * Key of a cached response: the normalized URI of the requested resource, the
+ * media type of the representation and the payload of the request. The hash
+ * is computed once, as a key is hashed at least twice per lookup (cache and
+ * variant index).
+ * <p>
+ * Two requests for the same resource written differently (e.g. upper-case
+ * host, explicit default port) get equal keys, see {@link #normalizeUri(String)}.
+ */
+public final class CacheKey {
+
+    private final String uri;
+    private final int mediaType;
+    private final byte[] payload;
+    private final int payloadHash;
+    private final int hash;
+
+    private CacheKey(String uri, int mediaType, byte[] payload, int payloadHash) {
+        this.uri = uri;
+        this.mediaType = mediaType;
+        this.payload = payload;
+        this.payloadHash = payloadHash;
+        this.hash = 31 * (31 * uri.hashCode() + payloadHash) + mediaType;
+    }
+
+    /**
+     * Creates the key of the given representation of the resource the request
+     * targets. The payload of the request is referenced, not copied.
+     *
+     * @param request   the request
+     * @param mediaType the media type of the representation
+     * @return the key
+     */
+    public static CacheKey fromRequest(Request request, int mediaType) {
+        if (request == null) {
+            throw new IllegalArgumentException("request == null");
+        }
+
+        byte[] payload = request.getPayload();
+        if (payload != null && payload.length == 0) {
+            payload = null;
+        }
+        return new CacheKey(getUri(request), mediaType, payload, Arrays.hashCode(payload));
+    }
+
+    /**
+     * Creates a key from its parts, as read back from storage.
+     */
+    static CacheKey of(String uri, int mediaType, byte[] payload) {
+        return new CacheKey(uri, mediaType, payload, Arrays.hashCode(payload));
+    }
+
+    /**
+     * Gets the normalized URI of the resource a request targets: its proxy-uri
+     * if present, the URI assembled from its options otherwise.
+     */
+    public static String getUri(Request request) {
+        String uri = request.getOptions().getProxyUri();
+        if (uri == null) {
+            uri = request.getURI();
+        }
+        return normalizeUri(uri);
+    }
+
+    /**
+     * Gets the authority of a normalized URI, its host and port if not the
+     * default one, or the empty string if the URI is not absolute.
+     */
+    public static String getAuthority(String uri) {
+        int schemeEnd = uri.indexOf("://");
+        if (schemeEnd <= 0) {
+            return "";
+        }
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < uri.length() && "/?#".indexOf(uri.charAt(authorityEnd)) < 0) {
+            authorityEnd++;
+        }
+        return uri.substring(authorityStart, authorityEnd);
+    }
+
+    /**
+     * Normalizes a URI as far as needed to compare cache keys (RFC 3986,
+     * Section 6.2.2 and 6.2.3): the scheme and host are lower-cased, the
+     * default port of the scheme is removed and an empty path becomes "/". The
+     * string is returned unchanged if it is already normalized or is not an
+     * absolute URI.
+     */
+    public static String normalizeUri(String uri) {
+        int schemeEnd = uri.indexOf("://");
+        if (schemeEnd <= 0) {
+            return uri;
+        }
+
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < uri.length() && "/?#".indexOf(uri.charAt(authorityEnd)) < 0) {
+            authorityEnd++;
+        }
+
+        String scheme = uri.substring(0, schemeEnd).toLowerCase();
+        String authority = uri.substring(authorityStart, authorityEnd);
+        String rest = uri.substring(authorityEnd);
+
+        // strip user info, keep the host (possibly an IPv6 literal) and port
+        authority = authority.substring(authority.lastIndexOf('@') + 1);
+        int portStart = authority.lastIndexOf(':');
+        if (portStart >= 0 && authority.indexOf(']', portStart) >= 0) {
+            portStart = -1;
+        }
+        String host = portStart >= 0 ? authority.substring(0, portStart) : authority;
+        String port = portStart >= 0 ? authority.substring(portStart + 1) : "";
+        if (port.equals(defaultPort(scheme))) {
+            port = "";
+        }
+
+        StringBuilder builder = new StringBuilder(uri.length());
+        builder.append(scheme).append("://").append(host.toLowerCase());
+        if (!port.isEmpty()) {
+            builder.append(':').append(port);
+        }
+        if (rest.isEmpty() || rest.charAt(0) != '/') {
+            builder.append('/');
+        }
+        builder.append(rest);
+
+        String normalized = builder.toString();
+        return normalized.equals(uri) ? uri : normalized;
+    }
+
+    private static String defaultPort(String scheme) {
+        switch (scheme) {
+            case "coap":
+                return "5683";
+            case "coaps":
+                return "5684";
+            case "http":
+                return "80";
+            case "https":
+                return "443";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the key of another representation of the same resource, requested
+     * with the same payload.
+     */
+    public CacheKey withMediaType(int mediaType) {
+        return mediaType == this.mediaType ? this : new CacheKey(uri, mediaType, payload, payloadHash);
+    }
+
+    /**
+     * Checks whether both keys refer to the same resource requested with the
+     * same payload, regardless of the media type.
+     */
+    public boolean isVariantOf(CacheKey other) {
+        return payloadHash == other.payloadHash && uri.equals(other.uri) && Arrays.equals(payload, other.payload);
+    }
+
+    /**
+     * Gets the approximate number of heap bytes held by this key.
+     */
+    public int getWeight() {
+        return 64 + 2 * uri.length() + (payload == null ? 0 : 16 + payload.length);
+    }
+
+    /**
+     * @return the normalized uri
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * @return the mediaType
+     */
+    public int getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return the payload of the request or null if it had none
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) obj;
+        return hash == other.hash && mediaType == other.mediaType && isVariantOf(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return uri + " (" + mediaType + ")";
+    }
+}
@@ -0,0 +1,92 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The cache policies per route. A route is a URI prefix, the policy of the
+ * longest matching prefix applies.
+ */
+public final class CachePolicies {
+
+    private static final Logger LOGGER = Logger.getLogger(CachePolicies.class.getName());
+
+    private final List<Route> routes;
+    private final CachePolicy defaultPolicy;
+
+    private CachePolicies(List<Route> routes, CachePolicy defaultPolicy) {
+        this.routes = routes;
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    /**
+     * Parses the routes from a list separated by semicolons, each route being
+     * a URI prefix followed by its stale-while-revalidate and stale-if-error
+     * windows in seconds, e.g.
+     * {@code coap://sensors.local/temp 30 300; coap://sensors.local/ 0 60}.
+     * Invalid routes are logged and skipped.
+     *
+     * @param routes        the routes, may be null or empty
+     * @param defaultPolicy the policy of URIs matching no route
+     */
+    public static CachePolicies parse(String routes, CachePolicy defaultPolicy) {
+        List<Route> parsed = new ArrayList<Route>();
+        if (routes != null) {
+            for (String route : routes.split(";")) {
+                String[] fields = route.trim().split("\\s+");
+                if (fields.length == 1 && fields[0].isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (fields.length != 3) {
+                        throw new IllegalArgumentException("expected <prefix> <stale-while-revalidate> <stale-if-error>");
+                    }
+                    CachePolicy policy = new CachePolicy(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                    parsed.add(new Route(CacheKey.normalizeUri(fields[0]), policy));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Ignoring invalid cache policy route '" + route.trim() + "': " + e.getMessage());
+                }
+            }
+        }
+
+        // the longest prefix matches first
+        parsed.sort(Comparator.comparingInt((Route route) -> route.prefix.length()).reversed());
+        return new CachePolicies(parsed, defaultPolicy);
+    }
+
+    /**
+     * Gets the policy for a normalized URI.
+     */
+    public CachePolicy get(String uri) {
+        for (Route route : routes) {
+            if (uri.startsWith(route.prefix)) {
+                return route.policy;
+            }
+        }
+        return defaultPolicy;
+    }
+
+    /**
+     * Gets the longest time after expiry a response is of use under any of
+     * the policies.
+     */
+    public long getMaxStaleness() {
+        long maxStaleness = defaultPolicy.getMaxStaleness();
+        for (Route route : routes) {
+            maxStaleness = Math.max(maxStaleness, route.policy.getMaxStaleness());
+        }
+        return maxStaleness;
+    }
+
+    private static final class Route {
+        private final String prefix;
+        private final CachePolicy policy;
+
+        private Route(String prefix, CachePolicy policy) {
+            this.prefix = prefix;
+            this.policy = policy;
+        }
+    }
+}
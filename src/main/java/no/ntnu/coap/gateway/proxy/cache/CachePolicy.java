@@ -0,0 +1,64 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+/**
+ * How long a stale response may still be served (RFC 5861): while it is
+ * revalidated in the background, and when the origin fails.
+ */
+public final class CachePolicy {
+
+    /**
+     * Never serves stale responses.
+     */
+    public static final CachePolicy NONE = new CachePolicy(0, 0);
+
+    private final long staleWhileRevalidate;
+    private final long staleIfError;
+
+    /**
+     * @param staleWhileRevalidate seconds after expiry during which the stale
+     *                             response is served while it is refreshed
+     * @param staleIfError         seconds after expiry during which the stale
+     *                             response is served instead of a server error
+     */
+    public CachePolicy(long staleWhileRevalidate, long staleIfError) {
+        if (staleWhileRevalidate < 0 || staleIfError < 0) {
+            throw new IllegalArgumentException("Negative stale window");
+        }
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.staleIfError = staleIfError;
+    }
+
+    /**
+     * @param staleness seconds since the response expired
+     */
+    public boolean canServeWhileRevalidating(long staleness) {
+        return staleness < staleWhileRevalidate;
+    }
+
+    /**
+     * @param staleness seconds since the response expired
+     */
+    public boolean canServeOnError(long staleness) {
+        return staleness < staleIfError;
+    }
+
+    /**
+     * Gets for how long after expiry a response is still of use.
+     */
+    public long getMaxStaleness() {
+        return Math.max(staleWhileRevalidate, staleIfError);
+    }
+
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+
+    @Override
+    public String toString() {
+        return "stale-while-revalidate=" + staleWhileRevalidate + ", stale-if-error=" + staleIfError;
+    }
+}
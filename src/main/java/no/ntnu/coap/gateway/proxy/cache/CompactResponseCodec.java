@@ -0,0 +1,160 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Serializes the cacheable part of a response (code, options and payload)
+ * into a compact byte array and back. Message type, ID and token are left out
+ * as they belong to the exchange, not to the representation.
+ * <p>
+ * Layout: flags, code, option count, then for each option the delta to the
+ * previous option number, the value length and the value, and finally the
+ * payload. Numbers are written as unsigned varints. If the payload is
+ * deflated, its original length precedes it.
+ */
+public final class CompactResponseCodec {
+
+    private static final int FLAG_DEFLATED = 1;
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final boolean compress;
+    private final int compressThreshold;
+
+    /**
+     * @param compress          whether to deflate payloads
+     * @param compressThreshold the smallest payload size to deflate
+     */
+    public CompactResponseCodec(boolean compress, int compressThreshold) {
+        this.compress = compress;
+        this.compressThreshold = compressThreshold;
+    }
+
+    public byte[] encode(Response response) {
+        byte[] payload = response.getPayload() != null ? response.getPayload() : NO_PAYLOAD;
+        List<Option> options = response.getOptions().asSortedList();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + payload.length);
+        byte[] deflated = compress && payload.length >= compressThreshold ? deflate(payload) : null;
+
+        out.write(deflated != null ? FLAG_DEFLATED : 0);
+        out.write(response.getCode().value);
+        writeVarint(out, options.size());
+
+        int lastNumber = 0;
+        for (Option option : options) {
+            writeVarint(out, option.getNumber() - lastNumber);
+            writeVarint(out, option.getLength());
+            out.write(option.getValue(), 0, option.getLength());
+            lastNumber = option.getNumber();
+        }
+
+        if (deflated != null) {
+            writeVarint(out, payload.length);
+            out.write(deflated, 0, deflated.length);
+        } else {
+            out.write(payload, 0, payload.length);
+        }
+        return out.toByteArray();
+    }
+
+    public Response decode(byte[] bytes) {
+        int[] position = {0};
+        int flags = bytes[position[0]++];
+        Response response = new Response(ResponseCode.valueOf(bytes[position[0]++] & 0xFF));
+
+        int optionCount = readVarint(bytes, position);
+        int number = 0;
+        for (int i = 0; i < optionCount; i++) {
+            number += readVarint(bytes, position);
+            int length = readVarint(bytes, position);
+            byte[] value = new byte[length];
+            System.arraycopy(bytes, position[0], value, 0, length);
+            position[0] += length;
+            response.getOptions().addOption(new Option(number, value));
+        }
+
+        if ((flags & FLAG_DEFLATED) != 0) {
+            int length = readVarint(bytes, position);
+            response.setPayload(inflate(bytes, position[0], length));
+        } else if (position[0] < bytes.length) {
+            byte[] payload = new byte[bytes.length - position[0]];
+            System.arraycopy(bytes, position[0], payload, 0, payload.length);
+            response.setPayload(payload);
+        }
+        return response;
+    }
+
+    /**
+     * @return the deflated bytes or null if they would not be smaller
+     */
+    private static byte[] deflate(byte[] payload) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] buffer = new byte[payload.length];
+            int length = deflater.deflate(buffer);
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] deflated = new byte[length];
+            System.arraycopy(buffer, 0, deflated, 0, length);
+            return deflated;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, bytes.length - offset);
+            byte[] payload = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(payload, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // truncated, the inflater would wait for more input
+                    throw new IllegalStateException("Corrupted cache entry");
+                }
+                inflated += count;
+            }
+            if (inflated < length) {
+                throw new IllegalStateException("Corrupted cache entry");
+            }
+            return payload;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted cache entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
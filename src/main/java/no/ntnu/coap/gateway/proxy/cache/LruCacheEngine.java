@@ -0,0 +1,80 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine backed by a Guava cache, which evicts approximately the least
+ * recently used entries.
+ */
+public class LruCacheEngine<K, V> implements CacheEngine<K, V> {
+
+    private final Cache<K, V> cache;
+
+    public LruCacheEngine(long maximum, Weigher<? super K, ? super V> weigher, long expireAfterWrite,
+                          TimeUnit unit, RemovalListener<K, V> listener) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+        if (weigher != null) {
+            builder.maximumWeight(maximum).weigher(weigher);
+        } else {
+            builder.maximumSize(maximum);
+        }
+        cache = builder.recordStats().expireAfterWrite(expireAfterWrite, unit).<K, V>removalListener(
+                notification -> listener.onRemoval(notification.getKey(), notification.getValue(), notification.getCause())).build();
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        cache.put(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return cache.asMap().putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return cache.asMap().replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public void invalidate(K key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll(Iterable<? extends K> keys) {
+        cache.invalidateAll(keys);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public Map<K, V> asMap() {
+        return Collections.unmodifiableMap(cache.asMap());
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public long evictionCount() {
+        return cache.stats().evictionCount();
+    }
+}
@@ -0,0 +1,497 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import org.eclipse.californium.core.coap.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Second-level cache tier kept in memory-mapped segment files, so that it
+ * holds more responses than the heap allows and survives restarts.
+ * <p>
+ * Responses are appended to the current segment together with their key,
+ * arrival time (wall clock) and max-age; invalidations append a tombstone.
+ * Only an index from the keys to their record is kept in the heap. When the
+ * number of segments exceeds its limit, the oldest segment is dropped with the
+ * responses it holds. On startup, the index is rebuilt by scanning the
+ * segments; a record with a wrong checksum ends the scan of its segment, as
+ * it was being written when the process stopped.
+ * <p>
+ * Record layout: magic, body length, CRC-32 of the body, body. The body holds
+ * the record type, arrival time in milliseconds, max-age in seconds, the key
+ * (uri, media type, payload) and, for responses, the response encoded by
+ * {@link CompactResponseCodec}.
+ */
+public final class MappedCacheStore {
+
+    private static final Logger LOGGER = Logger.getLogger(MappedCacheStore.class.getName());
+
+    private static final int MAGIC = 0xCAC4E001;
+    private static final int HEADER_BYTES = 12;
+    private static final byte TYPE_RESPONSE = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long maxStaleness;
+    private final CacheEntry.Mode mode;
+    private final CompactResponseCodec codec;
+
+    private final ConcurrentMap<CacheKey, Location> index = new ConcurrentHashMap<CacheKey, Location>();
+    private final VariantIndex variants = new VariantIndex();
+
+    // guarded by this
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+    /**
+     * Opens the store in the given directory and rebuilds its index from the
+     * segments found there.
+     *
+     * @param directory    the directory of the segment files, created if needed
+     * @param segmentBytes the size of a segment file
+     * @param maxSegments  the number of segments kept
+     * @param maxStaleness seconds after expiry during which a response is
+     *                     still of use (e.g. stale-if-error)
+     * @param mode         how to hold the responses read back
+     * @param codec        encodes and decodes the responses
+     */
+    public MappedCacheStore(File directory, int segmentBytes, int maxSegments, long maxStaleness,
+                            CacheEntry.Mode mode, CompactResponseCodec codec) throws IOException {
+        if (segmentBytes <= HEADER_BYTES || maxSegments < 1) {
+            throw new IllegalArgumentException("Invalid segment size or count");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.maxStaleness = maxStaleness;
+        this.mode = mode;
+        this.codec = codec;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Stores the entry, replacing the one stored for the key. Entries too large
+     * for a segment are not stored.
+     */
+    public void put(CacheKey key, CacheEntry entry) {
+        long arrival = toWallClock(entry.getTimestamp());
+        if (isExpired(arrival, entry.getMaxAge())) {
+            return;
+        }
+
+        byte[] body = encodeBody(TYPE_RESPONSE, arrival, entry.getMaxAge(), key, codec.encode(entry.getResponse()));
+        // indexed in the order appended, as on recovery
+        synchronized (this) {
+            Location location = append(body);
+            if (location != null) {
+                variants.add(key);
+                index.put(key, location);
+            }
+        }
+    }
+
+    /**
+     * Gets the entry stored for the key.
+     *
+     * @return the entry or null if none is stored or it is of no use anymore
+     */
+    public CacheEntry get(CacheKey key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        if (isExpired(location.arrival, location.maxAge)) {
+            remove(key, location);
+            return null;
+        }
+
+        Segment segment = location.segment;
+        if (!segment.acquire()) {
+            // dropped meanwhile with its records
+            return null;
+        }
+        ByteBuffer body;
+        try {
+            body = readRecord(segment.reader, location.offset);
+        } finally {
+            segment.release();
+        }
+        if (body == null) {
+            LOGGER.warning("Corrupted record for " + key + " in " + segment.file);
+            remove(key, location);
+            return null;
+        }
+
+        // skip type, arrival and max-age
+        body.position(1 + 8 + 8);
+        if (!key.equals(readKey(body))) {
+            LOGGER.warning("Record of another key found for " + key + " in " + segment.file);
+            remove(key, location);
+            return null;
+        }
+        byte[] encoded = new byte[body.getInt()];
+        body.get(encoded);
+
+        Response response = codec.decode(encoded);
+        return CacheEntry.create(response, mode, codec, 0).withLifetime(location.maxAge, toNanoTime(location.arrival));
+    }
+
+    /**
+     * Gets the keys stored for a resource. The set is a live view and may
+     * change while iterated.
+     */
+    public Set<CacheKey> getVariants(String uri) {
+        return variants.get(uri);
+    }
+
+    /**
+     * Removes the entry of the key, also for later restarts.
+     */
+    public synchronized void invalidate(CacheKey key) {
+        if (index.remove(key) != null) {
+            variants.remove(key);
+            append(encodeBody(TYPE_TOMBSTONE, System.currentTimeMillis(), 0, key, null));
+        }
+    }
+
+    /**
+     * Removes the entries of every representation of a resource, also for
+     * later restarts.
+     */
+    public void invalidateAll(String uri) {
+        for (CacheKey key : variants.get(uri)) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Removes the entries of every resource under a URI prefix, also for later
+     * restarts, see {@link VariantIndex#getByPrefix(String)}.
+     *
+     * @return the number of entries removed
+     */
+    public int invalidatePrefix(String prefix) {
+        int removed = 0;
+        for (CacheKey key : variants.getByPrefix(prefix)) {
+            if (index.containsKey(key)) {
+                invalidate(key);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all entries and segment files.
+     */
+    public synchronized void clear() throws IOException {
+        index.clear();
+        variants.clear();
+        while (!segments.isEmpty()) {
+            deleteSegment(segments.removeFirst());
+        }
+        segments.addLast(openSegment(1));
+    }
+
+    /**
+     * Writes the mapped segments to disk.
+     */
+    public synchronized void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Appends a record to the current segment; the caller holds the lock of
+     * the store, so that the index follows the order of the records.
+     */
+    private Location append(byte[] body) {
+        int recordBytes = HEADER_BYTES + body.length;
+        if (recordBytes > segmentBytes) {
+            return null;
+        }
+
+        Segment segment = segments.peekLast();
+        if (segment.buffer.position() + recordBytes > segmentBytes) {
+            try {
+                segment = rollSegment();
+            } catch (IOException e) {
+                LOGGER.warning("Cannot create cache segment: " + e.getMessage());
+                return null;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        int offset = segment.buffer.position();
+        segment.buffer.putInt(MAGIC).putInt(body.length).putInt((int) crc.getValue()).put(body);
+
+        ByteBuffer header = ByteBuffer.wrap(body);
+        header.get();
+        return new Location(segment, offset, header.getLong(), header.getLong());
+    }
+
+    private Segment rollSegment() throws IOException {
+        Segment segment = openSegment(segments.peekLast().number + 1);
+        segments.addLast(segment);
+
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.removeFirst();
+            index.entrySet().removeIf(entry -> {
+                if (entry.getValue().segment == oldest) {
+                    variants.remove(entry.getKey());
+                    return true;
+                }
+                return false;
+            });
+            deleteSegment(oldest);
+        }
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        long[] numbers = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < numbers.length; i++) {
+            String name = files[i].getName();
+            try {
+                numbers[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                numbers[i] = -1;
+            }
+        }
+        Arrays.sort(numbers);
+
+        int recovered = 0;
+        for (long number : numbers) {
+            if (number < 0) {
+                continue;
+            }
+            Segment segment = openSegment(number);
+            segments.addLast(segment);
+            recovered += scan(segment);
+        }
+
+        // keep appending to the last segment
+        if (segments.isEmpty()) {
+            segments.addLast(openSegment(1));
+        }
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.removeFirst();
+            index.values().removeIf(location -> location.segment == oldest);
+            deleteSegment(oldest);
+        }
+        for (CacheKey key : index.keySet()) {
+            variants.add(key);
+        }
+
+        LOGGER.info("Recovered " + index.size() + " cached responses from " + recovered + " records in " + directory);
+    }
+
+    /**
+     * Indexes the records of the segment and leaves its position after the
+     * last valid record.
+     *
+     * @return the number of valid records
+     */
+    private int scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int records = 0;
+        while (true) {
+            int offset = buffer.position();
+            ByteBuffer body = readRecord(buffer, offset);
+            if (body == null) {
+                return records;
+            }
+            buffer.position(offset + HEADER_BYTES + body.capacity());
+            records++;
+
+            byte type = body.get();
+            long arrival = body.getLong();
+            long maxAge = body.getLong();
+            CacheKey key = readKey(body);
+            if (type == TYPE_TOMBSTONE || isExpired(arrival, maxAge)) {
+                index.remove(key);
+            } else {
+                index.put(key, new Location(segment, offset, arrival, maxAge));
+            }
+        }
+    }
+
+    /**
+     * Reads the record at the offset with absolute reads, which leave the
+     * position of the buffer alone, as the appends move it concurrently.
+     *
+     * @return the body or null if there is no valid record
+     */
+    private static ByteBuffer readRecord(ByteBuffer buffer, int offset) {
+        if (buffer.limit() - offset < HEADER_BYTES || buffer.getInt(offset) != MAGIC) {
+            return null;
+        }
+        int length = buffer.getInt(offset + 4);
+        int checksum = buffer.getInt(offset + 8);
+        int start = offset + HEADER_BYTES;
+        if (length < 0 || length > buffer.limit() - start) {
+            return null;
+        }
+
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = buffer.get(start + i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+        return (int) crc.getValue() == checksum ? ByteBuffer.wrap(body) : null;
+    }
+
+    private static byte[] encodeBody(byte type, long arrival, long maxAge, CacheKey key, byte[] response) {
+        byte[] uri = key.getUri().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = key.getPayload();
+        int length = 1 + 8 + 8 + 4 + uri.length + 4 + 4 + (payload == null ? 0 : payload.length)
+                + (response == null ? 0 : 4 + response.length);
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(type).putLong(arrival).putLong(maxAge);
+        body.putInt(uri.length).put(uri);
+        body.putInt(key.getMediaType());
+        if (payload == null) {
+            body.putInt(-1);
+        } else {
+            body.putInt(payload.length).put(payload);
+        }
+        if (response != null) {
+            body.putInt(response.length).put(response);
+        }
+        return body.array();
+    }
+
+    private static CacheKey readKey(ByteBuffer body) {
+        byte[] uri = new byte[body.getInt()];
+        body.get(uri);
+        int mediaType = body.getInt();
+        int payloadLength = body.getInt();
+        byte[] payload = null;
+        if (payloadLength >= 0) {
+            payload = new byte[payloadLength];
+            body.get(payload);
+        }
+        return CacheKey.of(new String(uri, StandardCharsets.UTF_8), mediaType, payload);
+    }
+
+    private Segment openSegment(long number) throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + String.format("%010d", number) + SEGMENT_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            return new Segment(number, file, buffer);
+        }
+    }
+
+    /**
+     * Drops the reference of the store to the segment, whose file is deleted
+     * once the readers using it are done.
+     */
+    private static void deleteSegment(Segment segment) {
+        segment.release();
+    }
+
+    private synchronized void remove(CacheKey key, Location location) {
+        if (index.remove(key, location)) {
+            variants.remove(key);
+        }
+    }
+
+    private boolean isExpired(long arrival, long maxAge) {
+        long expiry = arrival + TimeUnit.SECONDS.toMillis(maxAge + maxStaleness);
+        return expiry <= System.currentTimeMillis();
+    }
+
+    private static long toWallClock(long nanoTime) {
+        return System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
+    private static long toNanoTime(long wallClock) {
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - wallClock);
+    }
+
+    private static final class Segment {
+        private final long number;
+        private final File file;
+        // appended to, its position guarded by the store
+        private final MappedByteBuffer buffer;
+        // read with absolute reads only, without the lock
+        private final ByteBuffer reader;
+        // the readers and the store itself, the file is deleted at zero
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Segment(long number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+            this.reader = buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return false if the segment was dropped
+         */
+        private boolean acquire() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0 && !file.delete()) {
+                LOGGER.warning("Cannot delete cache segment " + file);
+            }
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final long arrival;
+        private final long maxAge;
+
+        private Location(Segment segment, int offset, long arrival, long maxAge) {
+            this.segment = segment;
+            this.offset = offset;
+            this.arrival = arrival;
+            this.maxAge = maxAge;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterators;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Engine splitting its budget into partitions, such as one per upstream
+ * server, so that the entries of one partition never evict those of
+ * another.
+ * <p>
+ * Each partition is an engine of its own with its own quota. The entries a
+ * partition evicts for size are moved to an overflow pool shared by all
+ * partitions, where they stay available until the pool evicts them in turn;
+ * only then are they reported as evicted. A burst of one partition therefore
+ * competes with the others for the pool only, never for their quotas.
+ * <p>
+ * Partitions are created when their first entry is put and kept, as are
+ * their statistics. Partitions with a quota of their own always get one; the
+ * others only up to a number of them, beyond which they all share the
+ * partition {@value #SHARED_PARTITION}, so that the memory of the engine
+ * stays bounded however many partitions its keys spread over. Requests
+ * counted for a partition not created yet count for the shared one.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class PartitionedCacheEngine<K, V> implements CacheEngine<K, V> {
+
+    private static final Logger LOGGER = Logger.getLogger(PartitionedCacheEngine.class.getName());
+
+    /**
+     * The name of the partition shared by the partitions beyond the maximum
+     * number of them.
+     */
+    public static final String SHARED_PARTITION = "*";
+
+    private final Function<? super K, String> partitioner;
+    private final Map<String, Long> quotas;
+    private final long defaultMaximum;
+    private final int maxPartitions;
+    private final Policy policy;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long expireAfterWrite;
+    private final TimeUnit unit;
+    private final RemovalListener<K, V> listener;
+
+    private final ConcurrentMap<String, Partition<K, V>> partitions = new ConcurrentHashMap<String, Partition<K, V>>();
+    private final Partition<K, V> shared;
+    // the partitions created without a quota of their own, guarded by partitions
+    private int partitionCount;
+    private final CacheEngine<K, V> overflow;
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final Map<K, V> view = new UnionView();
+
+    /**
+     * Creates an engine.
+     *
+     * @param partitioner      gives the partition of a key
+     * @param quotas           the maximum number of entries of the
+     *                         partitions with a quota of their own, or their
+     *                         maximum weight if a weigher is given, see
+     *                         {@link #parseQuotas(String)}
+     * @param defaultMaximum   the maximum of the other partitions, likewise
+     * @param maxPartitions    the number of partitions created without a
+     *                         quota of their own before the others share one
+     * @param overflowMaximum  the maximum of the overflow pool, likewise
+     * @param policy           the policy of the partitions and the pool
+     * @param weigher          weighs the entries, null to count them
+     * @param expireAfterWrite the time after which entries are removed
+     * @param unit             the unit of that time
+     * @param listener         receives the removed entries
+     */
+    public PartitionedCacheEngine(Function<? super K, String> partitioner, Map<String, Long> quotas,
+                                  long defaultMaximum, int maxPartitions, long overflowMaximum, Policy policy,
+                                  Weigher<? super K, ? super V> weigher, long expireAfterWrite, TimeUnit unit,
+                                  RemovalListener<K, V> listener) {
+        this.partitioner = partitioner;
+        this.quotas = quotas;
+        this.defaultMaximum = defaultMaximum;
+        this.maxPartitions = maxPartitions;
+        this.policy = policy;
+        this.weigher = weigher;
+        this.expireAfterWrite = expireAfterWrite;
+        this.unit = unit;
+        this.listener = listener;
+        this.overflow = policy.create(overflowMaximum, weigher, expireAfterWrite, unit, this::onOverflowRemoval);
+        this.shared = createPartition(SHARED_PARTITION);
+        partitions.put(SHARED_PARTITION, shared);
+    }
+
+    /**
+     * Parses per-partition quotas from a list separated by semicolons, each
+     * being a partition name followed by its maximum, e.g.
+     * {@code [fd00::12] 100; sensors.local:5684 2000}. Invalid quotas are
+     * logged and skipped.
+     *
+     * @param quotas the quotas, may be null or empty
+     * @return the maximum of each partition with a quota
+     */
+    public static Map<String, Long> parseQuotas(String quotas) {
+        Map<String, Long> parsed = new HashMap<String, Long>();
+        if (quotas != null) {
+            for (String quota : quotas.split(";")) {
+                String[] fields = quota.trim().split("\\s+");
+                if (fields.length == 1 && fields[0].isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (fields.length != 2) {
+                        throw new IllegalArgumentException("expected <partition> <maximum>");
+                    }
+                    parsed.put(fields[0].toLowerCase(), Long.parseLong(fields[1]));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Ignoring invalid cache partition quota '" + quota.trim() + "': " + e.getMessage());
+                }
+            }
+        }
+        return parsed;
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        Partition<K, V> partition = existing(key);
+        V value = partition.engine.getIfPresent(key);
+        if (value == null) {
+            value = overflow.getIfPresent(key);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        create(key).engine.put(key, value);
+        dropOverflow(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        V current = overflow.asMap().get(key);
+        if (current != null) {
+            return current;
+        }
+        return create(key).engine.putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return existing(key).engine.replace(key, oldValue, newValue) || overflow.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public void invalidate(K key) {
+        existing(key).engine.invalidate(key);
+        overflow.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll(Iterable<? extends K> keys) {
+        for (K key : keys) {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (Partition<K, V> partition : partitions.values()) {
+            partition.engine.invalidateAll();
+        }
+        overflow.invalidateAll();
+    }
+
+    @Override
+    public Map<K, V> asMap() {
+        return view;
+    }
+
+    @Override
+    public long size() {
+        long size = overflow.size();
+        for (Partition<K, V> partition : partitions.values()) {
+            size += partition.engine.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * Counts a request for an entry of a partition, served from the cache or
+     * not. Lookups are counted by the owner of the engine since a request may
+     * take several lookups, or none. The request of a partition not created
+     * yet is counted for the shared one.
+     */
+    public void recordRequest(String partition, boolean hit) {
+        Partition<K, V> counted = partitions.get(partition);
+        if (counted == null) {
+            counted = shared;
+        }
+        (hit ? counted.hitCount : counted.missCount).increment();
+    }
+
+    /**
+     * Gets the statistics of the partitions, ordered by name.
+     */
+    public List<PartitionStats> getPartitionStats() {
+        List<PartitionStats> stats = new ArrayList<PartitionStats>(partitions.size());
+        for (Partition<K, V> partition : partitions.values()) {
+            stats.add(new PartitionStats(partition.name, partition.quota, partition.engine.size(),
+                    partition.hitCount.sum(), partition.missCount.sum(), partition.overflowCount.sum()));
+        }
+        stats.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return stats;
+    }
+
+    /**
+     * Gets the number of entries in the overflow pool.
+     */
+    public long getOverflowSize() {
+        return overflow.size();
+    }
+
+    /**
+     * Gets the partition holding the entry of a key, if any.
+     */
+    private Partition<K, V> existing(K key) {
+        Partition<K, V> partition = partitions.get(partitioner.apply(key));
+        return partition != null ? partition : shared;
+    }
+
+    /**
+     * Gets the partition to put the entry of a key in, creating it if there
+     * are not too many partitions already. Once the maximum is reached, it
+     * stays reached, so the entries of a partition never move to another.
+     */
+    private Partition<K, V> create(K key) {
+        String name = partitioner.apply(key);
+        Partition<K, V> partition = partitions.get(name);
+        if (partition != null) {
+            return partition;
+        }
+        if (quotas.containsKey(name)) {
+            return partitions.computeIfAbsent(name, this::createPartition);
+        }
+        synchronized (partitions) {
+            partition = partitions.get(name);
+            if (partition == null) {
+                if (partitionCount >= maxPartitions) {
+                    return shared;
+                }
+                partition = createPartition(name);
+                partitions.put(name, partition);
+                partitionCount++;
+            }
+            return partition;
+        }
+    }
+
+    private Partition<K, V> createPartition(String name) {
+        long quota = quotas.getOrDefault(name, defaultMaximum);
+        Partition<K, V> partition = new Partition<K, V>(name, quota);
+        partition.engine = policy.create(quota, weigher, expireAfterWrite, unit,
+                (key, value, cause) -> onPartitionRemoval(partition, key, value, cause));
+        return partition;
+    }
+
+    private void onPartitionRemoval(Partition<K, V> partition, K key, V value, RemovalCause cause) {
+        if (cause == RemovalCause.SIZE) {
+            // still cached, in the pool
+            partition.overflowCount.increment();
+            overflow.put(key, value);
+            return;
+        }
+        if (isEviction(cause)) {
+            evictionCount.increment();
+        }
+        listener.onRemoval(key, value, cause);
+    }
+
+    private void onOverflowRemoval(K key, V value, RemovalCause cause) {
+        if (existing(key).engine.asMap().containsKey(key)) {
+            // superseded by the entry put in the partition
+            cause = RemovalCause.REPLACED;
+        }
+        if (isEviction(cause)) {
+            evictionCount.increment();
+        }
+        listener.onRemoval(key, value, cause);
+    }
+
+    private static boolean isEviction(RemovalCause cause) {
+        return cause == RemovalCause.SIZE || cause == RemovalCause.EXPIRED || cause == RemovalCause.COLLECTED;
+    }
+
+    /**
+     * Removes the copy of an entry left in the pool by an earlier eviction,
+     * unless the partition just evicted the given entry itself to the pool.
+     */
+    private void dropOverflow(K key, V value) {
+        V stale = overflow.asMap().get(key);
+        if (stale != null && stale != value) {
+            overflow.invalidate(key);
+        }
+    }
+
+    private static final class Partition<K, V> {
+        private final String name;
+        private final long quota;
+        private CacheEngine<K, V> engine;
+        private final LongAdder hitCount = new LongAdder();
+        private final LongAdder missCount = new LongAdder();
+        private final LongAdder overflowCount = new LongAdder();
+
+        private Partition(String name, long quota) {
+            this.name = name;
+            this.quota = quota;
+        }
+    }
+
+    /**
+     * Statistics of a partition.
+     */
+    public static final class PartitionStats {
+        private final String name;
+        private final long quota;
+        private final long size;
+        private final long hitCount;
+        private final long missCount;
+        private final long overflowCount;
+
+        PartitionStats(String name, long quota, long size, long hitCount, long missCount, long overflowCount) {
+            this.name = name;
+            this.quota = quota;
+            this.size = size;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.overflowCount = overflowCount;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getQuota() {
+            return quota;
+        }
+
+        /**
+         * @return the number of entries within the quota, not counting those
+         * moved to the overflow pool
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public double getHitRate() {
+            long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+        }
+
+        /**
+         * @return the number of entries moved to the overflow pool
+         */
+        public long getOverflowCount() {
+            return overflowCount;
+        }
+    }
+
+    /**
+     * Read-only view of the entries of the partitions and the pool.
+     */
+    private final class UnionView extends AbstractMap<K, V> {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(Object key) {
+            V value = existing((K) key).engine.asMap().get(key);
+            return value != null ? value : overflow.asMap().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, PartitionedCacheEngine.this.size());
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    List<Iterator<Entry<K, V>>> iterators = new ArrayList<Iterator<Entry<K, V>>>(partitions.size() + 1);
+                    for (Partition<K, V> partition : partitions.values()) {
+                        iterators.add(partition.engine.asMap().entrySet().iterator());
+                    }
+                    iterators.add(overflow.asMap().entrySet().iterator());
+                    return Iterators.unmodifiableIterator(Iterators.concat(iterators.iterator()));
+                }
+
+                @Override
+                public int size() {
+                    return UnionView.this.size();
+                }
+            };
+        }
+    }
+}
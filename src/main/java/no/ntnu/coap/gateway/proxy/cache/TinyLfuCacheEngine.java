@@ -0,0 +1,372 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Engine with the W-TinyLFU policy, which keeps frequently used entries when
+ * many entries are used only once, as with scans.
+ * <p>
+ * New entries go to a small LRU window (1% of the capacity). Entries leaving
+ * the window are candidates for the main space, a segmented LRU of a
+ * probation and a protected (80%) segment. When the main space is full, a
+ * candidate is admitted only if it was used more often than the victim, the
+ * least recently used entry of the probation segment; the frequencies are
+ * estimated with a {@link FrequencySketch}. An entry used again while in
+ * probation moves to the protected segment.
+ * <p>
+ * Reads are lock-free, their accesses are applied to the policy only when
+ * its lock is free and dropped otherwise. Writes take the lock. Expired
+ * entries are removed when they are read.
+ */
+public class TinyLfuCacheEngine<K, V> implements CacheEngine<K, V> {
+
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private enum Segment {WINDOW, PROBATION, PROTECTED}
+
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long expireNanos;
+    private final RemovalListener<K, V> listener;
+
+    private final ConcurrentMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+    private final LongAdder evictionCount = new LongAdder();
+
+    // guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<K, Node<K, V>>(16, 0.75f, true);
+    private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<K, Node<K, V>>(16, 0.75f, true);
+    private final LinkedHashMap<K, Node<K, V>> protectedSegment = new LinkedHashMap<K, Node<K, V>>(16, 0.75f, true);
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    public TinyLfuCacheEngine(long maximum, Weigher<? super K, ? super V> weigher, long expireAfterWrite,
+                              TimeUnit unit, RemovalListener<K, V> listener) {
+        if (maximum < 1) {
+            throw new IllegalArgumentException("maximum < 1");
+        }
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1, (long) (maximum * WINDOW_SHARE));
+        this.protectedMaximum = (long) ((maximum - windowMaximum) * PROTECTED_SHARE);
+        this.weigher = weigher;
+        this.expireNanos = unit.toNanos(expireAfterWrite);
+        this.listener = listener;
+
+        // with weights, the number of entries is not known in advance
+        sketch.ensureCapacity(weigher == null ? maximum : 1024);
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (System.nanoTime() - node.writeTime >= expireNanos) {
+            remove(key, node, RemovalCause.EXPIRED);
+            return null;
+        }
+
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                onAccess(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        put(key, value, false);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return put(key, value, true);
+    }
+
+    private V put(K key, V value, boolean onlyIfAbsent) {
+        List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+        V current = null;
+        lock.lock();
+        try {
+            sketch.increment(key);
+            Node<K, V> node = data.get(key);
+            if (node != null && System.nanoTime() - node.writeTime >= expireNanos) {
+                unlink(node);
+                data.remove(key, node);
+                removed.add(node.removed(RemovalCause.EXPIRED));
+                node = null;
+            }
+
+            if (node != null) {
+                if (onlyIfAbsent) {
+                    current = node.value;
+                    onAccess(node);
+                } else {
+                    update(node, value, removed);
+                }
+            } else {
+                node = new Node<K, V>(key, value, weigh(key, value), System.nanoTime());
+                data.put(key, node);
+                node.segment = Segment.WINDOW;
+                window.put(key, node);
+                windowWeight += node.weight;
+                if (weigher != null) {
+                    sketch.ensureCapacity(data.size());
+                }
+            }
+            evict(removed);
+        } finally {
+            lock.unlock();
+        }
+        notifyRemovals(removed);
+        return current;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+        lock.lock();
+        try {
+            Node<K, V> node = data.get(key);
+            if (node == null || !node.value.equals(oldValue)) {
+                return false;
+            }
+            update(node, newValue, removed);
+            evict(removed);
+        } finally {
+            lock.unlock();
+        }
+        notifyRemovals(removed);
+        return true;
+    }
+
+    private void update(Node<K, V> node, V value, List<Node<K, V>> removed) {
+        removed.add(new Node<K, V>(node.key, node.value, node.weight, node.writeTime).removed(RemovalCause.REPLACED));
+        int weight = weigh(node.key, value);
+        addWeight(node.segment, weight - node.weight);
+        node.value = value;
+        node.weight = weight;
+        node.writeTime = System.nanoTime();
+        onAccess(node);
+    }
+
+    @Override
+    public void invalidate(K key) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            remove(key, node, RemovalCause.EXPLICIT);
+        }
+    }
+
+    @Override
+    public void invalidateAll(Iterable<? extends K> keys) {
+        for (K key : keys) {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        invalidateAll(new ArrayList<K>(data.keySet()));
+    }
+
+    @Override
+    public Map<K, V> asMap() {
+        return Collections.unmodifiableMap(Maps.transformValues(data, node -> node.value));
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    private void remove(K key, Node<K, V> node, RemovalCause cause) {
+        lock.lock();
+        try {
+            if (!data.remove(key, node)) {
+                return;
+            }
+            unlink(node);
+        } finally {
+            lock.unlock();
+        }
+        notifyRemovals(Collections.singletonList(node.removed(cause)));
+    }
+
+    /**
+     * Moves the node to the most recently used end of its segment, promoting
+     * it from probation to the protected segment.
+     */
+    private void onAccess(Node<K, V> node) {
+        if (node.segment == null) {
+            // removed meanwhile
+            return;
+        }
+        switch (node.segment) {
+            case WINDOW:
+                window.get(node.key);
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                probationWeight -= node.weight;
+                node.segment = Segment.PROTECTED;
+                protectedSegment.put(node.key, node);
+                protectedWeight += node.weight;
+
+                // demote the least recently used protected entries
+                while (protectedWeight > protectedMaximum && protectedSegment.size() > 1) {
+                    Node<K, V> demoted = removeEldest(protectedSegment);
+                    protectedWeight -= demoted.weight;
+                    demoted.segment = Segment.PROBATION;
+                    probation.put(demoted.key, demoted);
+                    probationWeight += demoted.weight;
+                }
+                break;
+            default:
+                protectedSegment.get(node.key);
+        }
+    }
+
+    /**
+     * Moves the entries overflowing the window to probation, then evicts
+     * until the weight is within the maximum, comparing each candidate from
+     * the window with the probation victim.
+     */
+    private void evict(List<Node<K, V>> removed) {
+        Deque<Node<K, V>> candidates = new ArrayDeque<Node<K, V>>();
+        while (windowWeight > windowMaximum && !window.isEmpty()) {
+            Node<K, V> candidate = removeEldest(window);
+            windowWeight -= candidate.weight;
+            candidate.segment = Segment.PROBATION;
+            probation.put(candidate.key, candidate);
+            probationWeight += candidate.weight;
+            candidates.addLast(candidate);
+        }
+
+        while (windowWeight + probationWeight + protectedWeight > maximum) {
+            Node<K, V> victim = eldest(probation);
+            if (victim == null) {
+                victim = eldest(protectedSegment);
+            }
+            if (victim == null) {
+                victim = eldest(window);
+            }
+
+            Node<K, V> evicted = victim;
+            Node<K, V> candidate = candidates.peekFirst();
+            if (candidate != null && candidate != victim && !candidates.contains(victim)) {
+                // admit the candidate only if it is used more often
+                evicted = sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+            }
+            candidates.remove(evicted);
+
+            unlink(evicted);
+            data.remove(evicted.key, evicted);
+            evictionCount.increment();
+            removed.add(evicted.removed(RemovalCause.SIZE));
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.segment == null) {
+            return;
+        }
+        switch (node.segment) {
+            case WINDOW:
+                window.remove(node.key);
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                break;
+            default:
+                protectedSegment.remove(node.key);
+        }
+        addWeight(node.segment, -node.weight);
+        node.segment = null;
+    }
+
+    private void addWeight(Segment segment, long delta) {
+        if (segment == Segment.WINDOW) {
+            windowWeight += delta;
+        } else if (segment == Segment.PROBATION) {
+            probationWeight += delta;
+        } else if (segment == Segment.PROTECTED) {
+            protectedWeight += delta;
+        }
+    }
+
+    private int weigh(K key, V value) {
+        return weigher != null ? weigher.weigh(key, value) : 1;
+    }
+
+    private void notifyRemovals(List<Node<K, V>> removed) {
+        for (Node<K, V> node : removed) {
+            listener.onRemoval(node.key, node.value, node.cause);
+        }
+    }
+
+    private static <K, V> Node<K, V> eldest(LinkedHashMap<K, Node<K, V>> segment) {
+        Iterator<Node<K, V>> iterator = segment.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private static <K, V> Node<K, V> removeEldest(LinkedHashMap<K, Node<K, V>> segment) {
+        Iterator<Node<K, V>> iterator = segment.values().iterator();
+        Node<K, V> eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private volatile long writeTime;
+        // guarded by the lock
+        private int weight;
+        private Segment segment;
+        private RemovalCause cause;
+
+        private Node(K key, V value, int weight, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = writeTime;
+        }
+
+        private Node<K, V> removed(RemovalCause cause) {
+            this.cause = cause;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of normalized URIs organized by their segments: the scheme and
+ * authority, then each path segment, then the query. It finds the URIs under
+ * a prefix in time proportional to the length of the prefix and the number
+ * of URIs found, instead of the number of URIs in the set.
+ * <p>
+ * A prefix matches on segment boundaries: "coap://host/sensors" matches
+ * "coap://host/sensors", "coap://host/sensors/1" and
+ * "coap://host/sensors?type=t" but not "coap://host/sensorsX", and
+ * "coap://host" matches every URI of the host.
+ */
+final class UriTrie {
+
+    private final Node root = new Node();
+
+    synchronized void add(String uri) {
+        Node node = root;
+        for (String segment : split(uri)) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        node.uri = uri;
+    }
+
+    synchronized void remove(String uri) {
+        List<String> segments = split(uri);
+        Deque<Node> path = new ArrayDeque<Node>(segments.size() + 1);
+        Node node = root;
+        path.push(node);
+        for (String segment : segments) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return;
+            }
+            path.push(node);
+        }
+        node.uri = null;
+
+        // prune the nodes left without URIs below them
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Node child = path.pop();
+            if (child.uri != null || !child.children.isEmpty()) {
+                break;
+            }
+            path.peek().children.remove(segments.get(i));
+        }
+    }
+
+    /**
+     * Gets the URIs under a prefix, see the class description.
+     */
+    synchronized List<String> getByPrefix(String prefix) {
+        List<String> uris = new ArrayList<String>();
+        List<String> segments = split(prefix);
+        // a trailing slash only closes the prefix
+        int length = segments.size();
+        if (length > 0 && segments.get(length - 1).isEmpty()) {
+            length--;
+        }
+
+        Node node = root;
+        for (int i = 0; i < length; i++) {
+            node = node.children.get(segments.get(i));
+            if (node == null) {
+                return uris;
+            }
+        }
+
+        Deque<Node> pending = new ArrayDeque<Node>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            Node next = pending.pop();
+            if (next.uri != null) {
+                uris.add(next.uri);
+            }
+            for (Node child : next.children.values()) {
+                pending.push(child);
+            }
+        }
+        return uris;
+    }
+
+    synchronized void clear() {
+        root.children.clear();
+        root.uri = null;
+    }
+
+    /**
+     * Splits a URI into its scheme and authority, its path segments and its
+     * query, which starts with '?'. A URI without scheme starts at its path.
+     */
+    static List<String> split(String uri) {
+        List<String> segments = new ArrayList<String>(8);
+        int queryStart = uri.indexOf('?');
+        int end = queryStart < 0 ? uri.length() : queryStart;
+
+        int start = 0;
+        int schemeEnd = uri.indexOf("://");
+        if (schemeEnd > 0 && schemeEnd < end) {
+            int authorityEnd = uri.indexOf('/', schemeEnd + 3);
+            if (authorityEnd < 0 || authorityEnd > end) {
+                authorityEnd = end;
+            }
+            segments.add(uri.substring(0, authorityEnd));
+            start = authorityEnd;
+        }
+
+        if (start < end) {
+            if (uri.charAt(start) == '/') {
+                start++;
+            }
+            while (true) {
+                int slash = uri.indexOf('/', start);
+                if (slash < 0 || slash > end) {
+                    segments.add(uri.substring(start, end));
+                    break;
+                }
+                segments.add(uri.substring(start, slash));
+                start = slash + 1;
+            }
+        }
+
+        if (queryStart >= 0) {
+            segments.add(uri.substring(queryStart));
+        }
+        return segments;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<String, Node>(4);
+        private String uri;
+    }
+}
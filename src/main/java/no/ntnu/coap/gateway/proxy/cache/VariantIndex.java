@@ -0,0 +1,79 @@
+package no.ntnu.coap.gateway.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary index of a response cache from the URI of a resource to the keys
+ * of its cached representations. It lets a request without an accept option
+ * probe only the representations that are actually cached, and lets all of
+ * them be invalidated at once. The URIs are also kept in a {@link UriTrie}, so
+ * that the keys of every resource under a URI prefix can be found without
+ * scanning the cache.
+ * <p>
+ * The index is maintained by the cache owner: {@link #add(CacheKey)} before
+ * inserting an entry and {@link #remove(CacheKey)} once it has been removed.
+ */
+public final class VariantIndex {
+
+    private final ConcurrentMap<String, Set<CacheKey>> variants = new ConcurrentHashMap<String, Set<CacheKey>>();
+    private final UriTrie uris = new UriTrie();
+
+    public void add(CacheKey key) {
+        variants.compute(key.getUri(), (uri, keys) -> {
+            if (keys == null) {
+                keys = ConcurrentHashMap.newKeySet(2);
+                uris.add(uri);
+            }
+            keys.add(key);
+            return keys;
+        });
+    }
+
+    public void remove(CacheKey key) {
+        variants.computeIfPresent(key.getUri(), (uri, keys) -> {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                uris.remove(uri);
+                return null;
+            }
+            return keys;
+        });
+    }
+
+    /**
+     * Gets the keys of the cached representations of a resource. The set is a
+     * live view and may change while iterated.
+     */
+    public Set<CacheKey> get(String uri) {
+        Set<CacheKey> keys = variants.get(uri);
+        return keys == null ? Collections.<CacheKey>emptySet() : keys;
+    }
+
+    /**
+     * Gets the keys of the cached representations of every resource under a
+     * normalized URI prefix, which matches on segment boundaries: the prefix
+     * "coap://host/sensors" covers "coap://host/sensors/1" but not
+     * "coap://host/sensorsX", and "coap://host" covers the whole host.
+     */
+    public List<CacheKey> getByPrefix(String prefix) {
+        List<CacheKey> keys = new ArrayList<CacheKey>();
+        for (String uri : uris.getByPrefix(prefix)) {
+            keys.addAll(get(uri));
+        }
+        return keys;
+    }
+
+    public void clear() {
+        variants.clear();
+        uris.clear();
+    }
+
+    public int size() {
+        return variants.size();
+    }
+}
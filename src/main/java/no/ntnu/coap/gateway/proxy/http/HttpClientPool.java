@@ -1,19 +1,28 @@
 package no.ntnu.coap.gateway.proxy.http;
 
+import no.ntnu.coap.gateway.proxy.jfr.HttpClientLeaseEvent;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.RequestAcceptEncoding;
 import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
 import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.NHttpClientConnection;
 import org.apache.http.nio.reactor.ConnectingIOReactor;
 import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.*;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,6 +30,9 @@ public class HttpClientPool {
     private static final int KEEP_ALIVE = 5000;
     private static final Logger LOGGER = Logger.getLogger(HttpClientPool.class.getName());
 
+    // the connection managers of the clients created
+    private static final List<PoolingNHttpClientConnectionManager> connManagers = new CopyOnWriteArrayList<>();
+
     /**
      * DefaultHttpClient is thread safe. It is recommended that the same
      * instance of this class is reused for multiple request executions.
@@ -68,6 +80,21 @@ public class HttpClientPool {
         }
     }
 
+    /**
+     * Gets the connection statistics of all clients created, summed up.
+     */
+    public static PoolStats getTotalStats() {
+        int leased = 0, pending = 0, available = 0, max = 0;
+        for (PoolingNHttpClientConnectionManager cm : connManagers) {
+            PoolStats stats = cm.getTotalStats();
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max += stats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
     private static RequestConfig createConnConfig() {
         return RequestConfig.custom()
                 .setConnectionRequestTimeout(5000)
@@ -79,10 +106,68 @@ public class HttpClientPool {
         IOReactorConfig config = IOReactorConfig.DEFAULT;
         ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(config);
 
-        PoolingNHttpClientConnectionManager cm = new PoolingNHttpClientConnectionManager(ioReactor);
+        PoolingNHttpClientConnectionManager cm = new RecordingConnManager(ioReactor);
         cm.setMaxTotal(50);
         cm.setDefaultMaxPerRoute(50);
+        connManagers.add(cm);
 
         return cm;
     }
+
+    /**
+     * Connection manager recording the leases of its connections as flight
+     * recorder events, while the events are enabled.
+     */
+    private static final class RecordingConnManager extends PoolingNHttpClientConnectionManager {
+
+        RecordingConnManager(ConnectingIOReactor ioReactor) {
+            super(ioReactor);
+        }
+
+        @Override
+        public Future<NHttpClientConnection> requestConnection(final HttpRoute route, Object state, long connectTimeout,
+                                                               long leaseTimeout, TimeUnit tunit,
+                                                               final FutureCallback<NHttpClientConnection> callback) {
+            final HttpClientLeaseEvent event = new HttpClientLeaseEvent();
+            if (!event.isEnabled()) {
+                return super.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, callback);
+            }
+
+            event.begin();
+            return super.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, new FutureCallback<NHttpClientConnection>() {
+                @Override
+                public void completed(NHttpClientConnection connection) {
+                    commit(true);
+                    if (callback != null) {
+                        callback.completed(connection);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    commit(false);
+                    if (callback != null) {
+                        callback.failed(e);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    commit(false);
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+
+                private void commit(boolean leased) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.route = route.toString();
+                        event.leased = leased;
+                        event.commit();
+                    }
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,319 @@
+package no.ntnu.coap.gateway.proxy.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import no.ntnu.coap.gateway.proxy.cache.CacheKey;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Cache of HTTP responses as sent to the clients, so that a request for a
+ * fresh cached response is answered without translating the request to CoAP
+ * and the response back to HTTP.
+ * <p>
+ * Responses are keyed by the HTTP method, request URI and Accept header, and
+ * hold the translated status line, headers and entity. Only 2.05 responses
+ * with an explicit positive max-age to GET requests with a proxy-uri are kept,
+ * and only until they expire; the proxy cache handles stale responses.
+ * Conditional requests and requests asking not to be answered from a cache go
+ * through the proxy. Nothing is kept nor answered while the proxy cache is
+ * disabled. The entries of a
+ * resource are dropped when the proxy cache stores, replaces or removes one of
+ * its responses, see {@link #invalidate(String)}.
+ */
+public class HttpResponseCache {
+
+    private static final Logger LOGGER = Logger.getLogger(HttpResponseCache.class.getName());
+
+    private static final String CACHE_CONTROL = "cache-control";
+    private static final String PRAGMA = "pragma";
+    private static final String IF_NONE_MATCH = "if-none-match";
+    private static final String IF_MODIFIED_SINCE = "if-modified-since";
+
+    private final Cache<RenderKey, Rendered> responses;
+
+    /**
+     * The keys of the responses of each resource, by the normalized CoAP URI
+     * of the resource.
+     */
+    private final ConcurrentMap<String, Set<RenderKey>> resources = new ConcurrentHashMap<String, Set<RenderKey>>();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final BooleanSupplier enabled;
+
+    /**
+     * Told the key of the CoAP request and the proxy-uri of the resource of
+     * each request answered, to count it as a hit of the proxy cache.
+     */
+    private final BiConsumer<CacheKey, String> hitListener;
+
+    /**
+     * Instantiates a new cache, always enabled.
+     *
+     * @param maximumSize the number of responses kept
+     */
+    public HttpResponseCache(long maximumSize) {
+        this(maximumSize, () -> true, null);
+    }
+
+    /**
+     * Instantiates a new cache.
+     *
+     * @param maximumSize the number of responses kept
+     * @param enabled     whether responses may be kept and answered, i.e.
+     *                    whether the proxy cache is enabled
+     * @param hitListener told the key of the CoAP request and the proxy-uri
+     *                    of the resource of each request answered, may be
+     *                    null
+     */
+    public HttpResponseCache(long maximumSize, BooleanSupplier enabled, BiConsumer<CacheKey, String> hitListener) {
+        responses = CacheBuilder.newBuilder().maximumSize(maximumSize).removalListener(this::onRemoval).build();
+        this.enabled = enabled;
+        this.hitListener = hitListener;
+    }
+
+    private void onRemoval(RemovalNotification<RenderKey, Rendered> notification) {
+        if (notification.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+
+        Rendered rendered = notification.getValue();
+        Set<RenderKey> keys = resources.get(rendered.cacheKey.getUri());
+        if (keys != null) {
+            keys.remove(notification.getKey());
+            if (keys.isEmpty()) {
+                resources.remove(rendered.cacheKey.getUri(), keys);
+            }
+        }
+    }
+
+    /**
+     * Answers the request if a fresh response to it is cached.
+     *
+     * @param httpRequest  the request
+     * @param httpResponse the response to fill
+     * @return true if the response was filled
+     */
+    public boolean respond(HttpRequest httpRequest, HttpResponse httpResponse) {
+        if (!enabled.getAsBoolean() || !isCacheable(httpRequest)) {
+            return false;
+        }
+
+        RenderKey key = new RenderKey(httpRequest);
+        Rendered rendered = responses.getIfPresent(key);
+        if (rendered == null) {
+            return false;
+        }
+
+        long secondsLeft = rendered.getRemainingLifetime(System.nanoTime());
+        if (secondsLeft <= 0) {
+            responses.asMap().remove(key, rendered);
+            return false;
+        }
+
+        httpResponse.setStatusLine(rendered.statusLine);
+        httpResponse.setHeaders(rendered.headers);
+        httpResponse.setHeader(CACHE_CONTROL, "max-age=" + secondsLeft);
+        if (rendered.entity != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(rendered.entity);
+            entity.setContentType(rendered.contentType);
+            httpResponse.setEntity(entity);
+        }
+        hitCount.increment();
+        if (hitListener != null) {
+            hitListener.accept(rendered.cacheKey, rendered.proxyUri);
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a request may be answered from this cache: not if it is
+     * conditional, as its validators are checked upstream, nor if it asks for
+     * a response from the origin server.
+     */
+    private static boolean isCacheable(HttpRequest httpRequest) {
+        if (httpRequest.containsHeader(IF_NONE_MATCH) || httpRequest.containsHeader(IF_MODIFIED_SINCE)) {
+            return false;
+        }
+        for (Header header : httpRequest.getHeaders(CACHE_CONTROL)) {
+            String value = header.getValue().toLowerCase();
+            if (value.contains("no-cache") || value.contains("no-store") || value.contains("max-age=0")) {
+                return false;
+            }
+        }
+        for (Header header : httpRequest.getHeaders(PRAGMA)) {
+            if (header.getValue().toLowerCase().contains("no-cache")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the translated response to the request if it can be used for
+     * later requests.
+     *
+     * @param httpRequest  the request
+     * @param coapRequest  the request as forwarded
+     * @param coapResponse the response as received
+     * @param httpResponse the translated response
+     */
+    public void put(HttpRequest httpRequest, Request coapRequest, Response coapResponse, HttpResponse httpResponse) {
+        // the getter falls back to the default max-age, which the proxy cache
+        // applies itself; only an explicit one is trusted here
+        if (!enabled.getAsBoolean() || coapRequest.getCode() != Code.GET
+                || coapResponse.getCode() != ResponseCode.CONTENT || !coapResponse.getOptions().hasMaxAge()
+                || !coapRequest.getOptions().hasProxyUri()) {
+            return;
+        }
+        long maxAge = coapResponse.getOptions().getMaxAge();
+        if (maxAge <= 0) {
+            return;
+        }
+
+        byte[] entity = null;
+        String contentType = null;
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if (httpEntity != null) {
+            if (!httpEntity.isRepeatable()) {
+                return;
+            }
+            try {
+                entity = EntityUtils.toByteArray(httpEntity);
+            } catch (IOException e) {
+                LOGGER.warning("Cannot buffer the response entity: " + e.getMessage());
+                return;
+            }
+            contentType = httpEntity.getContentType() != null ? httpEntity.getContentType().getValue() : null;
+        }
+
+        // the max-age is set on each hit
+        List<Header> headers = new ArrayList<Header>();
+        for (Header header : httpResponse.getAllHeaders()) {
+            if (!header.getName().equalsIgnoreCase(CACHE_CONTROL)) {
+                headers.add(header);
+            }
+        }
+
+        CacheKey cacheKey = CacheKey.fromRequest(coapRequest, coapRequest.getOptions().getAccept());
+        RenderKey key = new RenderKey(httpRequest);
+        Rendered rendered = new Rendered(cacheKey, coapRequest.getOptions().getProxyUri(),
+                httpResponse.getStatusLine(), headers.toArray(new Header[0]),
+                entity, contentType, System.nanoTime() + TimeUnit.SECONDS.toNanos(maxAge));
+
+        resources.computeIfAbsent(cacheKey.getUri(), uri -> ConcurrentHashMap.newKeySet()).add(key);
+        responses.put(key, rendered);
+    }
+
+    /**
+     * Drops the responses of a resource.
+     *
+     * @param resourceUri the normalized CoAP URI of the resource, see
+     *                    {@link CacheKey#getUri(Request)}, or null to drop
+     *                    all responses
+     */
+    public void invalidate(String resourceUri) {
+        if (resourceUri == null) {
+            responses.invalidateAll();
+            return;
+        }
+
+        Set<RenderKey> keys = resources.get(resourceUri);
+        if (keys != null) {
+            responses.invalidateAll(keys);
+        }
+    }
+
+    /**
+     * @return the number of requests answered from this cache
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long size() {
+        return responses.size();
+    }
+
+    private static final class RenderKey {
+        private final String method;
+        private final String uri;
+        private final String accept;
+        private final int hash;
+
+        private RenderKey(HttpRequest httpRequest) {
+            this.method = httpRequest.getRequestLine().getMethod().toUpperCase();
+            this.uri = httpRequest.getRequestLine().getUri();
+            Header acceptHeader = httpRequest.getFirstHeader("accept");
+            this.accept = acceptHeader != null ? acceptHeader.getValue() : "";
+            this.hash = 31 * (31 * method.hashCode() + uri.hashCode()) + accept.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof RenderKey)) {
+                return false;
+            }
+            RenderKey other = (RenderKey) obj;
+            return hash == other.hash && method.equals(other.method) && uri.equals(other.uri)
+                    && accept.equals(other.accept);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Rendered {
+        private final CacheKey cacheKey;
+        private final String proxyUri;
+        private final StatusLine statusLine;
+        private final Header[] headers;
+        private final byte[] entity;
+        private final String contentType;
+        private final long expiry;
+
+        private Rendered(CacheKey cacheKey, String proxyUri, StatusLine statusLine, Header[] headers,
+                         byte[] entity, String contentType, long expiry) {
+            this.cacheKey = cacheKey;
+            this.proxyUri = proxyUri;
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.entity = entity;
+            this.contentType = contentType;
+            this.expiry = expiry;
+        }
+
+        private long getRemainingLifetime(long now) {
+            return TimeUnit.NANOSECONDS.toSeconds(expiry - now);
+        }
+    }
+}
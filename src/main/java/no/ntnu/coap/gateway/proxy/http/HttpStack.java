@@ -19,6 +19,7 @@ package no.ntnu.coap.gateway.proxy.http;
 
 import no.ntnu.coap.gateway.proxy.http.requesthandlers.BaseRequestHandler;
 import no.ntnu.coap.gateway.proxy.http.requesthandlers.ProxyAsyncRequestHandler;
+import no.ntnu.coap.gateway.proxy.stats.RequestTimingStats;
 import org.apache.http.*;
 import org.apache.http.client.protocol.RequestAcceptEncoding;
 import org.apache.http.client.protocol.ResponseContentEncoding;
@@ -30,6 +31,7 @@ import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
 import org.apache.http.nio.NHttpConnectionFactory;
 import org.apache.http.nio.protocol.*;
 import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.ListenerEndpoint;
 import org.apache.http.nio.reactor.ListeningIOReactor;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.CoreProtocolPNames;
@@ -76,6 +78,8 @@ public class HttpStack {
     private ListeningIOReactor ioReactor;
     private final IOEventDispatch ioEventDispatch;
     private final int httpPort;
+    private ListenerEndpoint listenerEndpoint;
+    private final HttpAsyncRequestHandlerRegistry registry;
 
     /**
      * Instantiates a new http stack on the requested port. It creates an http
@@ -85,6 +89,35 @@ public class HttpStack {
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public HttpStack(int httpPort, RequestHandler requestHandler) throws IOException {
+        this(httpPort, requestHandler, null);
+    }
+
+    /**
+     * Instantiates a new http stack on the requested port. It creates an http
+     * listener thread on the port.
+     *
+     * @param httpPort      the http port
+     * @param responseCache answers the proxy requests it holds a response
+     *                      for, may be null
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HttpStack(int httpPort, RequestHandler requestHandler, HttpResponseCache responseCache) throws IOException {
+        this(httpPort, requestHandler, responseCache, null);
+    }
+
+    /**
+     * Instantiates a new http stack on the requested port. It creates an http
+     * listener thread on the port.
+     *
+     * @param httpPort      the http port
+     * @param responseCache answers the proxy requests it holds a response
+     *                      for, may be null
+     * @param timingStats   gathers the time the proxy requests spend in each
+     *                      stage, null to not time them
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HttpStack(int httpPort, RequestHandler requestHandler, HttpResponseCache responseCache,
+                     RequestTimingStats timingStats) throws IOException {
         this.httpPort = httpPort;
 
         // HTTP parameters for the server
@@ -103,10 +136,10 @@ public class HttpStack {
         HttpProcessor httpProcessor = new ImmutableHttpProcessor(requestInterceptors, responseInterceptors);
 
         // Create request handler registry
-        HttpAsyncRequestHandlerRegistry registry = new HttpAsyncRequestHandlerRegistry();
+        registry = new HttpAsyncRequestHandlerRegistry();
 
         // register the handler that will reply to the proxy requests
-        registry.register("/" + PROXY_RESOURCE_NAME + "/*", new ProxyAsyncRequestHandler(PROXY_RESOURCE_NAME, true, requestHandler));
+        registry.register("/" + PROXY_RESOURCE_NAME + "/*", new ProxyAsyncRequestHandler(PROXY_RESOURCE_NAME, true, requestHandler, responseCache, timingStats));
         // register the handler for the frontend
         registry.register("/" + LOCAL_RESOURCE_NAME + "/*", new ProxyAsyncRequestHandler(LOCAL_RESOURCE_NAME, false, requestHandler));
         // register the default handler for root URIs
@@ -126,9 +159,21 @@ public class HttpStack {
         ioReactor = new DefaultListeningIOReactor();
     }
 
+    /**
+     * Registers a handler for requests to the stack itself rather than to a
+     * CoAP resource, such as administration commands.
+     *
+     * @param pattern the URI pattern of the requests, see
+     *                {@link HttpAsyncRequestHandlerRegistry#register}
+     * @param handler the handler
+     */
+    void registerHandler(String pattern, HttpRequestHandler handler) {
+        registry.register(pattern, new BasicAsyncRequestHandler(handler));
+    }
+
     void start(final boolean isDaemon) {
         // Listen of the given port
-        ioReactor.listen(new InetSocketAddress(httpPort));
+        listenerEndpoint = ioReactor.listen(new InetSocketAddress(httpPort));
         LOGGER.info("HttpStack listening on port " + httpPort);
 
         if (isDaemon) {
@@ -150,6 +195,32 @@ public class HttpStack {
         }
     }
 
+    /**
+     * Gets the port the stack is bound to, which differs from the configured
+     * one when the stack was created on port 0. Blocks until the reactor has
+     * opened the socket.
+     *
+     * @return the local port, or -1 if the stack has not been started
+     * @throws IOException if the socket could not be bound
+     */
+    int getLocalPort() throws IOException {
+        if (listenerEndpoint == null) {
+            return -1;
+        }
+
+        try {
+            listenerEndpoint.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the listener", e);
+        }
+
+        if (listenerEndpoint.getException() != null) {
+            throw listenerEndpoint.getException();
+        }
+        return ((InetSocketAddress) listenerEndpoint.getAddress()).getPort();
+    }
+
     private void acceptConnections() {
 
         // Starts the reactor and initiates the dispatch of I/O
@@ -18,8 +18,14 @@
 package no.ntnu.coap.gateway.proxy.http;
 
 import no.ntnu.coap.gateway.proxy.ProxyCoapResolver;
+import no.ntnu.coap.gateway.proxy.ProxyProperties;
+import no.ntnu.coap.gateway.proxy.http.requesthandlers.CacheAdminRequestHandler;
+import no.ntnu.coap.gateway.proxy.http.requesthandlers.MetricsRequestHandler;
+import no.ntnu.coap.gateway.proxy.jfr.HttpExchangeEvent;
 import no.ntnu.coap.gateway.proxy.resources.ProxyCacheResource;
 import no.ntnu.coap.gateway.proxy.resources.StatsResource;
+import no.ntnu.coap.gateway.proxy.stats.RequestTiming;
+import no.ntnu.coap.gateway.proxy.stats.RequestTimingStats;
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
@@ -33,6 +39,7 @@ import java.io.IOException;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,9 +55,19 @@ public class ProxyHttpServer implements RequestHandler {
 
     private static final String PROXY_COAP_CLIENT = "proxy/coapClient";
     private static final String PROXY_HTTP_CLIENT = "proxy/httpClient";
+    private static final String ADMIN_CACHE_PATH = "/admin/cache*";
+    private static final String METRICS_PATH = "/metrics*";
 
     private final ProxyCacheResource cacheResource = new ProxyCacheResource(true);
     private final StatsResource statsResource = new StatsResource(cacheResource);
+    private final RequestTimingStats timingStats = new RequestTimingStats(
+            ProxyProperties.std.getInt("REQUEST_SLOW_THRESHOLD"), TimeUnit.MILLISECONDS,
+            ProxyProperties.std.getBool("HTTP_SERVER_TIMING"));
+
+    /**
+     * The translated responses to the proxy requests, null if disabled.
+     */
+    private final HttpResponseCache responseCache;
 
     private ProxyCoapResolver proxyCoapResolver;
     private HttpStack httpStack;
@@ -71,7 +88,20 @@ public class ProxyHttpServer implements RequestHandler {
      * @throws IOException the socket exception
      */
     public ProxyHttpServer(int httpPort) throws IOException {
-        this.httpStack = new HttpStack(httpPort, this);
+        int responseCacheSize = ProxyProperties.std.getInt("HTTP_RESPONSE_CACHE_SIZE");
+        if (responseCacheSize > 0) {
+            // its hits are hits of the proxy cache, which it only runs with
+            responseCache = new HttpResponseCache(responseCacheSize, cacheResource::isEnabled, (cacheKey, proxyUri) -> {
+                cacheResource.recordHit(cacheKey);
+                statsResource.updateStatistics(proxyUri, true);
+            });
+            cacheResource.setChangeListener(responseCache::invalidate);
+        } else {
+            responseCache = null;
+        }
+        this.httpStack = new HttpStack(httpPort, this, responseCache, timingStats);
+        this.httpStack.registerHandler(ADMIN_CACHE_PATH, new CacheAdminRequestHandler(cacheResource));
+        this.httpStack.registerHandler(METRICS_PATH, new MetricsRequestHandler(cacheResource, statsResource, responseCache, timingStats));
     }
 
     @Override
@@ -79,6 +109,9 @@ public class ProxyHttpServer implements RequestHandler {
 
         //LOGGER.info("ProxyEndpoint handles request " + request);
 
+        final long received = System.nanoTime();
+        final HttpExchangeEvent event = new HttpExchangeEvent();
+        event.begin();
         Exchange exchange = new Exchange(request, Origin.REMOTE) {
 
             @Override
@@ -98,8 +131,12 @@ public class ProxyHttpServer implements RequestHandler {
                 // TODO: When we change endpoint to be an interface, we can
                 // redirect the responses a little more elegantly.
                 try {
+                    // the time the request spent upstream, as cached
+                    // responses are not delivered here
+                    statsResource.updateStatistics(request, response, System.nanoTime() - received);
+                    commit(event, request, response, false);
                     request.setResponse(response);
-                    responseProduced(request, response);
+                    response = responseProduced(request, response);
                     context.handleRequestForwarding(response);
                 } catch (Exception e) {
                     LOGGER.log(Level.WARNING, "Exception while responding to Http request", e);
@@ -114,7 +151,12 @@ public class ProxyHttpServer implements RequestHandler {
         if (request.getType() != Type.RST && request.getType() != Type.ACK
                 && request.getOptions().hasProxyUri()) {
             // get the response from the cache
+            long lookup = System.nanoTime();
             response = cacheResource.getResponse(request);
+            RequestTiming timing = RequestTiming.of(request);
+            if (timing != null) {
+                timing.record(RequestTiming.Stage.CACHE, lookup);
+            }
 
             LOGGER.finer("Cache returned " + response);
 
@@ -125,8 +167,11 @@ public class ProxyHttpServer implements RequestHandler {
         // check if the response is present in the cache
         if (response != null) {
             // link the retrieved response with the request to set the
-            // parameters request-specific (i.e., token, id, etc)
-            exchange.sendResponse(response);
+            // parameters request-specific (i.e., token, id, etc); it is
+            // already cached, so it bypasses responseProduced
+            request.setResponse(response);
+            commit(event, request, response, true);
+            context.handleRequestForwarding(response);
         } else {
 
             // edit the request to be correctly forwarded if the proxy-uri is
@@ -155,6 +200,21 @@ public class ProxyHttpServer implements RequestHandler {
         }
     }
 
+    /**
+     * Commits the flight recorder event of an exchange, if enabled and over
+     * its threshold.
+     */
+    private static void commit(HttpExchangeEvent event, Request request, Response response, boolean cached) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = request.getCode().toString();
+            event.uri = request.getOptions().getProxyUri();
+            event.responseCode = response != null ? response.getCode().toString() : null;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+
     /**
      * Manage proxy uri request.
      *
@@ -185,17 +245,44 @@ public class ProxyHttpServer implements RequestHandler {
 
     }
 
-    protected void responseProduced(Request request, Response response) {
+    /**
+     * Caches the response to a forwarded request.
+     *
+     * @return the response to deliver, which is the cached one if the response
+     * validated it
+     */
+    protected Response responseProduced(Request request, Response response) {
         // check if the proxy-uri is defined
         if (request.getOptions().hasProxyUri()) {
             LOGGER.finer("Cache response");
             // insert the response in the cache
-            cacheResource.cacheResponse(request, response);
+            return cacheResource.cacheResponse(request, response);
         } else {
-            LOGGER.info("Do not cache response");
+            LOGGER.finer("Do not cache response");
+            return response;
         }
     }
 
+    /**
+     * Gets the cache of translated responses.
+     *
+     * @return the cache or null if disabled
+     */
+    public HttpResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Gets the statistics of the time the proxy requests spend in each stage.
+     */
+    public RequestTimingStats getTimingStats() {
+        return timingStats;
+    }
+
+    public ProxyCacheResource getCacheResource() {
+        return cacheResource;
+    }
+
     public ProxyCoapResolver getProxyCoapResolver() {
         return proxyCoapResolver;
     }
@@ -207,4 +294,15 @@ public class ProxyHttpServer implements RequestHandler {
     public void acceptConnections(final boolean isDeamon) {
         this.httpStack.start(isDeamon);
     }
+
+    /**
+     * Gets the port the server accepts connections on. Useful when the
+     * server was created on port 0 and the system picked a free port.
+     *
+     * @return the local port, or -1 if the server is not accepting connections
+     * @throws IOException if the server socket could not be bound
+     */
+    public int getPort() throws IOException {
+        return this.httpStack.getLocalPort();
+    }
 }
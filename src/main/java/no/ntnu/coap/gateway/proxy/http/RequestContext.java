@@ -3,6 +3,9 @@ package no.ntnu.coap.gateway.proxy.http;
 
 import no.ntnu.coap.gateway.proxy.HttpTranslator;
 import no.ntnu.coap.gateway.proxy.TranslationException;
+import no.ntnu.coap.gateway.proxy.log.AccessLog;
+import no.ntnu.coap.gateway.proxy.stats.RequestTiming;
+import no.ntnu.coap.gateway.proxy.stats.RequestTimingStats;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
@@ -23,9 +26,16 @@ import java.util.logging.Logger;
 public final class RequestContext {
     private final HttpAsyncExchange httpExchange;
     private final HttpRequest httpRequest;
+    private final HttpResponseCache responseCache;
+    private final RequestTiming timing;
+    private final RequestTimingStats timingStats;
+    private final long received = System.nanoTime();
+    private Request coapRequest;
 
     private static final Logger LOGGER = Logger.getLogger(RequestContext.class.getName());
 
+    private static final String SERVER_TIMING = "Server-Timing";
+
     /**
      * Instantiates a new coap response worker.
      *
@@ -33,9 +43,44 @@ public final class RequestContext {
      * @param httpRequest  the http request
      */
     public RequestContext(HttpAsyncExchange httpExchange, HttpRequest httpRequest) {
-        // super(name);
+        this(httpExchange, httpRequest, null);
+    }
+
+    /**
+     * Instantiates a new coap response worker.
+     *
+     * @param httpExchange  the http exchange
+     * @param httpRequest   the http request
+     * @param responseCache keeps the translated response, may be null
+     */
+    public RequestContext(HttpAsyncExchange httpExchange, HttpRequest httpRequest, HttpResponseCache responseCache) {
+        this(httpExchange, httpRequest, responseCache, null, null);
+    }
+
+    /**
+     * Instantiates a new coap response worker.
+     *
+     * @param httpExchange  the http exchange
+     * @param httpRequest   the http request
+     * @param responseCache keeps the translated response, may be null
+     * @param timing        the timing of the request, null if not timed
+     * @param timingStats   gathers the timing once the response is
+     *                      submitted, null if not timed
+     */
+    public RequestContext(HttpAsyncExchange httpExchange, HttpRequest httpRequest, HttpResponseCache responseCache,
+                          RequestTiming timing, RequestTimingStats timingStats) {
         this.httpExchange = httpExchange;
         this.httpRequest = httpRequest;
+        this.responseCache = responseCache;
+        this.timing = timingStats != null ? timing : null;
+        this.timingStats = timingStats;
+    }
+
+    /**
+     * Sets the coap request the http request was translated to.
+     */
+    public void setCoapRequest(Request coapRequest) {
+        this.coapRequest = coapRequest;
     }
 
     public void handleRequestForwarding(final Response coapResponse) {
@@ -48,11 +93,17 @@ public final class RequestContext {
         // get the sample http response
         HttpResponse httpResponse = httpExchange.getResponse();
 
+        long translation = System.nanoTime();
         try {
             // translate the coap response in an http response
             HttpTranslator.getHttpResponse(httpRequest, coapResponse, httpResponse);
+            if (responseCache != null && coapRequest != null) {
+                responseCache.put(httpRequest, coapRequest, coapResponse, httpResponse);
+            }
 
-            LOGGER.info("<-- " + httpRequest.getRequestLine().getUri() + " HTTP " + httpResponse.getStatusLine().getStatusCode());
+            if (timing != null) {
+                timing.record(RequestTiming.Stage.RESPOND, translation);
+            }
         } catch (TranslationException e) {
             LOGGER.warning("Failed to translate coap response to http response: " + e.getMessage());
             sendSimpleHttpResponse(HttpTranslator.STATUS_TRANSLATION_ERROR);
@@ -60,7 +111,7 @@ public final class RequestContext {
         }
 
         // send the response
-        httpExchange.submitResponse();
+        submitResponse(false);
     }
 
     /**
@@ -76,8 +127,29 @@ public final class RequestContext {
         StatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, httpCode, EnglishReasonPhraseCatalog.INSTANCE.getReason(httpCode, Locale.ENGLISH));
         httpResponse.setStatusLine(statusLine);
 
-        LOGGER.info("<-- HTTP " + httpCode + " for URL [" + httpRequest.getRequestLine().getUri() + "]");
         // send the error response
+        submitResponse(false);
+    }
+
+    /**
+     * Submits the response set on the exchange, after adding the timing of
+     * the request to it and to the statistics, and logging the request.
+     *
+     * @param cached whether the response was kept from an earlier request
+     */
+    public void submitResponse(boolean cached) {
+        HttpResponse httpResponse = httpExchange.getResponse();
+        AccessLog.getDefault().log(AccessLog.Kind.HTTP, httpRequest.getRequestLine().getMethod(),
+                httpRequest.getRequestLine().getUri(), httpResponse.getStatusLine().getStatusCode(), cached,
+                System.nanoTime() - received);
+
+        if (timing != null) {
+            timing.finish();
+            if (timingStats.isServerTimingEnabled()) {
+                httpResponse.setHeader(SERVER_TIMING, timing.toServerTiming());
+            }
+            timingStats.record(timing, httpRequest.getRequestLine().getMethod() + " " + httpRequest.getRequestLine().getUri());
+        }
         httpExchange.submitResponse();
     }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package no.ntnu.coap.gateway.proxy.http.requesthandlers;
+
+import no.ntnu.coap.gateway.proxy.resources.ProxyCacheResource;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.logging.Logger;
+
+/**
+ * The Class CacheAdminRequestHandler invalidates the cached responses of the
+ * resources under a URI prefix, given by the prefix parameter of a DELETE
+ * request, e.g. DELETE /admin/cache?prefix=coap://[fd00::12]/sensors/*. The
+ * translated HTTP responses are dropped along with them.
+ */
+public class CacheAdminRequestHandler implements HttpRequestHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(CacheAdminRequestHandler.class.getName());
+
+    private final ProxyCacheResource cacheResource;
+
+    public CacheAdminRequestHandler(ProxyCacheResource cacheResource) {
+        this.cacheResource = cacheResource;
+    }
+
+    @Override
+    public void handle(HttpRequest httpRequest, HttpResponse httpResponse, HttpContext httpContext) throws HttpException, IOException {
+        if (!"DELETE".equalsIgnoreCase(httpRequest.getRequestLine().getMethod())) {
+            httpResponse.setStatusCode(HttpStatus.SC_METHOD_NOT_ALLOWED);
+            httpResponse.setHeader("Allow", "DELETE");
+            return;
+        }
+
+        String prefix = getPrefix(httpRequest);
+        if (prefix == null || prefix.isEmpty()) {
+            httpResponse.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+            httpResponse.setEntity(new StringEntity("Missing prefix parameter"));
+            return;
+        }
+        if (prefix.endsWith("*")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+
+        int invalidated = cacheResource.invalidatePrefix(prefix);
+        httpResponse.setStatusCode(HttpStatus.SC_OK);
+        httpResponse.setEntity(new StringEntity("Invalidated " + invalidated + " values"));
+
+        LOGGER.info("Invalidated " + invalidated + " cached values under " + prefix);
+    }
+
+    private static String getPrefix(HttpRequest httpRequest) throws UnsupportedEncodingException {
+        // parsed by hand since IPv6 literals are often left unencoded
+        String uri = httpRequest.getRequestLine().getUri();
+        int queryStart = uri.indexOf('?');
+        if (queryStart < 0) {
+            return null;
+        }
+        for (String parameter : uri.substring(queryStart + 1).split("&")) {
+            if (parameter.startsWith("prefix=")) {
+                return URLDecoder.decode(parameter.substring("prefix=".length()), "UTF-8");
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,260 @@
+package no.ntnu.coap.gateway.proxy.http.requesthandlers;
+
+import com.google.common.cache.CacheStats;
+import no.ntnu.coap.gateway.proxy.EndPointManagerPool;
+import no.ntnu.coap.gateway.proxy.http.HttpClientPool;
+import no.ntnu.coap.gateway.proxy.http.HttpResponseCache;
+import no.ntnu.coap.gateway.proxy.log.AccessLog;
+import no.ntnu.coap.gateway.proxy.resources.CacheResource;
+import no.ntnu.coap.gateway.proxy.resources.StatsResource;
+import no.ntnu.coap.gateway.proxy.stats.ExchangeCounter;
+import no.ntnu.coap.gateway.proxy.stats.HeavyHitters;
+import no.ntnu.coap.gateway.proxy.stats.LatencyHistogram;
+import no.ntnu.coap.gateway.proxy.stats.OpenMetricsWriter;
+import no.ntnu.coap.gateway.proxy.stats.RequestTiming;
+import no.ntnu.coap.gateway.proxy.stats.RequestTimingStats;
+import no.ntnu.coap.gateway.proxy.stats.RouteStats;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The Class MetricsRequestHandler exposes the statistics of the proxy in the
+ * OpenMetrics text format, for Prometheus and compatible scrapers: the
+ * requests and upstream round-trip times per route, the time spent in each
+ * stage of the HTTP requests, the cache, the pool of CoAP endpoint managers,
+ * the HTTP client connections and the CoAP messages exchanged.
+ * <p>
+ * The metrics are read from the live counters on each scrape and encoded
+ * into a byte buffer of the thread handling it, reused across scrapes, so
+ * that concurrent scrapes do not wait for each other.
+ */
+public class MetricsRequestHandler implements HttpRequestHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsRequestHandler.class.getName());
+
+    private static final ContentType CONTENT_TYPE = ContentType.parse(OpenMetricsWriter.CONTENT_TYPE);
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    // the le labels of the round-trip time buckets, in seconds
+    private static final String[] BUCKET_BOUNDS;
+
+    static {
+        long[] bounds = LatencyHistogram.getBounds();
+        BUCKET_BOUNDS = new String[bounds.length + 1];
+        for (int i = 0; i < bounds.length; i++) {
+            BUCKET_BOUNDS[i] = BigDecimal.valueOf(bounds[i]).movePointLeft(9).stripTrailingZeros().toPlainString();
+        }
+        BUCKET_BOUNDS[bounds.length] = "+Inf";
+    }
+
+    private final CacheResource cacheResource;
+    private final StatsResource statsResource;
+    private final HttpResponseCache responseCache;
+    private final RequestTimingStats timingStats;
+
+    private final ThreadLocal<OpenMetricsWriter> writers = ThreadLocal.withInitial(() -> new OpenMetricsWriter(16 * 1024));
+
+    /**
+     * Creates a handler.
+     *
+     * @param responseCache the cache of translated responses, null if
+     *                      disabled
+     */
+    public MetricsRequestHandler(CacheResource cacheResource, StatsResource statsResource, HttpResponseCache responseCache) {
+        this(cacheResource, statsResource, responseCache, null);
+    }
+
+    /**
+     * Creates a handler.
+     *
+     * @param responseCache the cache of translated responses, null if
+     *                      disabled
+     * @param timingStats   the time of the stages of the HTTP requests, null
+     *                      if they are not timed
+     */
+    public MetricsRequestHandler(CacheResource cacheResource, StatsResource statsResource, HttpResponseCache responseCache,
+                                 RequestTimingStats timingStats) {
+        this.cacheResource = cacheResource;
+        this.statsResource = statsResource;
+        this.responseCache = responseCache;
+        this.timingStats = timingStats;
+    }
+
+    @Override
+    public void handle(HttpRequest httpRequest, HttpResponse httpResponse, HttpContext httpContext) throws HttpException, IOException {
+        OpenMetricsWriter writer = writers.get();
+        writer.reset();
+        writeRoutes(writer);
+        writeStages(writer);
+        writeCache(writer);
+        writePools(writer);
+        writeExchanges(writer);
+        writeAccessLog(writer);
+        writer.eof();
+        // the body is sent after the buffer is reused, so it is copied once
+        byte[] body = writer.toByteArray();
+
+        httpResponse.setStatusCode(HttpStatus.SC_OK);
+        httpResponse.setEntity(new ByteArrayEntity(body, CONTENT_TYPE));
+
+        LOGGER.finer("Metrics request handled");
+    }
+
+    private void writeRoutes(OpenMetricsWriter writer) {
+        // only the most requested routes are tracked, which also bounds the
+        // number of series
+        List<HeavyHitters.Entry<RouteStats>> routes = statsResource.getTopRoutes();
+
+        writer.family("coap_proxy_requests", "counter", "Requests per route since it is tracked, by whether the cache answered them.");
+        for (HeavyHitters.Entry<RouteStats> entry : routes) {
+            RouteStats route = entry.getValue();
+            writer.sample("coap_proxy_requests", "_total").label("address", route.getAddress())
+                    .label("resource", route.getResource()).label("cached", "true").value(route.getCachedCount());
+            writer.sample("coap_proxy_requests", "_total").label("address", route.getAddress())
+                    .label("resource", route.getResource()).label("cached", "false").value(route.getMissCount());
+        }
+
+        writer.family("coap_proxy_route_requests_estimated", "gauge", "Estimated requests per route, at most the error above the true count.");
+        for (HeavyHitters.Entry<RouteStats> entry : routes) {
+            RouteStats route = entry.getValue();
+            writer.sample("coap_proxy_route_requests_estimated").label("address", route.getAddress())
+                    .label("resource", route.getResource()).value(entry.getCount());
+        }
+        writer.family("coap_proxy_route_requests_error", "gauge", "Maximum error of the estimated requests per route.");
+        for (HeavyHitters.Entry<RouteStats> entry : routes) {
+            RouteStats route = entry.getValue();
+            writer.sample("coap_proxy_route_requests_error").label("address", route.getAddress())
+                    .label("resource", route.getResource()).value(entry.getError());
+        }
+
+        writer.family("coap_proxy_upstream_responses", "counter", "Responses from upstream per route and response code.");
+        for (HeavyHitters.Entry<RouteStats> entry : routes) {
+            RouteStats route = entry.getValue();
+            for (Map.Entry<ResponseCode, Long> code : route.getResponseCodes().entrySet()) {
+                writer.sample("coap_proxy_upstream_responses", "_total").label("address", route.getAddress())
+                        .label("resource", route.getResource()).label("code", code.getKey().toString())
+                        .value(code.getValue());
+            }
+        }
+
+        writer.family("coap_proxy_upstream_rtt_seconds", "histogram", "Round-trip time of the requests forwarded upstream per route.");
+        for (HeavyHitters.Entry<RouteStats> entry : routes) {
+            RouteStats route = entry.getValue();
+            LatencyHistogram histogram = route.getRoundTripTimes();
+            long[] counts = histogram.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                writer.sample("coap_proxy_upstream_rtt_seconds", "_bucket").label("address", route.getAddress())
+                        .label("resource", route.getResource()).label("le", BUCKET_BOUNDS[i]).value(cumulative);
+            }
+            writer.sample("coap_proxy_upstream_rtt_seconds", "_count").label("address", route.getAddress())
+                    .label("resource", route.getResource()).value(cumulative);
+            writer.sample("coap_proxy_upstream_rtt_seconds", "_sum").label("address", route.getAddress())
+                    .label("resource", route.getResource()).value(histogram.getSum() / NANOS_PER_SECOND);
+        }
+    }
+
+    private void writeStages(OpenMetricsWriter writer) {
+        if (timingStats == null) {
+            return;
+        }
+
+        writer.family("coap_proxy_request_stage_seconds", "histogram", "Time the HTTP requests spent in each stage of their handling.");
+        for (RequestTiming.Stage stage : RequestTiming.Stage.values()) {
+            writeHistogram(writer, "coap_proxy_request_stage_seconds", "stage", stage.getLabel(), timingStats.getHistogram(stage));
+        }
+        writer.family("coap_proxy_upstream_retransmissions", "counter", "Retransmissions of the CoAP requests forwarded upstream.");
+        writer.sample("coap_proxy_upstream_retransmissions", "_total").value(timingStats.getRetransmissionCount());
+        writer.family("coap_proxy_upstream_timeouts", "counter", "CoAP requests forwarded upstream that timed out.");
+        writer.sample("coap_proxy_upstream_timeouts", "_total").value(timingStats.getTimeoutCount());
+        writer.family("coap_proxy_slow_requests", "counter", "HTTP requests logged as slow.");
+        writer.sample("coap_proxy_slow_requests", "_total").value(timingStats.getSlowCount());
+    }
+
+    private static void writeHistogram(OpenMetricsWriter writer, String name, String label, String value, LatencyHistogram histogram) {
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            writer.sample(name, "_bucket").label(label, value).label("le", BUCKET_BOUNDS[i]).value(cumulative);
+        }
+        writer.sample(name, "_count").label(label, value).value(cumulative);
+        writer.sample(name, "_sum").label(label, value).value(histogram.getSum() / NANOS_PER_SECOND);
+    }
+
+    private void writeCache(OpenMetricsWriter writer) {
+        CacheStats stats = cacheResource.getCacheStats();
+
+        writer.family("coap_proxy_cache_hits", "counter", "Requests answered from the cache.");
+        writer.sample("coap_proxy_cache_hits", "_total").value(stats.hitCount());
+        writer.family("coap_proxy_cache_misses", "counter", "Requests not answered from the cache.");
+        writer.sample("coap_proxy_cache_misses", "_total").value(stats.missCount());
+        writer.family("coap_proxy_cache_hit_ratio", "gauge", "Ratio of the requests answered from the cache.");
+        writer.sample("coap_proxy_cache_hit_ratio").value(stats.hitRate());
+        writer.family("coap_proxy_cache_inserts", "counter", "Responses inserted into the cache.");
+        writer.sample("coap_proxy_cache_inserts", "_total").value(stats.loadSuccessCount());
+        writer.family("coap_proxy_cache_evictions", "counter", "Entries evicted from the cache for size or age.");
+        writer.sample("coap_proxy_cache_evictions", "_total").value(stats.evictionCount());
+
+        if (responseCache != null) {
+            // these hits are also counted as hits of the cache above
+            writer.family("coap_proxy_http_response_cache_hits", "counter", "HTTP requests answered with a translated response kept from an earlier one.");
+            writer.sample("coap_proxy_http_response_cache_hits", "_total").value(responseCache.getHitCount());
+            writer.family("coap_proxy_http_response_cache_size", "gauge", "Translated responses kept.");
+            writer.sample("coap_proxy_http_response_cache_size").value(responseCache.size());
+        }
+    }
+
+    private void writePools(OpenMetricsWriter writer) {
+        long created = EndPointManagerPool.getCreatedCount();
+        int idle = EndPointManagerPool.getIdleCount();
+        writer.family("coap_proxy_endpoint_managers", "gauge", "CoAP endpoint managers of the pool, by whether they are handed out.");
+        writer.sample("coap_proxy_endpoint_managers").label("state", "idle").value(idle);
+        writer.sample("coap_proxy_endpoint_managers").label("state", "in_use").value(Math.max(0, created - idle));
+        writer.family("coap_proxy_endpoint_manager_creations", "counter", "CoAP endpoint managers created because the pool was empty.");
+        writer.sample("coap_proxy_endpoint_manager_creations", "_total").value(EndPointManagerPool.getCreatedOnDemandCount());
+
+        PoolStats connections = HttpClientPool.getTotalStats();
+        writer.family("coap_proxy_http_client_connections", "gauge", "Connections of the HTTP clients, by state.");
+        writer.sample("coap_proxy_http_client_connections").label("state", "leased").value(connections.getLeased());
+        writer.sample("coap_proxy_http_client_connections").label("state", "pending").value(connections.getPending());
+        writer.sample("coap_proxy_http_client_connections").label("state", "available").value(connections.getAvailable());
+        writer.family("coap_proxy_http_client_connections_max", "gauge", "Maximum connections of the HTTP clients.");
+        writer.sample("coap_proxy_http_client_connections_max").value(connections.getMax());
+    }
+
+    private void writeAccessLog(OpenMetricsWriter writer) {
+        AccessLog accessLog = AccessLog.getDefault();
+        writer.family("coap_proxy_access_log_records", "counter", "Requests written to the access log.");
+        writer.sample("coap_proxy_access_log_records", "_total").value(accessLog.getWrittenCount());
+        writer.family("coap_proxy_access_log_dropped", "counter", "Requests not logged because the access log buffer was full.");
+        writer.sample("coap_proxy_access_log_dropped", "_total").value(accessLog.getDroppedCount());
+    }
+
+    private void writeExchanges(OpenMetricsWriter writer) {
+        ExchangeCounter exchanges = EndPointManagerPool.getExchangeCounter();
+        writer.family("coap_proxy_messages", "counter", "CoAP messages of the endpoints forwarding requests, by direction and kind.");
+        writer.sample("coap_proxy_messages", "_total").label("direction", "sent").label("kind", "request").value(exchanges.getRequestsSent());
+        writer.sample("coap_proxy_messages", "_total").label("direction", "sent").label("kind", "response").value(exchanges.getResponsesSent());
+        writer.sample("coap_proxy_messages", "_total").label("direction", "sent").label("kind", "empty").value(exchanges.getEmptyMessagesSent());
+        writer.sample("coap_proxy_messages", "_total").label("direction", "received").label("kind", "request").value(exchanges.getRequestsReceived());
+        writer.sample("coap_proxy_messages", "_total").label("direction", "received").label("kind", "response").value(exchanges.getResponsesReceived());
+        writer.sample("coap_proxy_messages", "_total").label("direction", "received").label("kind", "empty").value(exchanges.getEmptyMessagesReceived());
+    }
+}
@@ -4,8 +4,12 @@ import no.ntnu.coap.gateway.proxy.HttpTranslator;
 import no.ntnu.coap.gateway.proxy.InvalidFieldException;
 import no.ntnu.coap.gateway.proxy.InvalidMethodException;
 import no.ntnu.coap.gateway.proxy.TranslationException;
+import no.ntnu.coap.gateway.proxy.cache.CacheKey;
+import no.ntnu.coap.gateway.proxy.http.HttpResponseCache;
 import no.ntnu.coap.gateway.proxy.http.RequestContext;
 import no.ntnu.coap.gateway.proxy.http.RequestHandler;
+import no.ntnu.coap.gateway.proxy.stats.RequestTiming;
+import no.ntnu.coap.gateway.proxy.stats.RequestTimingStats;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
@@ -13,9 +17,11 @@ import org.apache.http.nio.protocol.HttpAsyncExchange;
 import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
 import org.apache.http.protocol.HttpContext;
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.Request;
 
 import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -30,6 +36,8 @@ public class ProxyAsyncRequestHandler implements HttpAsyncRequestHandler<HttpReq
     private final String localResource;
     private final boolean proxyingEnabled;
     private final RequestHandler requestHandler;
+    private final HttpResponseCache responseCache;
+    private final RequestTimingStats timingStats;
 
     private static final Logger LOGGER = Logger.getLogger(ProxyAsyncRequestHandler.class.getName());
 
@@ -40,11 +48,41 @@ public class ProxyAsyncRequestHandler implements HttpAsyncRequestHandler<HttpReq
      * @param proxyingEnabled
      */
     public ProxyAsyncRequestHandler(String localResource, boolean proxyingEnabled, RequestHandler requestHandler) {
+        this(localResource, proxyingEnabled, requestHandler, null);
+    }
+
+    /**
+     * Instantiates a new proxy request handler.
+     *
+     * @param localResource   the local resource
+     * @param proxyingEnabled
+     * @param responseCache   answers the requests it holds a fresh response
+     *                        for, may be null
+     */
+    public ProxyAsyncRequestHandler(String localResource, boolean proxyingEnabled, RequestHandler requestHandler,
+                                    HttpResponseCache responseCache) {
+        this(localResource, proxyingEnabled, requestHandler, responseCache, null);
+    }
+
+    /**
+     * Instantiates a new proxy request handler.
+     *
+     * @param localResource   the local resource
+     * @param proxyingEnabled
+     * @param responseCache   answers the requests it holds a fresh response
+     *                        for, may be null
+     * @param timingStats     gathers the time each request spends in each
+     *                        stage, null to not time the requests
+     */
+    public ProxyAsyncRequestHandler(String localResource, boolean proxyingEnabled, RequestHandler requestHandler,
+                                    HttpResponseCache responseCache, RequestTimingStats timingStats) {
         super();
 
         this.localResource = localResource;
         this.proxyingEnabled = proxyingEnabled;
         this.requestHandler = requestHandler;
+        this.responseCache = responseCache;
+        this.timingStats = timingStats;
     }
 
     /*
@@ -56,14 +94,41 @@ public class ProxyAsyncRequestHandler implements HttpAsyncRequestHandler<HttpReq
      */
     @Override
     public void handle(HttpRequest httpRequest, HttpAsyncExchange httpExchange, HttpContext httpContext) throws HttpException, IOException {
-        LOGGER.info("--> " + httpRequest.getRequestLine().getUri());
-        final RequestContext context = new RequestContext(httpExchange, httpRequest);
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("--> " + httpRequest.getRequestLine().getUri());
+        }
+
+        RequestTiming timing = timingStats != null ? new RequestTiming() : null;
+        final RequestContext context = new RequestContext(httpExchange, httpRequest, responseCache, timing, timingStats);
+
+        // answer from the translated responses, without translating
+        long lookup = System.nanoTime();
+        if (responseCache != null && responseCache.respond(httpRequest, httpExchange.getResponse())) {
+            if (timing != null) {
+                timing.record(RequestTiming.Stage.CACHE, lookup);
+            }
+            context.submitResponse(true);
+            return;
+        }
 
         try {
             // translate the request in a valid coap request
+            long translation = System.nanoTime();
             Request coapRequest = HttpTranslator.getCoapRequest(httpRequest, localResource, proxyingEnabled);
+            context.setCoapRequest(coapRequest);
+            if (timing != null) {
+                timing.record(RequestTiming.Stage.TRANSLATE, translation);
+                timing.attachTo(coapRequest);
+            }
+
+            // an unsafe method may change the resource
+            if (responseCache != null && coapRequest.getCode() != Code.GET && coapRequest.getOptions().hasProxyUri()) {
+                responseCache.invalidate(CacheKey.getUri(coapRequest));
+            }
             //LOGGER.info("Received HTTP request and translate to " + coapRequest);
-            LOGGER.finer("Fill exchange with: " + coapRequest + " with hash=" + coapRequest.hashCode());
+            if (LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.finer("Fill exchange with: " + coapRequest + " with hash=" + coapRequest.hashCode());
+            }
 
             requestHandler.handleRequest(coapRequest, context);
         } catch (InvalidMethodException e) {
@@ -0,0 +1,25 @@
+package no.ntnu.coap.gateway.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A lookup of the response to a request in the proxy cache, validation of a
+ * stale response included.
+ */
+@Name("no.ntnu.coap.gateway.CacheLookup")
+@Label("Cache Lookup")
+@Category({"CoAP Gateway", "Cache"})
+@StackTrace(false)
+@Threshold("1 ms")
+public final class CacheLookupEvent extends jdk.jfr.Event {
+
+    @Label("URI")
+    public String uri;
+
+    @Label("Hit")
+    public boolean hit;
+}
@@ -0,0 +1,37 @@
+package no.ntnu.coap.gateway.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A request forwarded to an upstream CoAP server, from sending it to its
+ * response or timeout.
+ */
+@Name("no.ntnu.coap.gateway.CoapExchange")
+@Label("Upstream CoAP Exchange")
+@Description("A request forwarded to an upstream CoAP server, until its response")
+@Category({"CoAP Gateway", "Exchanges"})
+@StackTrace(false)
+@Threshold("20 ms")
+public final class CoapExchangeEvent extends jdk.jfr.Event {
+
+    @Label("Destination")
+    @Description("The address and port of the upstream server")
+    public String destination;
+
+    @Label("URI")
+    public String uri;
+
+    @Label("Response Code")
+    public String responseCode;
+
+    @Label("Retransmissions")
+    public int retransmissions;
+
+    @Label("Timed Out")
+    public boolean timedOut;
+}
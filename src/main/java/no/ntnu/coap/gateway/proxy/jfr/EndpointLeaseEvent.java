@@ -0,0 +1,28 @@
+package no.ntnu.coap.gateway.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * An endpoint manager taken from the pool, from its lease to its return.
+ */
+@Name("no.ntnu.coap.gateway.EndpointLease")
+@Label("Endpoint Manager Lease")
+@Description("An endpoint manager taken from the pool, until it is returned")
+@Category({"CoAP Gateway", "Pools"})
+@StackTrace(false)
+@Threshold("50 ms")
+public final class EndpointLeaseEvent extends jdk.jfr.Event {
+
+    @Label("Created On Demand")
+    @Description("Whether the pool was empty and the manager created for the lease")
+    public boolean createdOnDemand;
+
+    @Label("Idle Managers")
+    @Description("The managers left in the pool after the lease")
+    public int idle;
+}
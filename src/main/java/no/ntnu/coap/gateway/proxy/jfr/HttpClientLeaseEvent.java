@@ -0,0 +1,28 @@
+package no.ntnu.coap.gateway.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A connection requested from the pool of an HTTP client, until it is leased
+ * or the request fails.
+ */
+@Name("no.ntnu.coap.gateway.HttpClientLease")
+@Label("HTTP Client Connection Lease")
+@Description("A connection requested from an HTTP client pool, until it is leased")
+@Category({"CoAP Gateway", "Pools"})
+@StackTrace(false)
+@Threshold("10 ms")
+public final class HttpClientLeaseEvent extends jdk.jfr.Event {
+
+    @Label("Route")
+    public String route;
+
+    @Label("Leased")
+    @Description("Whether a connection was leased, rather than the request failing or being cancelled")
+    public boolean leased;
+}
@@ -0,0 +1,34 @@
+package no.ntnu.coap.gateway.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * An HTTP request proxied to a CoAP server, from its translation to CoAP to
+ * its response, answered from the cache or upstream.
+ */
+@Name("no.ntnu.coap.gateway.HttpExchange")
+@Label("Proxied HTTP Exchange")
+@Description("An HTTP request proxied to CoAP, until its response")
+@Category({"CoAP Gateway", "Exchanges"})
+@StackTrace(false)
+@Threshold("20 ms")
+public final class HttpExchangeEvent extends jdk.jfr.Event {
+
+    @Label("Method")
+    public String method;
+
+    @Label("Proxy URI")
+    public String uri;
+
+    @Label("Response Code")
+    public String responseCode;
+
+    @Label("Cached")
+    @Description("Whether the response came from the cache")
+    public boolean cached;
+}
@@ -0,0 +1,424 @@
+package no.ntnu.coap.gateway.proxy.log;
+
+import no.ntnu.coap.gateway.proxy.ProxyProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Log of the requests served and forwarded by the proxy, kept off the
+ * threads handling them.
+ * <p>
+ * A request is logged by filling a record of a ring allocated up front, with
+ * a compare-and-set to claim it and no lock; when the ring is full, the
+ * record is dropped and counted rather than waiting. A single background
+ * thread formats the records, as JSON lines or in a binary format, and
+ * appends them to the log file, which is rotated once it reaches a size:
+ * access.log becomes access.log.1, and so on up to a number of files.
+ * <p>
+ * Successful requests can be sampled; errors are always logged.
+ * <p>
+ * Each binary file starts with the magic "GWAL" and a version byte 1, and
+ * holds records of: kind (byte), cached (byte), status (short), timestamp
+ * in milliseconds (long), duration in nanoseconds (long), method (byte
+ * length and ASCII) and URI (short length and UTF-8), all big-endian.
+ */
+public final class AccessLog {
+
+    private static final Logger LOGGER = Logger.getLogger(AccessLog.class.getName());
+
+    private static final byte[] BINARY_MAGIC = {'G', 'W', 'A', 'L', 1};
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 1000000;
+    // longer URIs are cut, so that any record fits in the buffer
+    private static final int MAX_BINARY_URI_BYTES = 0x7FFF;
+
+    /**
+     * The kinds of requests logged.
+     */
+    public enum Kind {
+        /** an HTTP request answered by the proxy */
+        HTTP("http"),
+        /** an HTTP request forwarded upstream by the proxy */
+        UPSTREAM_HTTP("upstream_http");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Format {
+        JSON, BINARY
+    }
+
+    private static volatile AccessLog defaultLog;
+
+    private final File file;
+    private final Format format;
+    private final double sampleRate;
+    private final long fileBytes;
+    private final int fileCount;
+
+    // the ring: a record is free for the producer at position p when its
+    // sequence is p, and ready for the writer when it is p + 1
+    private final Record[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    private volatile boolean running;
+    private Thread writer;
+
+    // used by the writer thread only
+    private final StringBuilder line = new StringBuilder(256);
+    // unpaired surrogates in a URI are written as '?' rather than cutting the
+    // record
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private FileChannel channel;
+    // the size of the file, kept rather than asked for each record
+    private long fileSize;
+
+    /**
+     * Creates a log, not started.
+     *
+     * @param file       the log file
+     * @param capacity   the records of the ring, rounded up to a power of two
+     * @param sampleRate the share of the successful requests logged, from 0
+     *                   to 1
+     * @param format     the format of the file
+     * @param fileBytes  the size from which the file is rotated
+     * @param fileCount  the number of rotated files kept
+     */
+    public AccessLog(File file, int capacity, double sampleRate, Format format, long fileBytes, int fileCount) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.records = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.file = file;
+        this.format = format;
+        this.sampleRate = sampleRate;
+        this.fileBytes = fileBytes;
+        this.fileCount = Math.max(0, fileCount);
+    }
+
+    /**
+     * Gets the log of the proxy, configured by the ACCESS_LOG properties and
+     * started on first use if enabled.
+     */
+    public static AccessLog getDefault() {
+        AccessLog log = defaultLog;
+        if (log == null) {
+            synchronized (AccessLog.class) {
+                log = defaultLog;
+                if (log == null) {
+                    ProxyProperties properties = ProxyProperties.std;
+                    log = new AccessLog(new File(properties.getStr("ACCESS_LOG_FILE")),
+                            properties.getInt("ACCESS_LOG_BUFFER"), properties.getDbl("ACCESS_LOG_SAMPLE_RATE"),
+                            Format.valueOf(properties.getStr("ACCESS_LOG_FORMAT").toUpperCase()),
+                            properties.getInt("ACCESS_LOG_FILE_BYTES"), properties.getInt("ACCESS_LOG_FILES"));
+                    if (properties.getBool("ACCESS_LOG_ENABLED")) {
+                        log.start();
+                        Runtime.getRuntime().addShutdownHook(new Thread(log::stop, "access-log-shutdown"));
+                    }
+                    defaultLog = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Logs a request, unless the log is stopped, the request is sampled out
+     * or the ring is full.
+     *
+     * @param method        the method of the request
+     * @param uri           the URI of the request
+     * @param status        the status code of the response
+     * @param cached        whether the response came from a cache
+     * @param durationNanos the time taken to respond
+     * @return whether the request is logged
+     */
+    public boolean log(Kind kind, String method, String uri, int status, boolean cached, long durationNanos) {
+        if (!running) {
+            return false;
+        }
+        if (status < 400 && sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return false;
+        }
+
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // the writer has not freed the record yet
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        int index = (int) position & mask;
+        Record record = records[index];
+        record.kind = kind;
+        record.method = method;
+        record.uri = uri;
+        record.status = status;
+        record.cached = cached;
+        record.timestamp = System.currentTimeMillis();
+        record.durationNanos = durationNanos;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::write, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+        LOGGER.info("Access log started in " + file.getAbsolutePath());
+    }
+
+    /**
+     * Stops logging, once the records logged are written.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    public boolean isStarted() {
+        return running;
+    }
+
+    /**
+     * @return the records dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    private void write() {
+        try {
+            open();
+            while (running || head != tail.get()) {
+                if (!drain()) {
+                    flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            LOGGER.warning("Cannot write the access log: " + e.getMessage());
+            running = false;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Formats the records ready in the ring into the buffer.
+     *
+     * @return false if there was none
+     */
+    private boolean drain() throws IOException {
+        boolean any = false;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return any;
+            }
+            Record record = records[index];
+            if (fileSize + buffer.position() >= fileBytes) {
+                // rotate between records only
+                flush();
+                rotate();
+            }
+            if (format == Format.JSON) {
+                formatJson(record);
+            } else {
+                formatBinary(record);
+            }
+            // drop the references before freeing the record
+            record.method = null;
+            record.uri = null;
+            sequences.lazySet(index, head + records.length);
+            head++;
+            written.increment();
+            any = true;
+        }
+    }
+
+    private void formatJson(Record record) throws IOException {
+        line.setLength(0);
+        line.append("{\"ts\":").append(record.timestamp)
+                .append(",\"kind\":\"").append(record.kind.label)
+                .append("\",\"method\":");
+        appendString(record.method);
+        line.append(",\"uri\":");
+        appendString(record.uri);
+        line.append(",\"status\":").append(record.status)
+                .append(",\"cached\":").append(record.cached)
+                .append(",\"dur_us\":").append(record.durationNanos / 1000)
+                .append("}\n");
+
+        CharBuffer chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            flush();
+        }
+    }
+
+    private void formatBinary(Record record) throws IOException {
+        byte[] method = record.method != null ? record.method.getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        byte[] uri = record.uri != null ? record.uri.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int methodLength = Math.min(method.length, 0xFF);
+        int uriLength = Math.min(uri.length, MAX_BINARY_URI_BYTES);
+        if (buffer.remaining() < 24 + methodLength + 2 + uriLength) {
+            flush();
+        }
+        buffer.put((byte) record.kind.ordinal())
+                .put((byte) (record.cached ? 1 : 0))
+                .putShort((short) record.status)
+                .putLong(record.timestamp)
+                .putLong(record.durationNanos)
+                .put((byte) methodLength).put(method, 0, methodLength)
+                .putShort((short) uriLength).put(uri, 0, uriLength);
+    }
+
+    private void appendString(String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Writes the buffer to the file.
+     */
+    private void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void open() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        if (format == Format.BINARY && fileSize == 0) {
+            fileSize = channel.write(ByteBuffer.wrap(BINARY_MAGIC));
+        }
+    }
+
+    private void rotate() throws IOException {
+        close();
+        if (fileCount == 0) {
+            Files.delete(file.toPath());
+        } else {
+            for (int i = fileCount - 1; i > 0; i--) {
+                File older = new File(file.getPath() + "." + i);
+                if (older.exists()) {
+                    Files.move(older.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warning("Cannot close the access log: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * A record of the ring, filled by a producer and formatted by the writer.
+     */
+    private static final class Record {
+        private Kind kind;
+        private String method;
+        private String uri;
+        private int status;
+        private boolean cached;
+        private long timestamp;
+        private long durationNanos;
+    }
+}
@@ -25,9 +25,16 @@ import org.eclipse.californium.core.coap.Response;
 public interface CacheResource {
 
     /**
+     * Caches the response to a forwarded request, or updates the cache
+     * accordingly.
      *
+     * @param request  the forwarded request
+     * @param response the response to it
+     * @return the response to deliver to the client: the given one, or the
+     * cached representation if the response validated it on behalf of a
+     * client that did not ask for validation
      */
-    public void cacheResponse(Request request, Response response);
+    public Response cacheResponse(Request request, Response response);
 
     public CacheStats getCacheStats();
 
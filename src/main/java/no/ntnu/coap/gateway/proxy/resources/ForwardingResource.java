@@ -17,17 +17,32 @@
  ******************************************************************************/
 package no.ntnu.coap.gateway.proxy.resources;
 
+import no.ntnu.coap.gateway.proxy.stats.RequestTiming;
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 public abstract class ForwardingResource extends CoapResource {
 
+    private static final Logger LOGGER = Logger.getLogger(ForwardingResource.class.getName());
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    /**
+     * Answers the requests it holds a response for, null if the resource
+     * does not cache.
+     */
+    private volatile CacheResource cacheResource;
+    private volatile StatsResource statsResource;
+
     public ForwardingResource(String resourceIdentifier) {
         super(resourceIdentifier);
     }
@@ -38,8 +53,72 @@ public abstract class ForwardingResource extends CoapResource {
 
     @Override
     public void handleRequest(Exchange exchange) {
+        Request request = exchange.getRequest();
+        RequestTiming timing = RequestTiming.of(request);
+        CacheResource cache = cacheResource;
+        boolean cacheable = cache != null && request.getType() != Type.RST && request.getType() != Type.ACK
+                && request.getOptions().hasProxyUri();
+
+        if (cacheable) {
+            long lookup = System.nanoTime();
+            Response response = cache.getResponse(request);
+            if (timing != null) {
+                timing.record(RequestTiming.Stage.CACHE, lookup);
+            }
+
+            StatsResource stats = statsResource;
+            if (stats != null) {
+                stats.updateStatistics(request, response != null);
+            }
+
+            if (response != null) {
+                // piggy-backed
+                exchange.sendResponse(response);
+                return;
+            }
+        }
+
         exchange.sendAccept();
-        forwardRequest(exchange.getRequest()).thenAccept(exchange::sendResponse);
+        long forwarded = System.nanoTime();
+        coalescer.forward(request, this::forwardRequest).thenAccept(response -> {
+            if (timing != null) {
+                timing.record(RequestTiming.Stage.FORWARD, forwarded);
+            }
+            StatsResource stats = statsResource;
+            if (stats != null) {
+                stats.updateStatistics(request, response, System.nanoTime() - forwarded);
+            }
+            exchange.sendResponse(cacheable ? cache.cacheResponse(request, response) : response);
+        }).exceptionally(error -> {
+            // the request is accepted, it must still be answered
+            LOGGER.log(Level.WARNING, "Failed to forward " + request.getOptions().getProxyUri(), error);
+            exchange.sendResponse(new Response(ResponseCode.BAD_GATEWAY));
+            return null;
+        });
+    }
+
+    /**
+     * Sets the cache answering the requests to this resource before they are
+     * forwarded and storing their responses. The responses are not cached if
+     * null.
+     */
+    public void setCacheResource(CacheResource cacheResource) {
+        this.cacheResource = cacheResource;
+    }
+
+    /**
+     * Sets the resource counting the requests to this resource, whether they
+     * were answered from the cache, and the responses to those forwarded.
+     */
+    public void setStatsResource(StatsResource statsResource) {
+        this.statsResource = statsResource;
+    }
+
+    /**
+     * Gets the coalescer joining identical requests to this resource.
+     */
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
     }
 
     public abstract CompletableFuture<Response> forwardRequest(Request request);
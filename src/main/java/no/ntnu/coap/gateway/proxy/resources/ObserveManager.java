@@ -0,0 +1,324 @@
+package no.ntnu.coap.gateway.proxy.resources;
+
+import no.ntnu.coap.gateway.proxy.CoapTranslator;
+import no.ntnu.coap.gateway.proxy.EndPointManagerPool;
+import no.ntnu.coap.gateway.proxy.TranslationException;
+import no.ntnu.coap.gateway.proxy.cache.CacheKey;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.EndpointManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Observes the CoAP resources requested often through the proxy, so that their
+ * cached responses are kept fresh by notifications instead of being fetched
+ * again on every expiry.
+ * <p>
+ * A resource is hot once it is requested at least {@code hotRequests} times
+ * within a window. A single observe relation is then registered upstream and
+ * every notification is handed to the cache. When a resource is requested
+ * fewer than {@code coldRequests} times within a window, or its notifications
+ * stop, the relation is cancelled. The relations are spread over endpoint
+ * managers taken from {@link EndPointManagerPool}, each holding at most
+ * {@code maxRelationsPerManager} relations.
+ */
+public class ObserveManager {
+
+    private static final Logger LOGGER = Logger.getLogger(ObserveManager.class.getName());
+
+    /**
+     * Number of windows to wait before observing again a resource whose
+     * server declined the relation.
+     */
+    private static final int RETRY_WINDOWS = 10;
+
+    private final int hotRequests;
+    private final int coldRequests;
+    private final long windowNanos;
+    private final int maxRelationsPerManager;
+    private final int maxManagers;
+
+    /**
+     * Receives the notifications with the request they answer.
+     */
+    private final BiConsumer<Request, Response> notificationHandler;
+
+    private final ConcurrentMap<CacheKey, Demand> demands = new ConcurrentHashMap<CacheKey, Demand>();
+
+    // guarded by this
+    private final List<ManagerSlot> managers = new ArrayList<ManagerSlot>();
+    private int relationCount;
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "observe-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Instantiates a new observe manager.
+     *
+     * @param hotRequests            the requests within a window from which a
+     *                               resource is observed
+     * @param coldRequests           the requests within a window under which
+     *                               the relation is cancelled
+     * @param windowSeconds          the length of a window
+     * @param maxRelationsPerManager the relations held by an endpoint manager
+     * @param maxManagers            the endpoint managers used for relations
+     * @param notificationHandler    receives the notifications
+     */
+    public ObserveManager(int hotRequests, int coldRequests, int windowSeconds, int maxRelationsPerManager,
+                          int maxManagers, BiConsumer<Request, Response> notificationHandler) {
+        if (hotRequests < 1 || coldRequests > hotRequests || windowSeconds < 1) {
+            throw new IllegalArgumentException("Invalid observe thresholds");
+        }
+        this.hotRequests = hotRequests;
+        this.coldRequests = coldRequests;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.maxRelationsPerManager = maxRelationsPerManager;
+        this.maxManagers = maxManagers;
+        this.notificationHandler = notificationHandler;
+
+        sweeper.scheduleWithFixedDelay(this::sweep, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Counts a request to the resource it targets and observes the resource
+     * once it is hot. Only plain GET requests with a proxy-uri are counted.
+     */
+    public void onRequest(Request request) {
+        OptionSet options = request.getOptions();
+        if (request.getCode() != Code.GET || !options.hasProxyUri() || options.hasObserve()
+                || options.hasBlock1() || options.hasBlock2()) {
+            return;
+        }
+
+        onRequest(CacheKey.fromRequest(request, options.getAccept()));
+    }
+
+    /**
+     * Counts a plain GET request with a proxy-uri, already answered from a
+     * cache in front of the proxy cache, to the resource of the key.
+     */
+    public void onRequest(CacheKey key) {
+        Demand demand = demands.get(key);
+        if (demand == null) {
+            Demand created = new Demand();
+            demand = demands.putIfAbsent(key, created);
+            if (demand == null) {
+                demand = created;
+            }
+        }
+
+        if (demand.requests.incrementAndGet() >= hotRequests && demand.relation == null
+                && System.nanoTime() - demand.notBefore >= 0) {
+            observe(key, demand);
+        }
+    }
+
+    /**
+     * @return the number of observe relations registered upstream
+     */
+    public synchronized int getRelationCount() {
+        return relationCount;
+    }
+
+    /**
+     * Cancels all relations and stops counting requests.
+     */
+    public void stop() {
+        sweeper.shutdownNow();
+        for (Demand demand : demands.values()) {
+            Relation relation = demand.relation;
+            if (relation != null) {
+                cancel(relation);
+            }
+        }
+        demands.clear();
+    }
+
+    private synchronized void observe(CacheKey key, Demand demand) {
+        if (demand.relation != null) {
+            return;
+        }
+
+        ManagerSlot slot = null;
+        for (ManagerSlot candidate : managers) {
+            if (candidate.relations < maxRelationsPerManager) {
+                slot = candidate;
+                break;
+            }
+        }
+        if (slot == null) {
+            if (managers.size() >= maxManagers) {
+                LOGGER.finer("Observe relation limit reached");
+                return;
+            }
+            slot = new ManagerSlot(EndPointManagerPool.getManager());
+            managers.add(slot);
+        }
+
+        Request request = Request.newGet();
+        request.getOptions().setProxyUri(key.getUri());
+        if (key.getMediaType() >= 0) {
+            request.getOptions().setAccept(key.getMediaType());
+        }
+        if (key.getPayload() != null) {
+            request.setPayload(key.getPayload());
+        }
+        request.getOptions().setObserve(0);
+
+        Request outgoingRequest;
+        try {
+            outgoingRequest = CoapTranslator.getRequest(request);
+        } catch (TranslationException e) {
+            LOGGER.warning("Cannot observe " + key.getUri() + ": " + e.getMessage());
+            demand.notBefore = System.nanoTime() + RETRY_WINDOWS * windowNanos;
+            return;
+        }
+
+        Relation relation = new Relation(demand, slot, request, outgoingRequest);
+        outgoingRequest.addMessageObserver(new MessageObserverAdapter() {
+            @Override
+            public void onResponse(Response response) {
+                onNotification(relation, response);
+            }
+
+            @Override
+            public void onReject() {
+                end(relation);
+            }
+
+            @Override
+            public void onTimeout() {
+                end(relation);
+            }
+
+            @Override
+            public void onCancel() {
+                end(relation);
+            }
+        });
+
+        demand.relation = relation;
+        slot.relations++;
+        relationCount++;
+        LOGGER.fine("Observing " + key.getUri());
+        slot.manager.getDefaultEndpoint().sendRequest(outgoingRequest);
+    }
+
+    private void onNotification(Relation relation, Response response) {
+        Response notification = CoapTranslator.getResponse(response);
+        // cached, it answers plain requests, which registered no relation
+        notification.getOptions().removeObserve();
+        if (!response.getOptions().hasObserve() || !ResponseCode.isSuccess(response.getCode())) {
+            // the server does not keep the relation, try again later
+            relation.demand.notBefore = System.nanoTime() + RETRY_WINDOWS * windowNanos;
+            end(relation);
+        } else {
+            Long maxAge = response.getOptions().getMaxAge();
+            relation.maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAge != null ? maxAge : OptionNumberRegistry.Defaults.MAX_AGE);
+            relation.lastNotification = System.nanoTime();
+        }
+        notificationHandler.accept(relation.request, notification);
+    }
+
+    /**
+     * Ends the relation every window in which its resource was requested too
+     * little or since which its server stopped notifying, and forgets the
+     * resources that were not requested.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Map.Entry<CacheKey, Demand> entry : demands.entrySet()) {
+            Demand demand = entry.getValue();
+            int requests = demand.requests.getAndSet(0);
+            Relation relation = demand.relation;
+
+            if (relation != null) {
+                if (requests < coldRequests) {
+                    LOGGER.fine("Demand dropped, no longer observing " + entry.getKey().getUri());
+                    cancel(relation);
+                } else if (now - relation.lastNotification > relation.maxAgeNanos + windowNanos) {
+                    LOGGER.fine("Notifications stopped, no longer observing " + entry.getKey().getUri());
+                    cancel(relation);
+                }
+            } else if (requests == 0 && now - demand.notBefore >= 0) {
+                demands.remove(entry.getKey(), demand);
+            }
+        }
+    }
+
+    private void cancel(Relation relation) {
+        // the server is told with a reset on the next notification
+        relation.outgoingRequest.cancel();
+        end(relation);
+    }
+
+    private synchronized void end(Relation relation) {
+        if (relation.ended) {
+            return;
+        }
+        relation.ended = true;
+        if (relation.demand.relation == relation) {
+            relation.demand.relation = null;
+        }
+
+        relationCount--;
+        ManagerSlot slot = relation.slot;
+        if (--slot.relations == 0) {
+            managers.remove(slot);
+            EndPointManagerPool.putClient(slot.manager);
+        }
+    }
+
+    private static final class Demand {
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile Relation relation;
+        private volatile long notBefore = System.nanoTime();
+    }
+
+    private static final class Relation {
+        private final Demand demand;
+        private final ManagerSlot slot;
+        private final Request request;
+        private final Request outgoingRequest;
+        private volatile long lastNotification = System.nanoTime();
+        private volatile long maxAgeNanos = TimeUnit.SECONDS.toNanos(OptionNumberRegistry.Defaults.MAX_AGE);
+        // guarded by the manager
+        private boolean ended;
+
+        private Relation(Demand demand, ManagerSlot slot, Request request, Request outgoingRequest) {
+            this.demand = demand;
+            this.slot = slot;
+            this.request = request;
+            this.outgoingRequest = outgoingRequest;
+        }
+    }
+
+    private static final class ManagerSlot {
+        private final EndpointManager manager;
+        // guarded by the manager
+        private int relations;
+
+        private ManagerSlot(EndpointManager manager) {
+            this.manager = manager;
+        }
+    }
+}
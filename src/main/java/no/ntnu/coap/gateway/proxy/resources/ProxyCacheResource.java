@@ -17,13 +17,25 @@
  ******************************************************************************/
 package no.ntnu.coap.gateway.proxy.resources;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
-import com.google.common.cache.LoadingCache;
-import com.google.common.primitives.Ints;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.Weigher;
 import no.ntnu.coap.gateway.proxy.CustomMediaTypeRegistry;
+import no.ntnu.coap.gateway.proxy.ProxyProperties;
+import no.ntnu.coap.gateway.proxy.cache.CacheEngine;
+import no.ntnu.coap.gateway.proxy.cache.CacheEntry;
+import no.ntnu.coap.gateway.proxy.cache.CacheKey;
+import no.ntnu.coap.gateway.proxy.cache.CachePolicies;
+import no.ntnu.coap.gateway.proxy.cache.CachePolicy;
+import no.ntnu.coap.gateway.proxy.cache.CompactResponseCodec;
+import no.ntnu.coap.gateway.proxy.cache.MappedCacheStore;
+import no.ntnu.coap.gateway.proxy.cache.PartitionedCacheEngine;
+import no.ntnu.coap.gateway.proxy.cache.VariantIndex;
+import no.ntnu.coap.gateway.proxy.jfr.CacheLookupEvent;
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.OptionNumberRegistry;
 import org.eclipse.californium.core.coap.Request;
@@ -31,14 +43,16 @@ import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URISyntaxException;
-import java.net.URLEncoder;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 
 /**
@@ -62,11 +76,109 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
             NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_SIZE);
 
     /**
-     * The cache. http://code.google.com/p/guava-libraries/wiki/CachesExplained
+     * Memory budget for the cache in bytes, the cache is bounded by CACHE_SIZE
+     * if not positive.
      */
-    private final LoadingCache<CacheKey, Response> responseCache;
+    private static final long CACHE_MAX_BYTES = ProxyProperties.std.getInt("CACHE_MAX_BYTES");
 
-    private boolean enabled = false;
+    /**
+     * Maximum of each per-host partition of the cache, in entries or bytes
+     * like the cache; the cache is not partitioned if not positive.
+     */
+    private static final long CACHE_PARTITION_MAXIMUM = ProxyProperties.std.getInt("CACHE_PARTITION_MAXIMUM");
+
+    /**
+     * How the cache holds the responses.
+     */
+    private static final CacheEntry.Mode CACHE_ENTRY_MODE =
+            CacheEntry.Mode.parse(ProxyProperties.std.getStr("CACHE_ENTRY_MODE"));
+
+    /**
+     * How long stale responses may be served, per route.
+     */
+    private static final CachePolicies CACHE_POLICIES = CachePolicies.parse(
+            ProxyProperties.std.getStr("CACHE_POLICY_ROUTES"),
+            new CachePolicy(ProxyProperties.std.getInt("CACHE_STALE_WHILE_REVALIDATE"),
+                    ProxyProperties.std.getInt("CACHE_STALE_IF_ERROR")));
+
+    /**
+     * Whether the responses evicted for size go to a second-level cache on
+     * disk, which survives restarts.
+     */
+    private static final boolean CACHE_L2_ENABLED = ProxyProperties.std.getBool("CACHE_L2_ENABLED");
+
+    /**
+     * Whether the resources requested often are observed to keep their
+     * responses fresh.
+     */
+    private static final boolean OBSERVE_ENABLED = ProxyProperties.std.getBool("OBSERVE_ENABLED");
+
+    /**
+     * Which entries the cache keeps when it is full.
+     */
+    private static final CacheEngine.Policy CACHE_ENGINE =
+            CacheEngine.Policy.parse(ProxyProperties.std.getStr("CACHE_ENGINE"));
+
+    /**
+     * The cache.
+     */
+    private final CacheEngine<CacheKey, CacheEntry> responseCache;
+
+    /**
+     * The cache if partitioned per host, null otherwise.
+     */
+    private final PartitionedCacheEngine<CacheKey, CacheEntry> partitionedCache;
+
+    private final CompactResponseCodec codec = new CompactResponseCodec(
+            ProxyProperties.std.getBool("CACHE_COMPRESSION"),
+            ProxyProperties.std.getInt("CACHE_COMPRESSION_THRESHOLD"));
+
+    /**
+     * The cached representations of each resource.
+     */
+    private final VariantIndex variants = new VariantIndex();
+
+    /**
+     * The second-level cache, null if disabled. It keeps its copy of an entry
+     * promoted to the cache, which is overwritten when the entry is evicted
+     * again and invalidated along with it.
+     */
+    private final MappedCacheStore secondLevel;
+
+    /**
+     * Observes the resources requested often, null if disabled.
+     */
+    private final ObserveManager observeManager;
+
+    /**
+     * The requests forwarded to validate a stale entry, with that entry. The
+     * entry is kept even if the cache evicts it meanwhile, as the client
+     * expects a representation and not 2.03.
+     */
+    private final Cache<Request, CachedVariant> pendingValidations = CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * The entries being refreshed in the background.
+     */
+    private final Set<CacheKey> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Forwards the background refreshes, none are made if null.
+     */
+    private volatile ForwardingResource forwardingResource;
+
+    /**
+     * Told the URI of each resource whose cached responses change, or null if
+     * all may have changed.
+     */
+    private volatile Consumer<String> changeListener;
+
+    // the cache only counts evictions, lookups and inserts are counted here
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder insertCount = new LongAdder();
+
+    private volatile boolean enabled = false;
 
     /**
      * Instantiates a new proxy cache resource.
@@ -83,26 +195,80 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
         this.enabled = enabled;
 
         // builds a new cache that:
-        // - has a limited size of CACHE_SIZE entries
+        // - has a limited size of CACHE_SIZE entries or CACHE_MAX_BYTES bytes
         // - removes entries after CACHE_RESPONSE_MAX_AGE seconds from the last
         // write
-        // - record statistics
-        responseCache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).recordStats().expireAfterWrite(CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS).build(new CacheLoader<CacheKey, Response>() {
-            @Override
-            public Response load(CacheKey request) throws NullPointerException {
-                // retrieve the response from the incoming request, no
-                // exceptions are thrown
-                Response cachedResponse = request.getResponse();
-
-                // check for null and raise an exception that clients must
-                // handle
-                if (cachedResponse == null) {
-                    throw new NullPointerException();
-                }
+        // - evicts according to CACHE_ENGINE
+        // - gives each upstream host a partition of CACHE_PARTITION_MAXIMUM,
+        // up to CACHE_PARTITION_COUNT hosts, the limit above bounding the pool
+        // they overflow to
+        // - keeps the variant index in sync
+        Weigher<CacheKey, CacheEntry> weigher = null;
+        if (CACHE_MAX_BYTES > 0) {
+            weigher = (key, entry) -> key.getWeight() + entry.getWeight();
+        }
+        long maximum = CACHE_MAX_BYTES > 0 ? CACHE_MAX_BYTES : CACHE_SIZE;
+        if (CACHE_PARTITION_MAXIMUM > 0) {
+            partitionedCache = new PartitionedCacheEngine<CacheKey, CacheEntry>(
+                    key -> CacheKey.getAuthority(key.getUri()),
+                    PartitionedCacheEngine.parseQuotas(ProxyProperties.std.getStr("CACHE_PARTITION_QUOTAS")),
+                    CACHE_PARTITION_MAXIMUM, ProxyProperties.std.getInt("CACHE_PARTITION_COUNT"), maximum, CACHE_ENGINE, weigher, CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS, this::onRemoval);
+            responseCache = partitionedCache;
+        } else {
+            partitionedCache = null;
+            responseCache = CACHE_ENGINE.create(maximum, weigher, CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS, this::onRemoval);
+        }
 
-                return cachedResponse;
-            }
-        });
+        secondLevel = CACHE_L2_ENABLED ? openSecondLevel() : null;
+        observeManager = OBSERVE_ENABLED ? new ObserveManager(
+                ProxyProperties.std.getInt("OBSERVE_HOT_REQUESTS"),
+                ProxyProperties.std.getInt("OBSERVE_COLD_REQUESTS"),
+                ProxyProperties.std.getInt("OBSERVE_WINDOW"),
+                ProxyProperties.std.getInt("OBSERVE_MAX_RELATIONS_PER_MANAGER"),
+                ProxyProperties.std.getInt("OBSERVE_MAX_MANAGERS"),
+                this::cacheResponse) : null;
+        if (secondLevel != null) {
+            // keep the responses still in memory for the next start
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flushSecondLevel, "cache-flush"));
+        }
+    }
+
+    private MappedCacheStore openSecondLevel() {
+        File directory = new File(ProxyProperties.std.getStr("CACHE_L2_DIRECTORY"));
+        try {
+            return new MappedCacheStore(directory,
+                    ProxyProperties.std.getInt("CACHE_L2_SEGMENT_BYTES"),
+                    ProxyProperties.std.getInt("CACHE_L2_MAX_SEGMENTS"),
+                    CACHE_POLICIES.getMaxStaleness(), CACHE_ENTRY_MODE, codec);
+        } catch (IOException e) {
+            LOGGER.warning("Second-level cache disabled, cannot open " + directory + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void flushSecondLevel() {
+        for (Map.Entry<CacheKey, CacheEntry> cached : responseCache.asMap().entrySet()) {
+            secondLevel.put(cached.getKey(), cached.getValue());
+        }
+        secondLevel.force();
+    }
+
+    private void onRemoval(CacheKey cacheKey, CacheEntry entry, RemovalCause cause) {
+        if (cause == RemovalCause.REPLACED) {
+            return;
+        }
+
+        variants.remove(cacheKey);
+
+        if (secondLevel != null && cause == RemovalCause.SIZE) {
+            secondLevel.put(cacheKey, entry);
+        }
+
+        // the same key may have been inserted again meanwhile
+        if (responseCache.asMap().containsKey(cacheKey)) {
+            variants.add(cacheKey);
+        }
+        fireChange(cacheKey.getUri());
     }
 
     /**
@@ -112,76 +278,82 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
      * possibly present response. In case of 2.03 it updates the freshness of
      * the response with the max-age option provided. In case of 2.05 it creates
      * the key and caches the response if the max-age option is higher than
-     * zero.
+     * zero. In case of a server error to a GET, a stale response is returned
+     * instead if the stale-if-error policy allows it.
      */
     @Override
-    public void cacheResponse(Request request, Response response) {
+    public Response cacheResponse(Request request, Response response) {
+        CachedVariant validation = pendingValidations.asMap().remove(request);
+
         // enable or disable the caching (debug purposes)
         if (!enabled) {
-            return;
+            return response;
         }
 
         // only the response with success codes should be cached
         ResponseCode code = response.getCode();
-        if (ResponseCode.isSuccess(code)) {
-            // get the request
-//			Request request = response.getRequest();
-            CacheKey cacheKey = null;
-            try {
-                cacheKey = CacheKey.fromContentTypeOption(request);
-            } catch (URISyntaxException e) {
-                LOGGER.warning("Cannot create the cache key: " + e.getMessage());
+        if (ResponseCode.isServerError(code) && request.getCode() == Code.GET) {
+            CachedVariant stale = validation != null ? validation : lookup(request);
+            if (stale != null) {
+                long secondsLeft = stale.entry.getRemainingLifetime(System.nanoTime());
+                if (CACHE_POLICIES.get(stale.cacheKey.getUri()).canServeOnError(-secondsLeft)) {
+                    LOGGER.finer("Serving stale response instead of " + code);
+                    Response staleResponse = stale.entry.getResponse();
+                    staleResponse.getOptions().setMaxAge(Math.max(secondsLeft, 0));
+                    return staleResponse;
+                }
             }
+        } else if (ResponseCode.isSuccess(code)) {
+            CacheKey cacheKey = fromContentFormat(request, response);
 
             if (code == ResponseCode.CREATED || code == ResponseCode.DELETED || code == ResponseCode.CHANGED) {
                 // the stored response should be invalidated if the response has
                 // codes: 2.01, 2.02, 2.04.
-                invalidateRequest(cacheKey);
+                invalidateRequest(request);
             } else if (code == ResponseCode.VALID) {
                 // increase the max-age value according to the new response
-//				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
                 Long maxAgeOption = response.getOptions().getMaxAge();
-                if (maxAgeOption != null) {
-                    // get the cached response
-                    Response cachedResponse = responseCache.getUnchecked(cacheKey);
+                long maxAge = maxAgeOption != null ? maxAgeOption : OptionNumberRegistry.Defaults.MAX_AGE;
+
+                if (validation != null) {
+                    // the representation is unchanged: refresh it, unless a
+                    // newer one was cached meanwhile, and give it to the
+                    // client instead of the 2.03
+                    CacheEntry refreshed = validation.entry.withLifetime(maxAge, System.nanoTime());
+                    if (!responseCache.replace(validation.cacheKey, validation.entry, refreshed)
+                            && responseCache.putIfAbsent(validation.cacheKey, refreshed) == null) {
+                        variants.add(validation.cacheKey);
+                    }
+                    LOGGER.finer("Validated cached response");
 
-                    // calculate the new parameters
-                    long newCurrentTime = response.getTimestamp();
-                    long newMaxAge = maxAgeOption.longValue();
+                    Response cachedResponse = refreshed.getResponse();
+                    cachedResponse.getOptions().setMaxAge(maxAge);
+                    return cachedResponse;
+                }
 
-                    // set the new parameters
-                    cachedResponse.getOptions().setMaxAge(newMaxAge);
-                    cachedResponse.setTimestamp(newCurrentTime);
+                CacheEntry cachedEntry = responseCache.getIfPresent(cacheKey);
+                if (cachedEntry != null) {
+                    // swap in an entry with the new parameters
+                    responseCache.replace(cacheKey, cachedEntry, cachedEntry.withLifetime(maxAge, System.nanoTime()));
 
                     LOGGER.finer("Updated cached response");
-                } else {
-                    LOGGER.warning("No max-age option set in response: " + response);
                 }
             } else if (code == ResponseCode.CONTENT) {
                 // set max-age if not set
-//				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
                 Long maxAgeOption = response.getOptions().getMaxAge();
                 if (maxAgeOption == null) {
-                    response.getOptions().setMaxAge(OptionNumberRegistry.Defaults.MAX_AGE);
+                    maxAgeOption = OptionNumberRegistry.Defaults.MAX_AGE;
+                    response.getOptions().setMaxAge(maxAgeOption);
                 }
 
                 if (maxAgeOption > 0) {
-                    // cache the request
-                    try {
-                        // Caches loaded by a CacheLoader will call
-                        // CacheLoader.load(K) to load new values into the cache
-                        // when used the get method.
-                        Response responseInserted = responseCache.get(cacheKey);
-                        if (responseInserted != null) {
-//							if (Bench_Help.DO_LOG) 
-                            LOGGER.finer("Cached response");
-                        } else {
-                            LOGGER.warning("Failed to insert the response in the cache");
-                        }
-                    } catch (Exception e) {
-                        // swallow
-                        LOGGER.log(Level.WARNING, "Exception while inserting the response in the cache", e);
-                    }
+                    // cache the request, the lifetime is counted from now on
+                    CacheEntry entry = CacheEntry.create(response, CACHE_ENTRY_MODE, codec, System.nanoTime());
+                    variants.add(cacheKey);
+                    responseCache.put(cacheKey, entry);
+                    fireChange(cacheKey.getUri());
+                    insertCount.increment();
+                    LOGGER.finer("Cached response");
                 } else {
                     // if the max-age option is set to 0, then the response
                     // should be invalidated
@@ -192,11 +364,17 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
                 LOGGER.severe("Code not recognized: " + code);
             }
         }
+        return response;
     }
 
+    /**
+     * Gets the stats of the cache. As the responses are not loaded by the
+     * cache, the load count is the number of inserted responses.
+     */
     @Override
     public CacheStats getCacheStats() {
-        return responseCache.stats();
+        return new CacheStats(hitCount.sum(), missCount.sum(), insertCount.sum(), 0, 0,
+                responseCache.evictionCount());
     }
 
     /**
@@ -206,7 +384,9 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
      * updates the max-age of the linked response to consider the time passed in
      * the cache (according to the freshness model) and returns it. On the
      * contrary, if the response has passed its expiration time, it is
-     * invalidated and the method returns null.
+     * returned while being refreshed if the stale-while-revalidate policy
+     * allows it, otherwise the method returns null and the entry is validated
+     * through the request, kept for stale-if-error, or invalidated.
      */
     @Override
     public Response getResponse(Request request) {
@@ -214,297 +394,412 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
             return null;
         }
 
-        // search the desired representation
-        Response response = null;
-        CacheKey cacheKey = null;
+        CacheLookupEvent event = new CacheLookupEvent();
+        event.begin();
 
-        for (CacheKey acceptKey : CacheKey.fromAcceptOptions(request)) {
-            response = responseCache.getIfPresent(acceptKey);
-            cacheKey = acceptKey;
-
-            if (response != null) {
-                break;
-            }
+        if (observeManager != null) {
+            observeManager.onRequest(request);
         }
 
+        // search the desired representation
+        CachedVariant cached = lookup(request);
+
         // if the response is not null, manage the cached response
-        if (response != null) {
+        Response response = null;
+        if (cached != null) {
             LOGGER.finer("Cache hit");
+            CacheKey cacheKey = cached.cacheKey;
+            CacheEntry entry = cached.entry;
 
             // check if the response is expired
             long currentTime = System.nanoTime();
-            long nanosLeft = getRemainingLifetime(response, currentTime);
-            if (nanosLeft > 0) {
+            long secondsLeft = entry.getRemainingLifetime(currentTime);
+            if (secondsLeft > 0) {
                 // if the response can be used, then update its max-age to
                 // consider the aging of the response while in the cache
-                response.getOptions().setMaxAge(nanosLeft);
+                response = entry.getResponse();
+                response.getOptions().setMaxAge(secondsLeft);
                 // set the current time as the response timestamp
                 response.setTimestamp(currentTime);
             } else {
                 LOGGER.finer("Expired response");
-
-                // try to validate the response
-                response = validate(cacheKey);
-                if (response != null) {
-                    LOGGER.finer("Validation successful");
-                } else {
+                CachePolicy policy = CACHE_POLICIES.get(cacheKey.getUri());
+
+                if (policy.canServeWhileRevalidating(-secondsLeft) && refresh(cacheKey, entry)) {
+                    // serve the stale response, a refresh is in progress
+                    response = entry.getResponse();
+                    response.getOptions().setMaxAge(0);
+                    response.setTimestamp(currentTime);
+                } else if (validate(request, cacheKey, entry)) {
+                    // the request is forwarded either way
+                    LOGGER.finer("Validating response");
+                } else if (!policy.canServeOnError(-secondsLeft)) {
                     invalidateRequest(cacheKey);
                 }
             }
         }
 
+        if (response != null) {
+            hitCount.increment();
+        } else {
+            missCount.increment();
+        }
+        if (partitionedCache != null) {
+            partitionedCache.recordRequest(CacheKey.getAuthority(CacheKey.getUri(request)), response != null);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.uri = request.getOptions().getProxyUri();
+            event.hit = response != null;
+            event.commit();
+        }
         return response;
     }
 
+    /**
+     * Counts a request answered from a cache in front of this one, e.g. the
+     * translated HTTP responses, as a hit of this cache. The request also
+     * counts towards observing the resource, whose notifications keep the
+     * cache in front fresh through the change listener.
+     *
+     * @param cacheKey the key of the plain GET request, as forwarded
+     */
+    public void recordHit(CacheKey cacheKey) {
+        hitCount.increment();
+        if (partitionedCache != null) {
+            partitionedCache.recordRequest(CacheKey.getAuthority(cacheKey.getUri()), true);
+        }
+        if (observeManager != null) {
+            observeManager.onRequest(cacheKey);
+        }
+    }
+
+    /**
+     * Invalidates every cached representation of the resource the request
+     * targets, regardless of its accept option and payload.
+     */
     @Override
     public void invalidateRequest(Request request) {
-        invalidateRequest(CacheKey.fromAcceptOptions(request));
+        String uri = CacheKey.getUri(request);
+        responseCache.invalidateAll(variants.get(uri));
+        if (secondLevel != null) {
+            secondLevel.invalidateAll(uri);
+        }
         LOGGER.finer("Invalidated request");
     }
 
+    /**
+     * Invalidates every cached representation of the resources under a URI
+     * prefix, such as "coap://host/sensors" or "coap://host" for a whole
+     * host, see {@link VariantIndex#getByPrefix(String)}. The cost depends on
+     * the number of matched resources, not on the size of the cache.
+     *
+     * @return the number of cached values invalidated
+     */
+    public int invalidatePrefix(String prefix) {
+        String normalized = CacheKey.normalizeUri(prefix);
+        int invalidated = 0;
+        for (CacheKey cacheKey : variants.getByPrefix(normalized)) {
+            if (responseCache.asMap().containsKey(cacheKey)) {
+                responseCache.invalidate(cacheKey);
+                invalidated++;
+            }
+        }
+        if (secondLevel != null) {
+            invalidated += secondLevel.invalidatePrefix(normalized);
+        }
+        LOGGER.finer("Invalidated " + invalidated + " values under " + normalized);
+        return invalidated;
+    }
+
     @Override
     public void handleDELETE(CoapExchange exchange) {
+        String prefix = getPrefix(exchange);
+        if (prefix != null) {
+            int invalidated = invalidatePrefix(prefix);
+            exchange.respond(ResponseCode.DELETED, "Invalidated " + invalidated + " values");
+            return;
+        }
+
         responseCache.invalidateAll();
+        variants.clear();
+        if (secondLevel != null) {
+            try {
+                secondLevel.clear();
+            } catch (IOException e) {
+                LOGGER.warning("Cannot clear the second-level cache: " + e.getMessage());
+            }
+        }
         exchange.respond(ResponseCode.DELETED);
     }
 
     @Override
     public void handleGET(CoapExchange exchange) {
         StringBuilder builder = new StringBuilder();
-        builder.append("Available commands:\n - GET: show cached values\n - DELETE: empty the cache\n - POST: enable/disable caching\n");
+        builder.append("Available commands:\n - GET: show cached values\n - GET ?prefix=<uri>: show cached values under a URI prefix\n - DELETE: empty the cache\n - DELETE ?prefix=<uri>: invalidate cached values under a URI prefix\n - POST: enable/disable caching\n");
 
         // get cache values
+        String prefix = getPrefix(exchange);
+        Iterable<CacheKey> cachedRequests = prefix == null
+                ? responseCache.asMap().keySet()
+                : variants.getByPrefix(CacheKey.normalizeUri(prefix));
         builder.append("\nCached values:\n");
-        for (CacheKey cachedRequest : responseCache.asMap().keySet()) {
-            Response response = responseCache.asMap().get(cachedRequest);
+        for (CacheKey cachedRequest : cachedRequests) {
+            CacheEntry entry = responseCache.asMap().get(cachedRequest);
+            if (entry == null) {
+                continue;
+            }
 
-            builder.append(cachedRequest.getProxyUri()).append(" (").append(
-                    CustomMediaTypeRegistry.toString(cachedRequest.getMediaType())).append(") > ").append(getRemainingLifetime(response)).append(" seconds | (").append(cachedRequest.getMediaType()).append(")\n");
+            builder.append(cachedRequest.getUri()).append(" (").append(
+                    CustomMediaTypeRegistry.toString(cachedRequest.getMediaType())).append(") > ").append(entry.getRemainingLifetime(System.nanoTime())).append(" seconds | (").append(cachedRequest.getMediaType()).append(")\n");
+        }
+
+        if (observeManager != null) {
+            builder.append("\nObserved resources: ").append(observeManager.getRelationCount()).append("\n");
+        }
+        if (secondLevel != null) {
+            builder.append("\nSecond-level cache: ").append(secondLevel.size()).append(" values\n");
         }
 
         exchange.respond(ResponseCode.CONTENT, builder.toString());
     }
 
+    /**
+     * Gets the URI prefix given by the prefix query parameter of a request to
+     * this resource, or null if there is none. A trailing '*' is ignored.
+     */
+    private static String getPrefix(CoapExchange exchange) {
+        for (String query : exchange.getRequestOptions().getUriQuery()) {
+            if (query.startsWith("prefix=")) {
+                String prefix = query.substring("prefix=".length());
+                if (prefix.endsWith("*")) {
+                    prefix = prefix.substring(0, prefix.length() - 1);
+                }
+                return prefix;
+            }
+        }
+        return null;
+    }
+
     @Override
     public void handlePOST(CoapExchange exchange) {
         enabled = !enabled;
+        fireChange(null);
         String content = enabled ? "Enabled" : "Disabled";
         exchange.respond(ResponseCode.CHANGED, content);
     }
 
-    private long getRemainingLifetime(Response response) {
-        return getRemainingLifetime(response, System.nanoTime());
-    }
-
     /**
-     * Method that checks if the lifetime allowed for the response if expired.
-     * The result is calculated with the initial timestamp (when the response
-     * has been received) and the max-age option compared against the current
-     * timestamp. If the max-age option is not specified, it will be assumed the
-     * default (60 seconds).
-     *
-     * @param response    the response
-     * @param currentTime
-     * @return true, if is expired
+     * Sets the resource forwarding the background refreshes of stale
+     * responses. Without it, stale responses are not served while
+     * revalidating.
      */
-    private long getRemainingLifetime(Response response, long currentTime) {
-        // get the timestamp
-        long arriveTime = response.getTimestamp();
-
-        Long maxAgeOption = response.getOptions().getMaxAge();
-        long oldMaxAge = OptionNumberRegistry.Defaults.MAX_AGE;
-        if (maxAgeOption != null) {
-            oldMaxAge = maxAgeOption.longValue();
-        }
-
-        // calculate the time that the response has spent in the cache
-        double secondsInCache = TimeUnit.NANOSECONDS.toSeconds(currentTime - arriveTime);
-        int cacheTime = Ints.checkedCast(Math.round(secondsInCache));
-        return oldMaxAge - cacheTime;
-    }
-
-    private void invalidateRequest(CacheKey cacheKey) {
-        responseCache.invalidate(cacheKey);
+    public void setForwardingResource(ForwardingResource forwardingResource) {
+        this.forwardingResource = forwardingResource;
     }
 
-    private void invalidateRequest(List<CacheKey> cacheKeys) {
-        responseCache.invalidateAll(cacheKeys);
+    /**
+     * Sets the listener told the URI of each resource whose cached responses
+     * are stored, replaced or removed, or null if all may have changed.
+     */
+    public void setChangeListener(Consumer<String> changeListener) {
+        this.changeListener = changeListener;
     }
 
-    private Response validate(CacheKey cachedRequest) {
-        // TODO
-        return null;
+    private void fireChange(String uri) {
+        Consumer<String> listener = changeListener;
+        if (listener != null) {
+            listener.accept(uri);
+        }
     }
 
     /**
-     * Nested class that normalizes the variable fields of the coap requests to
-     * be used as a key for the cache. The class tries to handle also the
-     * different requests that must refer to the same response (e.g., requests
-     * that with or without the accept options produce the same response).
-     */
-    private static final class CacheKey {
-        private final String proxyUri;
-        private final int mediaType;
-        private Response response;
-        private final byte[] payload;
-
-        /**
-         * Creates a list of keys for the cache from a request with multiple
-         * accept options set. Method needed to search for content-type
-         * wildcards in the cache (text/* means: text/plain, text/html,
-         * text/xml, text/csv, etc.). If the accept option is not set, it simply
-         * gives back the keys for every representation.
-         *
-         * @param request
-         * @return the list of cache keys
-         */
-        private static List<CacheKey> fromAcceptOptions(Request request) {
-            if (request == null) {
-                throw new IllegalArgumentException("request == null");
+     * Finds the cached representation the request asks for, fresh or not. A
+     * representation found in the second-level cache is promoted to the
+     * cache.
+     *
+     * @return the representation or null if none is cached
+     */
+    private CachedVariant lookup(Request request) {
+        int accept = request.getOptions().getAccept();
+        if (accept >= 0) {
+            CacheKey cacheKey = CacheKey.fromRequest(request, accept);
+            CacheEntry entry = responseCache.getIfPresent(cacheKey);
+            if (entry == null) {
+                entry = promote(cacheKey);
             }
+            return entry != null ? new CachedVariant(cacheKey, entry) : null;
+        }
 
-            List<CacheKey> cacheKeys = new LinkedList<ProxyCacheResource.CacheKey>();
-            String proxyUri = request.getOptions().getProxyUri();
-            try {
-                // TODO why not UTF-8?
-                proxyUri = URLEncoder.encode(proxyUri, "ISO-8859-1");
-            } catch (UnsupportedEncodingException e) {
-                LOGGER.severe("ISO-8859-1 encoding not supported: " + e.getMessage());
-            }
-            byte[] payload = request.getPayload();
-
-            // Implementation in new Cf (Only one accept option allowed)
-            int accept = request.getOptions().getAccept();
-            if (accept < 0) {
-                // if the accept options are not set, simply set all media types
-                // FIXME not efficient
-                for (Integer acceptType : CustomMediaTypeRegistry.getAllMediaTypes()) {
-                    cacheKeys.add(new CacheKey(proxyUri, acceptType, payload));
+        // if the accept option is not set, any cached representation will do
+        CacheKey requestKey = CacheKey.fromRequest(request, CustomMediaTypeRegistry.UNDEFINED);
+        for (CacheKey variantKey : variants.get(requestKey.getUri())) {
+            if (variantKey.isVariantOf(requestKey)) {
+                CacheEntry entry = responseCache.getIfPresent(variantKey);
+                if (entry != null) {
+                    return new CachedVariant(variantKey, entry);
                 }
-            } else {
-                cacheKeys.add(new CacheKey(proxyUri, accept, payload));
             }
-
-            return cacheKeys;
         }
-
-        /**
-         * Create a key for the cache starting from a request and the
-         * content-type of the corresponding response.
-         *
-         * @param request
-         * @return
-         * @throws URISyntaxException
-         */
-        private static CacheKey fromContentTypeOption(Request request) throws URISyntaxException {
-            if (request == null) {
-                throw new IllegalArgumentException("request == null");
-            }
-
-            Response response = request.getResponse();
-            if (response == null) {
-                return fromAcceptOptions(request).get(0);
-            }
-
-            String proxyUri = request.getOptions().getProxyUri();
-            int mediaType = response.getOptions().getContentFormat();
-            if (mediaType < 0) {
-                // content-format option not set, use default
-                mediaType = CustomMediaTypeRegistry.TEXT_PLAIN;
+        if (secondLevel != null) {
+            for (CacheKey variantKey : secondLevel.getVariants(requestKey.getUri())) {
+                if (variantKey.isVariantOf(requestKey)) {
+                    CacheEntry entry = promote(variantKey);
+                    if (entry != null) {
+                        return new CachedVariant(variantKey, entry);
+                    }
+                }
             }
-            byte[] payload = request.getPayload();
-
-            // create the new cacheKey
-            CacheKey cacheKey = new CacheKey(proxyUri, mediaType, payload);
-            cacheKey.setResponse(response);
+        }
+        return null;
+    }
 
-            return cacheKey;
+    /**
+     * Moves the entry of the key from the second-level cache to the cache.
+     *
+     * @return the entry or null if the second-level cache does not hold it
+     */
+    private CacheEntry promote(CacheKey cacheKey) {
+        if (secondLevel == null) {
+            return null;
+        }
+        CacheEntry entry = secondLevel.get(cacheKey);
+        if (entry == null) {
+            return null;
         }
 
-        public CacheKey(String proxyUri, int mediaType, byte[] payload) {
-            this.proxyUri = proxyUri;
-            this.mediaType = mediaType;
-            this.payload = payload;
+        LOGGER.finer("Promoted response from the second-level cache");
+        CacheEntry current = responseCache.putIfAbsent(cacheKey, entry);
+        if (current != null) {
+            return current;
         }
+        variants.add(cacheKey);
+        return entry;
+    }
 
-        /*
-         * (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
-            }
-            CacheKey other = (CacheKey) obj;
-            if (mediaType != other.mediaType) {
-                return false;
-            }
-            if (!Arrays.equals(payload, other.payload)) {
-                return false;
-            }
-            if (proxyUri == null) {
-                if (other.proxyUri != null) {
-                    return false;
-                }
-            } else if (!proxyUri.equals(other.proxyUri)) {
-                return false;
-            }
+    /**
+     * Refreshes a stale entry in the background, unless a refresh of it is
+     * already in progress. The refresh is a GET for the representation,
+     * conditional if the entry has an entity-tag; its response is cached as
+     * any other.
+     *
+     * @return true if the entry is being refreshed
+     */
+    private boolean refresh(CacheKey cacheKey, CacheEntry entry) {
+        ForwardingResource forwarder = forwardingResource;
+        if (forwarder == null) {
+            return false;
+        }
+        if (!refreshing.add(cacheKey)) {
             return true;
         }
 
-        /**
-         * @return the mediaType
-         */
-        public int getMediaType() {
-            return mediaType;
+        LOGGER.finer("Refreshing stale response");
+        Request refresh = Request.newGet();
+        refresh.getOptions().setProxyUri(cacheKey.getUri());
+        refresh.getOptions().setAccept(cacheKey.getMediaType());
+        if (cacheKey.getPayload() != null) {
+            refresh.setPayload(cacheKey.getPayload());
+        }
+        if (entry.getETag() != null) {
+            refresh.getOptions().addETag(entry.getETag());
+            pendingValidations.put(refresh, new CachedVariant(cacheKey, entry));
         }
 
-        /**
-         * @return the proxyUri
-         */
-        public String getProxyUri() {
-            return proxyUri;
+        forwarder.getCoalescer().forward(refresh, forwarder::forwardRequest).whenComplete((response, error) -> {
+            refreshing.remove(cacheKey);
+            if (response != null) {
+                refresh.setResponse(response);
+                cacheResponse(refresh, response);
+            } else {
+                pendingValidations.invalidate(refresh);
+            }
+        });
+        return true;
+    }
+
+    private void invalidateRequest(CacheKey cacheKey) {
+        responseCache.invalidate(cacheKey);
+        if (secondLevel != null) {
+            secondLevel.invalidate(cacheKey);
         }
+    }
 
-        /**
-         * @return the response
-         */
-        public Response getResponse() {
-            return response;
+    /**
+     * Turns the request into a conditional request for the stale entry, by
+     * adding the entity-tag of the cached response. The outcome is handled
+     * when the response is cached: 2.03 refreshes the entry, 2.05 replaces it.
+     * A request that carries entity-tags of its own is left to its client.
+     *
+     * @return true if the request will validate the entry
+     */
+    private boolean validate(Request request, CacheKey cacheKey, CacheEntry entry) {
+        byte[] etag = entry.getETag();
+        if (etag == null || request.getCode() != Code.GET || request.getOptions().getETagCount() > 0) {
+            return false;
         }
 
-        /*
-         * (non-Javadoc)
-         * @see java.lang.Object#hashCode()
-         */
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + mediaType;
-            result = prime * result + Arrays.hashCode(payload);
-            result = prime * result + (proxyUri == null ? 0 : proxyUri.hashCode());
-            return result;
+        request.getOptions().addETag(etag);
+        pendingValidations.put(request, new CachedVariant(cacheKey, entry));
+        return true;
+    }
+
+    /**
+     * Creates the key of the representation a response carries. If the
+     * content-format is not set, the response is assumed to be text/plain.
+     */
+    private static CacheKey fromContentFormat(Request request, Response response) {
+        int mediaType = response.getOptions().getContentFormat();
+        if (mediaType < 0) {
+            // content-format option not set, use default
+            mediaType = CustomMediaTypeRegistry.TEXT_PLAIN;
         }
+        return CacheKey.fromRequest(request, mediaType);
+    }
 
-        private void setResponse(Response response) {
-            this.response = response;
+    private static final class CachedVariant {
+        private final CacheKey cacheKey;
+        private final CacheEntry entry;
 
+        private CachedVariant(CacheKey cacheKey, CacheEntry entry) {
+            this.cacheKey = cacheKey;
+            this.entry = entry;
         }
     }
 
+    /**
+     * Gets the statistics of the per-host partitions of the cache, empty if
+     * the cache is not partitioned.
+     */
+    public List<PartitionedCacheEngine.PartitionStats> getPartitionStats() {
+        return partitionedCache != null ? partitionedCache.getPartitionStats()
+                : Collections.<PartitionedCacheEngine.PartitionStats>emptyList();
+    }
+
+    /**
+     * Gets the number of entries evicted from their partition and kept in the
+     * shared overflow pool, 0 if the cache is not partitioned.
+     */
+    public long getOverflowSize() {
+        return partitionedCache != null ? partitionedCache.getOverflowSize() : 0;
+    }
+
+    /**
+     * Gets the manager observing the resources requested often.
+     *
+     * @return the manager or null if observing is disabled
+     */
+    public ObserveManager getObserveManager() {
+        return observeManager;
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
 
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
+        fireChange(null);
     }
 }
@@ -20,6 +20,8 @@ package no.ntnu.coap.gateway.proxy.resources;
 import no.ntnu.coap.gateway.proxy.CoapTranslator;
 import no.ntnu.coap.gateway.proxy.EndPointManagerPool;
 import no.ntnu.coap.gateway.proxy.TranslationException;
+import no.ntnu.coap.gateway.proxy.jfr.CoapExchangeEvent;
+import no.ntnu.coap.gateway.proxy.stats.RequestTiming;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.MessageObserver;
 import org.eclipse.californium.core.coap.Request;
@@ -64,6 +66,8 @@ public class ProxyCoapClientResource extends ForwardingResource {
         // FIXME: HACK // TODO: why? still necessary in new Cf?
         request.getOptions().clearUriPath();
 
+        final RequestTiming timing = RequestTiming.of(request);
+
         final EndpointManager endpointManager = EndPointManagerPool.getManager();
         future.thenAccept(response -> EndPointManagerPool.putClient(endpointManager));
 
@@ -72,6 +76,11 @@ public class ProxyCoapClientResource extends ForwardingResource {
         try {
             // create the new request from the original
             outgoingRequest = CoapTranslator.getRequest(request);
+            // sent right after the observer below is added
+            final long sent = System.nanoTime();
+            final CoapExchangeEvent event = new CoapExchangeEvent();
+            event.begin();
+            final Request forwarded = outgoingRequest;
 
 //			// enable response queue for blocking I/O
             // LOL no
@@ -84,37 +93,73 @@ public class ProxyCoapClientResource extends ForwardingResource {
             // receive the response // TODO: don't wait for ever
             outgoingRequest.addMessageObserver(new MessageObserver() {
 
+                private int retransmissions;
+
                 @Override
                 public void onResponse(Response response) {
+                    commit(response.getCode().toString(), false);
+                    if (timing != null) {
+                        timing.record(RequestTiming.Stage.UPSTREAM, sent);
+                    }
                     Response outgoingResponse = CoapTranslator.getResponse(response);
                     future.complete(outgoingResponse);
                 }
 
                 @Override
                 public void onAcknowledgement() {
+                    if (timing != null) {
+                        timing.record(RequestTiming.Stage.ACK, sent);
+                    }
                 }
 
                 @Override
                 public void onReject() {
                     LOGGER.warning("Request rejected.");
+                    commit(null, false);
                     future.complete(new Response(CoapTranslator.STATUS_TIMEOUT));
                 }
 
                 @Override
                 public void onTimeout() {
                     LOGGER.warning("Request timed out.");
+                    if (timing != null) {
+                        timing.record(RequestTiming.Stage.UPSTREAM, sent);
+                        timing.timedOut();
+                    }
+                    commit(null, true);
                     future.complete(new Response(CoapTranslator.STATUS_TIMEOUT));
                 }
 
                 @Override
                 public void onCancel() {
                     LOGGER.warning("Request canceled.");
+                    commit(null, false);
                     future.complete(new Response(CoapTranslator.STATUS_TIMEOUT));
                 }
 
+                /**
+                 * Commits the flight recorder event of the exchange, if
+                 * enabled and over its threshold.
+                 */
+                private void commit(String responseCode, boolean timedOut) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.destination = forwarded.getDestination().getHostAddress() + ":" + forwarded.getDestinationPort();
+                        event.uri = forwarded.getURI();
+                        event.responseCode = responseCode;
+                        event.retransmissions = retransmissions;
+                        event.timedOut = timedOut;
+                        event.commit();
+                    }
+                }
+
                 @Override
                 public void onRetransmission() {
                     LOGGER.info("Trying sending again");
+                    retransmissions++;
+                    if (timing != null) {
+                        timing.retransmitted();
+                    }
                 }
 /*
             @Override
@@ -19,6 +19,7 @@ package no.ntnu.coap.gateway.proxy.resources;
 
 import no.ntnu.coap.gateway.proxy.*;
 import no.ntnu.coap.gateway.proxy.http.HttpClientPool;
+import no.ntnu.coap.gateway.proxy.log.AccessLog;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -111,13 +112,14 @@ public class ProxyHttpClientResource extends ForwardingResource {
 
 
         // execute the request
-
+        final long sent = System.nanoTime();
         asyncClient.execute(httpHost, httpRequest, new BasicHttpContext(), new FutureCallback<HttpResponse>() {
             @Override
             public void completed(HttpResponse result) {
                 long timestamp = System.nanoTime();
                 //LOGGER.info("Incoming http response: " + result.getStatusLine());
-                LOGGER.info("--> <-- " + httpRequest.getRequestLine().getUri() + " HTTP " + result.getStatusLine().getStatusCode());
+                AccessLog.getDefault().log(AccessLog.Kind.UPSTREAM_HTTP, httpRequest.getRequestLine().getMethod(),
+                        proxyUri.toString(), result.getStatusLine().getStatusCode(), false, timestamp - sent);
                 // the entity of the response, if non repeatable, could be
                 // consumed only one time, so do not debug it!
                 // System.out.println(EntityUtils.toString(httpResponse.getEntity()));
@@ -0,0 +1,156 @@
+package no.ntnu.coap.gateway.proxy.resources;
+
+import no.ntnu.coap.gateway.proxy.cache.CacheKey;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Forwards concurrent identical GET requests only once: while a request is in
+ * flight, an identical one waits for its response instead of being forwarded
+ * as well. Requests are identical if they have the same cache key (see
+ * {@link CacheKey}) and entity-tags. Observe and block-wise requests are
+ * always forwarded on their own.
+ * <p>
+ * Each caller gets its own copy of the response, so they can modify it
+ * independently.
+ */
+public class RequestCoalescer {
+
+    private final ConcurrentMap<FlightKey, CompletableFuture<Response>> inFlight =
+            new ConcurrentHashMap<FlightKey, CompletableFuture<Response>>();
+
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    /**
+     * Forwards the request with the given function, unless an identical
+     * request is in flight.
+     *
+     * @param request   the request
+     * @param forwarder forwards a request upstream
+     * @return the response
+     */
+    public CompletableFuture<Response> forward(Request request, Function<Request, CompletableFuture<Response>> forwarder) {
+        if (!isCoalescable(request)) {
+            return forwarder.apply(request);
+        }
+
+        FlightKey key = new FlightKey(request);
+        CompletableFuture<Response> flight = new CompletableFuture<Response>();
+        CompletableFuture<Response> pending = inFlight.putIfAbsent(key, flight);
+        if (pending != null) {
+            coalescedCount.increment();
+            return pending.thenApply(RequestCoalescer::copy);
+        }
+
+        forwardedCount.increment();
+        CompletableFuture<Response> forwarded;
+        try {
+            forwarded = forwarder.apply(request);
+        } catch (RuntimeException e) {
+            // the identical requests joined meanwhile fail with this one
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            return flight.thenApply(RequestCoalescer::copy);
+        }
+        forwarded.whenComplete((response, error) -> {
+            inFlight.remove(key, flight);
+            if (error != null) {
+                flight.completeExceptionally(error);
+            } else {
+                flight.complete(response);
+            }
+        });
+        return flight.thenApply(RequestCoalescer::copy);
+    }
+
+    /**
+     * @return the number of requests forwarded upstream that other requests
+     * could have joined
+     */
+    public long getForwardedCount() {
+        return forwardedCount.sum();
+    }
+
+    /**
+     * @return the number of requests answered with the response of an
+     * identical request in flight
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * @return the number of requests in flight that can be joined
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static boolean isCoalescable(Request request) {
+        OptionSet options = request.getOptions();
+        return request.getCode() == Code.GET && options.hasProxyUri() && !options.hasObserve()
+                && !options.hasBlock1() && !options.hasBlock2()
+                && options.getIfMatchCount() == 0 && !options.hasIfNoneMatch();
+    }
+
+    private static Response copy(Response response) {
+        Response copy = new Response(response.getCode());
+        copy.setOptions(new OptionSet(response.getOptions()));
+        copy.setPayload(response.getPayload());
+        return copy;
+    }
+
+    private static final class FlightKey {
+        private final CacheKey cacheKey;
+        private final List<byte[]> etags;
+        private final int hash;
+
+        private FlightKey(Request request) {
+            this.cacheKey = CacheKey.fromRequest(request, request.getOptions().getAccept());
+            this.etags = new ArrayList<byte[]>(request.getOptions().getETags());
+
+            int hash = cacheKey.hashCode();
+            for (byte[] etag : etags) {
+                hash = 31 * hash + Arrays.hashCode(etag);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FlightKey)) {
+                return false;
+            }
+            FlightKey other = (FlightKey) obj;
+            if (hash != other.hash || !cacheKey.equals(other.cacheKey) || etags.size() != other.etags.size()) {
+                return false;
+            }
+            for (int i = 0; i < etags.size(); i++) {
+                if (!Arrays.equals(etags.get(i), other.etags.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -18,22 +18,37 @@
 package no.ntnu.coap.gateway.proxy.resources;
 
 import com.google.common.cache.CacheStats;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import no.ntnu.coap.gateway.proxy.CustomMediaTypeRegistry;
+import no.ntnu.coap.gateway.proxy.EndPointManagerPool;
+import no.ntnu.coap.gateway.proxy.ProxyProperties;
+import no.ntnu.coap.gateway.proxy.cache.PartitionedCacheEngine;
+import no.ntnu.coap.gateway.proxy.http.HttpClientPool;
+import no.ntnu.coap.gateway.proxy.stats.CborWriter;
+import no.ntnu.coap.gateway.proxy.stats.ExchangeCounter;
+import no.ntnu.coap.gateway.proxy.stats.HeavyHitters;
+import no.ntnu.coap.gateway.proxy.stats.JsonWriter;
+import no.ntnu.coap.gateway.proxy.stats.LatencyHistogram;
+import no.ntnu.coap.gateway.proxy.stats.MetricsJournal;
+import no.ntnu.coap.gateway.proxy.stats.RouteStats;
+import no.ntnu.coap.gateway.proxy.stats.StatsSnapshot;
+import no.ntnu.coap.gateway.proxy.stats.StructuredWriter;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
 import java.io.File;
-import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 
@@ -42,9 +57,49 @@ import java.util.concurrent.TimeUnit;
  */
 public class StatsResource extends CoapResource {
 
-    private final Table<String, String, StatHelper> statsTable = HashBasedTable.create();
+    /**
+     * The length of the last period over which requests and round-trip times
+     * are shown besides the totals.
+     */
+    private static final int PERIOD_SECONDS = 60;
+
+    /**
+     * Every how many notifications the observers get all the statistics
+     * rather than what changed, so that they recover from a lost one.
+     */
+    private static final int FULL_NOTIFICATION_EVERY = 30;
+
+    // shares the strings of the addresses between their routes
+    private static final Interner<String> ADDRESS_INTERNER = Interners.newWeakInterner();
 
-    private static String CACHE_LOG_NAME = "_cache_log.log";
+    /**
+     * The most requested addresses, and the most requested routes with their
+     * statistics, tracked in constant memory.
+     */
+    private final HeavyHitters<String> addresses =
+            new HeavyHitters<String>(ProxyProperties.std.getInt("STATS_TRACKED_ADDRESSES"));
+    private final HeavyHitters<RouteStats> routes =
+            new HeavyHitters<RouteStats>(ProxyProperties.std.getInt("STATS_TRACKED_ROUTES"));
+
+    /**
+     * Snapshots the counters of the proxy at a fixed interval.
+     */
+    private final MetricsJournal journal;
+
+    /**
+     * Notifies the observers of the statistics of their changes, for all the
+     * stats resources.
+     */
+    private static final ScheduledExecutorService NOTIFIER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stats-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The notifications of this resource, cancelled when it is deleted.
+     */
+    private final List<ScheduledFuture<?>> notifications = new ArrayList<ScheduledFuture<?>>();
 
     /**
      * Instantiates a new stats resource.
@@ -55,46 +110,182 @@ public class StatsResource extends CoapResource {
         super("stats");
         getAttributes().setTitle("Keeps track of the requests served by the proxy.");
 
+        journal = createJournal(cacheResource);
+        if (ProxyProperties.std.getBool("METRICS_JOURNAL_ENABLED")) {
+            journal.start();
+        }
+
         // add the sub-resource to show stats
-        add(new CacheStatResource("cache", cacheResource));
-        add(new ProxyStatResource("proxy"));
+        ObservableStatResource cacheStats = new CacheStatResource("cache", cacheResource, journal);
+        ObservableStatResource proxyStats = new ProxyStatResource("proxy");
+        add(cacheStats);
+        add(proxyStats);
+
+        int notifyInterval = ProxyProperties.std.getInt("STATS_NOTIFY_INTERVAL");
+        notifications.add(NOTIFIER.scheduleAtFixedRate(cacheStats::notifyChanges, notifyInterval, notifyInterval, TimeUnit.SECONDS));
+        notifications.add(NOTIFIER.scheduleAtFixedRate(proxyStats::notifyChanges, notifyInterval, notifyInterval, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Deletes the resource and stops notifying its observers.
+     */
+    @Override
+    public synchronized void delete() {
+        for (ScheduledFuture<?> notification : notifications) {
+            notification.cancel(false);
+        }
+        super.delete();
     }
 
+    private static MetricsJournal createJournal(CacheResource cacheResource) {
+        MetricsJournal journal = new MetricsJournal(
+                new File(ProxyProperties.std.getStr("METRICS_JOURNAL_DIRECTORY")),
+                ProxyProperties.std.getInt("METRICS_JOURNAL_INTERVAL"), TimeUnit.SECONDS,
+                ProxyProperties.std.getInt("METRICS_JOURNAL_FILE_BYTES"),
+                ProxyProperties.std.getInt("METRICS_JOURNAL_FILES"));
+        ExchangeCounter exchanges = EndPointManagerPool.getExchangeCounter();
+        Runtime runtime = Runtime.getRuntime();
+        return journal
+                .addColumn("cache_hits", () -> cacheResource.getCacheStats().hitCount())
+                .addColumn("cache_misses", () -> cacheResource.getCacheStats().missCount())
+                .addColumn("cache_inserts", () -> cacheResource.getCacheStats().loadSuccessCount())
+                .addColumn("cache_evictions", () -> cacheResource.getCacheStats().evictionCount())
+                .addColumn("endpoint_managers_idle", () -> (long) EndPointManagerPool.getIdleCount())
+                .addColumn("endpoint_managers_created", EndPointManagerPool::getCreatedCount)
+                .addColumn("http_connections_leased", () -> (long) HttpClientPool.getTotalStats().getLeased())
+                .addColumn("http_connections_pending", () -> (long) HttpClientPool.getTotalStats().getPending())
+                .addColumn("coap_requests_sent", exchanges::getRequestsSent)
+                .addColumn("coap_responses_received", exchanges::getResponsesReceived)
+                .addColumn("heap_used_bytes", () -> runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Counts a request for the resource given by its proxy-uri, answered
+     * from the cache or not.
+     */
     public void updateStatistics(Request request, boolean cachedResponse) {
-        URI proxyUri = null;
-        try {
-            proxyUri = new URI(request.getOptions().getProxyUri());
-        } catch (URISyntaxException e) {
-            LOGGER.warning(String.format("Proxy-uri malformed: %s",
-                    request.getOptions().getProxyUri()));
+        updateStatistics(request.getOptions().getProxyUri(), cachedResponse);
+    }
+
+    /**
+     * Counts a request for the resource given by its proxy-uri.
+     *
+     * @param cachedResponse whether the request was answered from a cache
+     */
+    public void updateStatistics(String proxyUri, boolean cachedResponse) {
+        int addressStart = getAddressStart(proxyUri);
+        if (addressStart < 0) {
+            return;
+        }
+        int addressEnd = getAddressEnd(proxyUri, addressStart);
+        long addressKey = hash(proxyUri, addressStart, addressEnd, 0);
+
+        addresses.record(addressKey, proxyUri, StatsResource::getAddress);
+        HeavyHitters.Entry<RouteStats> route = routes.record(getRouteKey(proxyUri, addressEnd, addressKey),
+                proxyUri, StatsResource::newRouteStats);
+        if (route != null) {
+            route.getValue().recordRequest(cachedResponse);
         }
+    }
 
-        if (proxyUri == null) {
-            // throw new IllegalArgumentException("proxyUri == null");
+    /**
+     * Counts the response from upstream to a request forwarded for the
+     * resource given by its proxy-uri, if the resource is tracked.
+     *
+     * @param roundTripNanos the time from forwarding the request to receiving
+     *                       the response
+     */
+    public void updateStatistics(Request request, Response response, long roundTripNanos) {
+        String proxyUri = request.getOptions().getProxyUri();
+        int addressStart = getAddressStart(proxyUri);
+        if (addressStart < 0) {
             return;
         }
+        int addressEnd = getAddressEnd(proxyUri, addressStart);
+        long addressKey = hash(proxyUri, addressStart, addressEnd, 0);
 
-        // manage the address requester
-        String addressString = proxyUri.getHost();
-        if (addressString != null) {
-            // manage the resource requested
-            String resourceString = proxyUri.getPath();
-            if (resourceString != null) {
-                // check if there is already an entry for the row/column
-                // association
-                StatHelper statHelper = statsTable.get(addressString, resourceString);
-                if (statHelper == null) {
-                    // create a new stat if it not present
-                    statHelper = new StatHelper();
-
-                    // add the new element to the table
-                    statsTable.put(addressString, resourceString, statHelper);
-                }
+        HeavyHitters.Entry<RouteStats> route = routes.get(getRouteKey(proxyUri, addressEnd, addressKey));
+        if (route != null) {
+            route.getValue().recordResponse(response.getCode(), roundTripNanos);
+        }
+    }
+
+    /**
+     * Gets the most requested routes with their statistics, the most
+     * requested first.
+     */
+    public List<HeavyHitters.Entry<RouteStats>> getTopRoutes() {
+        return routes.getTop();
+    }
 
-                // increment the count of the requests
-                statHelper.increment(cachedResponse);
+    /**
+     * Gets the most requested addresses, the most requested first.
+     */
+    public List<HeavyHitters.Entry<String>> getTopAddresses() {
+        return addresses.getTop();
+    }
+
+    // the proxy-uri is split in address and resource without parsing all of
+    // it nor taking substrings, the address being the authority of the uri
+
+    private static int getAddressStart(String proxyUri) {
+        if (proxyUri == null) {
+            return -1;
+        }
+        int schemeEnd = proxyUri.indexOf("://");
+        if (schemeEnd < 0) {
+            LOGGER.warning(String.format("Proxy-uri malformed: %s", proxyUri));
+            return -1;
+        }
+        return schemeEnd + 3;
+    }
+
+    private static int getAddressEnd(String proxyUri, int addressStart) {
+        int addressEnd = addressStart;
+        while (addressEnd < proxyUri.length() && "/?#".indexOf(proxyUri.charAt(addressEnd)) < 0) {
+            addressEnd++;
+        }
+        return addressEnd;
+    }
+
+    private static int getResourceEnd(String proxyUri, int addressEnd) {
+        for (int i = addressEnd; i < proxyUri.length(); i++) {
+            char c = proxyUri.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
             }
         }
+        return proxyUri.length();
+    }
+
+    private static long getRouteKey(String proxyUri, int addressEnd, long addressKey) {
+        int resourceEnd = getResourceEnd(proxyUri, addressEnd);
+        return addressEnd < resourceEnd ? hash(proxyUri, addressEnd, resourceEnd, addressKey) : hash("/", 0, 1, addressKey);
+    }
+
+    /**
+     * Hashes the characters of a range to 64 bits, after FNV-1a.
+     */
+    private static long hash(String string, int start, int end, long seed) {
+        long hash = 0xCBF29CE484222325L ^ seed;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ string.charAt(i)) * 0x100000001B3L;
+        }
+        return hash ^ (hash >>> 32);
+    }
+
+    private static String getAddress(String proxyUri) {
+        int addressStart = getAddressStart(proxyUri);
+        return ADDRESS_INTERNER.intern(proxyUri.substring(addressStart, getAddressEnd(proxyUri, addressStart)));
+    }
+
+    private static RouteStats newRouteStats(String proxyUri) {
+        int addressStart = getAddressStart(proxyUri);
+        int addressEnd = getAddressEnd(proxyUri, addressStart);
+        int resourceEnd = getResourceEnd(proxyUri, addressEnd);
+        String address = ADDRESS_INTERNER.intern(proxyUri.substring(addressStart, addressEnd));
+        String resource = addressEnd < resourceEnd ? proxyUri.substring(addressEnd, resourceEnd) : "/";
+        return new RouteStats(address, resource, PERIOD_SECONDS, TimeUnit.SECONDS);
     }
 
     /**
@@ -103,53 +294,210 @@ public class StatsResource extends CoapResource {
      * @return the statistics as string
      */
     private String getStatString() {
+        List<HeavyHitters.Entry<String>> topAddresses = addresses.getTop();
+        List<HeavyHitters.Entry<RouteStats>> topRoutes = routes.getTop();
+        if (topRoutes.isEmpty()) {
+            return "The proxy has not received any request, yet.";
+        }
+
         StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Served %d requests; the counts below may exceed the true ones by the error shown\n",
+                addresses.getTotal()));
+        builder.append(String.format("Top %d addresses:\n", addresses.getCapacity()));
+        builder.append("＿\n");
+        for (HeavyHitters.Entry<String> address : topAddresses) {
+            builder.append(String.format("|- %s: %d requests (±%d)\n", address.getValue(), address.getCount(), address.getError()));
+        }
+        builder.append("￣\n");
 
-        builder.append(String.format("Served %d addresses and %d resources\n", statsTable.rowKeySet().size(), statsTable.cellSet().size()));
+        builder.append(String.format("Top %d resources:\n", routes.getCapacity()));
         builder.append("＿\n");
-        // iterate over every row (addresses)
-        for (String address : statsTable.rowKeySet()) {
-            builder.append(String.format("|- %s\n", address));
-            builder.append("|\t ＿\n");
-            // iterate over every column for a specific address
-            for (String resource : statsTable.row(address).keySet()) {
-                builder.append(String.format("|\t |- %s: \n", resource));
-
-                // get the statistics
-                StatHelper statHelper = statsTable.get(address, resource);
-                builder.append(String.format("|\t |------ total requests: %d\n", statHelper.getTotalCount()));
-                builder.append(String.format("|\t |------ total cached replies: %d\n", statHelper.getCachedCount()));
-                // builder.append(String.format("|\t |------ last period (%d sec) requests: %d\n",
-                // PERIOD_SECONDS, statHelper.getLastPeriodCount()));
-                // builder.append(String.format("|\t |------ last period (%d sec) avg delay (nanosec): %d\n",
-                // PERIOD_SECONDS, statHelper.getLastPeriodAvgDelay()));
-                builder.append("|\t |\n");
+        for (HeavyHitters.Entry<RouteStats> route : topRoutes) {
+            RouteStats routeStats = route.getValue();
+            LatencyHistogram roundTripTimes = routeStats.getRoundTripTimes();
+            builder.append(String.format("|- %s%s: %d requests (±%d)\n", routeStats.getAddress(), routeStats.getResource(),
+                    route.getCount(), route.getError()));
+            builder.append(String.format("|\t |------ requests since tracked: %d\n", routeStats.getRequestCount()));
+            builder.append(String.format("|\t |------ cached replies since tracked: %d\n", routeStats.getCachedCount()));
+            builder.append(String.format("|\t |------ last period (%d sec) requests: %d\n",
+                    PERIOD_SECONDS, routeStats.getLastPeriodCount()));
+            builder.append(String.format("|\t |------ last period (%d sec) avg delay (nanosec): %d\n",
+                    PERIOD_SECONDS, routeStats.getLastPeriodAvgRoundTripTime()));
+            if (roundTripTimes.getCount() > 0) {
+                builder.append(String.format("|\t |------ round-trip time p50/p90/p99 (microsec): <=%s/<=%s/<=%s\n",
+                        toMicros(roundTripTimes.getPercentile(50)), toMicros(roundTripTimes.getPercentile(90)),
+                        toMicros(roundTripTimes.getPercentile(99))));
+            }
+            for (Map.Entry<ResponseCode, Long> code : routeStats.getResponseCodes().entrySet()) {
+                builder.append(String.format("|\t |------ %s responses: %d\n", code.getKey(), code.getValue()));
             }
-            builder.append("|\t ￣\n");
             builder.append("|\n");
         }
         builder.append("￣\n");
 
-        return builder.length() == 0 ? "The proxy has not received any request, yet." : builder.toString();
+        return builder.toString();
     }
 
-    private static final class CacheStatResource extends CoapResource {
-        private CacheStats relativeCacheStats;
+    /**
+     * Takes a snapshot of the statistics gathered, one section per tracked
+     * address and route.
+     */
+    private StatsSnapshot getStatSnapshot() {
+        StatsSnapshot snapshot = new StatsSnapshot();
+        for (HeavyHitters.Entry<String> address : addresses.getTop()) {
+            String section = "address/" + address.getValue();
+            snapshot.put(section, "requests", address.getCount());
+            snapshot.put(section, "error", address.getError());
+        }
+        for (HeavyHitters.Entry<RouteStats> route : routes.getTop()) {
+            RouteStats routeStats = route.getValue();
+            LatencyHistogram roundTripTimes = routeStats.getRoundTripTimes();
+            String section = "route/" + routeStats.getAddress() + routeStats.getResource();
+            snapshot.put(section, "requests", route.getCount());
+            snapshot.put(section, "error", route.getError());
+            snapshot.put(section, "tracked_requests", routeStats.getRequestCount());
+            snapshot.put(section, "cached", routeStats.getCachedCount());
+            snapshot.put(section, "last_period_requests", routeStats.getLastPeriodCount());
+            snapshot.put(section, "last_period_avg_rtt_nanos", routeStats.getLastPeriodAvgRoundTripTime());
+            if (roundTripTimes.getCount() > 0) {
+                snapshot.put(section, "rtt_p50_nanos", roundTripTimes.getPercentile(50));
+                snapshot.put(section, "rtt_p90_nanos", roundTripTimes.getPercentile(90));
+                snapshot.put(section, "rtt_p99_nanos", roundTripTimes.getPercentile(99));
+            }
+            for (Map.Entry<ResponseCode, Long> code : routeStats.getResponseCodes().entrySet()) {
+                snapshot.put(section, "responses_" + code.getKey(), code.getValue());
+            }
+        }
+        return snapshot;
+    }
+
+    private static String toMicros(long nanos) {
+        return nanos == Long.MAX_VALUE ? "inf" : String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * A statistics resource shown as text, or as CBOR or JSON by the Accept
+     * option, which can be observed. Every notification interval, observers
+     * of CBOR or JSON are notified of the values that changed since the last
+     * notification, numbered so that they can tell if they missed one and
+     * should get the resource again.
+     */
+    private abstract static class ObservableStatResource extends CoapResource {
+
+        // the last snapshot notified, and the delta from the one before
+        private StatsSnapshot notified;
+        private StatsSnapshot delta;
+        private boolean deltaFull;
+        private long sequence;
+        private int sinceFull;
+        private boolean fullNext;
+
+        public ObservableStatResource(String resourceIdentifier) {
+            super(resourceIdentifier);
+            setObservable(true);
+            setObserveType(Type.NON);
+            getAttributes().setObservable();
+        }
+
+        /**
+         * @return the statistics as text, with the available commands
+         */
+        protected abstract String getText();
+
+        protected abstract StatsSnapshot getSnapshot();
+
+        /**
+         * Notifies the observers if any statistic changed since the last
+         * notification.
+         */
+        public void notifyChanges() {
+            try {
+                synchronized (this) {
+                    if (getObserverCount() == 0) {
+                        notified = null;
+                        return;
+                    }
+                    StatsSnapshot current = getSnapshot();
+                    boolean full = fullNext || notified == null || ++sinceFull >= FULL_NOTIFICATION_EVERY;
+                    StatsSnapshot next = full ? current : current.deltaFrom(notified);
+                    if (next.isEmpty()) {
+                        return;
+                    }
+                    notified = current;
+                    delta = next;
+                    deltaFull = full;
+                    sequence++;
+                    fullNext = false;
+                    if (full) {
+                        sinceFull = 0;
+                    }
+                }
+                changed();
+            } catch (RuntimeException e) {
+                // keep the schedule alive
+                LOGGER.warning("Cannot notify the observers of " + getName() + ": " + e);
+            }
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            int accept = exchange.getRequestOptions().getAccept();
+            if (accept == CustomMediaTypeRegistry.UNDEFINED || accept == CustomMediaTypeRegistry.TEXT_PLAIN) {
+                Response response = new Response(ResponseCode.CONTENT);
+                response.setPayload(getText());
+                response.getOptions().setContentFormat(CustomMediaTypeRegistry.TEXT_PLAIN);
+                exchange.respond(response);
+                return;
+            }
+
+            StructuredWriter writer;
+            if (accept == CustomMediaTypeRegistry.APPLICATION_CBOR) {
+                writer = new CborWriter();
+            } else if (accept == CustomMediaTypeRegistry.APPLICATION_JSON) {
+                writer = new JsonWriter();
+            } else {
+                exchange.respond(ResponseCode.NOT_ACCEPTABLE);
+                return;
+            }
+
+            ObserveRelation relation = exchange.advanced().getRelation();
+            synchronized (this) {
+                if (relation != null && relation.isEstablished() && delta != null) {
+                    delta.write(writer, sequence, deltaFull);
+                } else {
+                    if (relation != null) {
+                        // the next delta must apply to what this observer gets
+                        fullNext = true;
+                    }
+                    getSnapshot().write(writer, sequence, true);
+                }
+            }
+
+            Response response = new Response(ResponseCode.CONTENT);
+            response.setPayload(writer.toByteArray());
+            response.getOptions().setContentFormat(writer.getContentFormat());
+            exchange.respond(response);
+        }
+    }
+
+    private static final class CacheStatResource extends ObservableStatResource {
+        private volatile CacheStats relativeCacheStats;
         private final CacheResource cacheResource;
 
-        private static final long DEFAULT_LOGGING_DELAY = 5;
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        private final MetricsJournal journal;
 
         /**
          * Instantiates a new debug resource.
          *
          * @param resourceIdentifier the resource identifier
          * @param cacheResource
+         * @param journal            the journal started and stopped by POST
          */
-        public CacheStatResource(String resourceIdentifier, CacheResource cacheResource) {
+        public CacheStatResource(String resourceIdentifier, CacheResource cacheResource, MetricsJournal journal) {
             super(resourceIdentifier);
 
             this.cacheResource = cacheResource;
+            this.journal = journal;
             relativeCacheStats = cacheResource.getCacheStats();
         }
 
@@ -168,6 +516,19 @@ public class StatsResource extends CoapResource {
             stringBuilder.append(String.format("Average time spent loading new values (nanoseconds): %.3f %n", cacheStats.averageLoadPenalty()));
             stringBuilder.append(String.format("Number of cache evictions: %d %n", cacheStats.evictionCount()));
 
+            if (cacheResource instanceof ProxyCacheResource) {
+                ProxyCacheResource proxyCache = (ProxyCacheResource) cacheResource;
+                List<PartitionedCacheEngine.PartitionStats> partitions = proxyCache.getPartitionStats();
+                if (!partitions.isEmpty()) {
+                    stringBuilder.append(String.format("%nPartitions (overflow pool: %d values):%n", proxyCache.getOverflowSize()));
+                    for (PartitionedCacheEngine.PartitionStats partition : partitions) {
+                        stringBuilder.append(String.format("|- %s: %d/%d values, hits ratio %d/%d - %.3f, %d overflowed %n",
+                                partition.getName(), partition.getSize(), partition.getQuota(), partition.getHitCount(),
+                                partition.getMissCount(), partition.getHitRate(), partition.getOverflowCount()));
+                    }
+                }
+            }
+
             return stringBuilder.toString();
         }
 
@@ -179,58 +540,62 @@ public class StatsResource extends CoapResource {
         }
 
         @Override
-        public void handleGET(CoapExchange exchange) {
-            String payload = "Available commands:\n - GET: show statistics\n - POST write stats to file\n - DELETE: reset statistics\n\n";
+        protected String getText() {
+            String payload = "Available commands:\n - GET: show statistics, as text, CBOR or JSON by Accept; observable\n - POST: start/stop the metrics journal\n - DELETE: reset statistics\n\n";
             payload += getStats();
-            Response response = new Response(ResponseCode.CONTENT);
-            response.setPayload(payload);
-            response.getOptions().setContentFormat(CustomMediaTypeRegistry.TEXT_PLAIN);
-            exchange.respond(response);
+            payload += String.format("%nMetrics journal: %s%n", journal.isStarted() ? "started" : "stopped");
+            return payload;
         }
 
         @Override
-        public void handlePOST(CoapExchange exchange) {
-            // TODO include stopping the writing => make something for the whole
-            // proxy
-            // executor.shutdown();
-            // request.respond(CodeRegistry.RESP_DELETED, "Stopped",
-            // CustomMediaTypeRegistry.TEXT_PLAIN);
-
-            // starting to log the stats on a new file
-
-            // create the new file
-            String logName = System.nanoTime() + CACHE_LOG_NAME;
-            final File cacheLog = new File(logName);
-            try {
-                cacheLog.createNewFile();
-
-                // write the header
-                com.google.common.io.Files.write("hits%, avg. load, #evictions \n", cacheLog, Charset.defaultCharset());
-            } catch (IOException e) {
+        protected StatsSnapshot getSnapshot() {
+            StatsSnapshot snapshot = new StatsSnapshot();
+            CacheStats cacheStats = cacheResource.getCacheStats().minus(relativeCacheStats);
+            snapshot.put("cache", "requests", cacheStats.requestCount());
+            snapshot.put("cache", "hits", cacheStats.hitCount());
+            snapshot.put("cache", "misses", cacheStats.missCount());
+            snapshot.put("cache", "hit_ratio", cacheStats.hitRate());
+            snapshot.put("cache", "inserts", cacheStats.loadSuccessCount());
+            snapshot.put("cache", "evictions", cacheStats.evictionCount());
+            snapshot.put("cache", "load_penalty_nanos", cacheStats.averageLoadPenalty());
+
+            if (cacheResource instanceof ProxyCacheResource) {
+                ProxyCacheResource proxyCache = (ProxyCacheResource) cacheResource;
+                List<PartitionedCacheEngine.PartitionStats> partitions = proxyCache.getPartitionStats();
+                if (!partitions.isEmpty()) {
+                    snapshot.put("cache", "overflow_size", proxyCache.getOverflowSize());
+                }
+                for (PartitionedCacheEngine.PartitionStats partition : partitions) {
+                    String section = "partition/" + partition.getName();
+                    snapshot.put(section, "size", partition.getSize());
+                    snapshot.put(section, "quota", partition.getQuota());
+                    snapshot.put(section, "hits", partition.getHitCount());
+                    snapshot.put(section, "misses", partition.getMissCount());
+                    snapshot.put(section, "overflowed", partition.getOverflowCount());
+                }
             }
+            return snapshot;
+        }
 
-            executor.scheduleWithFixedDelay(new Runnable() {
-
-                @Override
-                public void run() {
-                    CacheStats cacheStats = cacheResource.getCacheStats().minus(relativeCacheStats);
-
-                    String csvStats = String.format("%.3f, %.3f, %d %n", cacheStats.hitRate(), cacheStats.averageLoadPenalty(), cacheStats.evictionCount());
-                    try {
-                        com.google.common.io.Files.append(csvStats, cacheLog, Charset.defaultCharset());
-                    } catch (IOException e) {
-                    }
-                }
-            }, 0, DEFAULT_LOGGING_DELAY, TimeUnit.SECONDS);
+        @Override
+        public void handlePOST(CoapExchange exchange) {
+            String content;
+            if (journal.isStarted()) {
+                journal.stop();
+                content = "Stopped journal";
+            } else {
+                journal.start();
+                content = "Started journal in " + journal.getDirectory().getAbsolutePath();
+            }
 
-            Response response = new Response(ResponseCode.CREATED);
-            response.setPayload("Creted log: " + logName);
+            Response response = new Response(ResponseCode.CHANGED);
+            response.setPayload(content);
             response.getOptions().setContentFormat(CustomMediaTypeRegistry.TEXT_PLAIN);
             exchange.respond(response);
         }
     }
 
-    private final class ProxyStatResource extends CoapResource {
+    private final class ProxyStatResource extends ObservableStatResource {
 
         public ProxyStatResource(String resourceIdentifier) {
             super(resourceIdentifier);
@@ -239,53 +604,22 @@ public class StatsResource extends CoapResource {
         @Override
         public void handleDELETE(CoapExchange exchange) {
             // reset all the statistics
-            statsTable.clear();
+            addresses.clear();
+            routes.clear();
             exchange.respond(ResponseCode.DELETED);
         }
 
         @Override
-        public void handleGET(CoapExchange exchange) {
-            String payload = "Available commands:\n - GET: show statistics\n - POST write stats to file\n - DELETE: reset statistics\n\n";
+        protected String getText() {
+            String payload = "Available commands:\n - GET: show statistics, as text, CBOR or JSON by Accept; observable\n - DELETE: reset statistics\n\n";
             payload += getStatString();
-            Response response = new Response(ResponseCode.CONTENT);
-            response.setPayload(payload);
-            response.getOptions().setContentFormat(CustomMediaTypeRegistry.TEXT_PLAIN);
-            exchange.respond(response);
-        }
-
-    }
-
-    /**
-     * The Class StatisticsHelper.
-     */
-    private static class StatHelper {
-        private int totalCount = 0;
-        private int cachedCount = 0;
-
-        public int getCachedCount() {
-            return cachedCount;
+            return payload;
         }
 
-        /**
-         * @return the totalCount
-         */
-        public int getTotalCount() {
-            return totalCount;
+        @Override
+        protected StatsSnapshot getSnapshot() {
+            return getStatSnapshot();
         }
 
-        public void increment(boolean cachedResponse) {
-            // add the total request counter
-            totalCount++;
-            if (cachedResponse) {
-                cachedCount++;
-            }
-
-            // add the new request's timestamp to the list
-            // long currentTimestamp = System.nanoTime();
-            // lastPeriodTimestamps.add(currentTimestamp);
-
-            // clean the list by the old entries
-            // cleanTimestamps(currentTimestamp);
-        }
     }
 }
@@ -0,0 +1,128 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import no.ntnu.coap.gateway.proxy.CustomMediaTypeRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CBOR (RFC 7049). Maps and arrays are of indefinite length, so that
+ * their entries need not be counted up front; integers take the smallest
+ * encoding of their value.
+ */
+public final class CborWriter extends StructuredWriter {
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1 << 5;
+    private static final int TEXT = 3 << 5;
+    private static final int INDEFINITE_ARRAY = 0x9F;
+    private static final int INDEFINITE_MAP = 0xBF;
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int DOUBLE = 0xFB;
+    private static final int BREAK = 0xFF;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+    @Override
+    public CborWriter startMap() {
+        out.write(INDEFINITE_MAP);
+        return this;
+    }
+
+    @Override
+    public CborWriter endMap() {
+        out.write(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborWriter startArray() {
+        out.write(INDEFINITE_ARRAY);
+        return this;
+    }
+
+    @Override
+    public CborWriter endArray() {
+        out.write(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborWriter key(String key) {
+        return value(key);
+    }
+
+    @Override
+    public CborWriter value(long value) {
+        if (value >= 0) {
+            writeHead(UNSIGNED, value);
+        } else {
+            writeHead(NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    @Override
+    public CborWriter value(double value) {
+        out.write(DOUBLE);
+        writeBytes(Double.doubleToLongBits(value), 8);
+        return this;
+    }
+
+    @Override
+    public CborWriter value(boolean value) {
+        out.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public CborWriter value(String value) {
+        if (value == null) {
+            out.write(NULL);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeHead(TEXT, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        return this;
+    }
+
+    @Override
+    public int getContentFormat() {
+        return CustomMediaTypeRegistry.APPLICATION_CBOR;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the initial byte of a major type with its argument.
+     */
+    private void writeHead(int majorType, long argument) {
+        if (argument < 24) {
+            out.write(majorType | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(majorType | 24);
+            writeBytes(argument, 1);
+        } else if (argument < 0x10000) {
+            out.write(majorType | 25);
+            writeBytes(argument, 2);
+        } else if (argument < 0x100000000L) {
+            out.write(majorType | 26);
+            writeBytes(argument, 4);
+        } else {
+            out.write(majorType | 27);
+            writeBytes(argument, 8);
+        }
+    }
+
+    private void writeBytes(long value, int length) {
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count-Min sketch estimating how often each key was counted, in constant
+ * memory. An estimate is never below the true count, and exceeds it by at
+ * most {@link #getErrorBound()} with probability 1 - e^-depth.
+ * <p>
+ * Counting does not lock; each of the depth rows is one atomic increment.
+ */
+public final class CountMinSketch {
+
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L,
+            0xFF51AFD7ED558CCDL, 0xC4CEB9FE1A85EC53L, 0x85EBCA77C2B2AE63L, 0x27D4EB2F165667C5L};
+
+    private final AtomicLongArray counts;
+    private final int depth;
+    private final int widthMask;
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Creates a sketch.
+     *
+     * @param width the counters per row, rounded up to a power of two
+     * @param depth the rows, at most 8
+     */
+    public CountMinSketch(int width, int depth) {
+        if (depth < 1 || depth > SEEDS.length) {
+            throw new IllegalArgumentException("depth must be between 1 and " + SEEDS.length);
+        }
+        int rowWidth = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.counts = new AtomicLongArray(rowWidth * depth);
+        this.depth = depth;
+        this.widthMask = rowWidth - 1;
+    }
+
+    /**
+     * Counts the key once.
+     *
+     * @return the estimate of its count, including this one
+     */
+    public long increment(long key) {
+        total.increment();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts.incrementAndGet(index(key, row)));
+        }
+        return estimate;
+    }
+
+    public long estimate(long key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts.get(index(key, row)));
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the number of keys counted
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * Gets the additive error of the estimates, e / width of the keys
+     * counted, which holds with probability 1 - e^-depth.
+     */
+    public long getErrorBound() {
+        return (long) Math.ceil(Math.E / (widthMask + 1) * total.sum());
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+    }
+
+    private int index(long key, int row) {
+        long hash = (key ^ SEEDS[row]) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 29;
+        return row * (widthMask + 1) + (int) (hash & widthMask);
+    }
+}
@@ -0,0 +1,76 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the messages passing the Californium endpoints it is added to, by
+ * direction and kind. Each request sent or received starts an exchange.
+ */
+public final class ExchangeCounter implements MessageInterceptor {
+
+    private final LongAdder requestsSent = new LongAdder();
+    private final LongAdder responsesSent = new LongAdder();
+    private final LongAdder emptyMessagesSent = new LongAdder();
+    private final LongAdder requestsReceived = new LongAdder();
+    private final LongAdder responsesReceived = new LongAdder();
+    private final LongAdder emptyMessagesReceived = new LongAdder();
+
+    @Override
+    public void sendRequest(Request request) {
+        requestsSent.increment();
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+        responsesSent.increment();
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+        emptyMessagesSent.increment();
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+        requestsReceived.increment();
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+        responsesReceived.increment();
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+        emptyMessagesReceived.increment();
+    }
+
+    public long getRequestsSent() {
+        return requestsSent.sum();
+    }
+
+    public long getResponsesSent() {
+        return responsesSent.sum();
+    }
+
+    public long getEmptyMessagesSent() {
+        return emptyMessagesSent.sum();
+    }
+
+    public long getRequestsReceived() {
+        return requestsReceived.sum();
+    }
+
+    public long getResponsesReceived() {
+        return responsesReceived.sum();
+    }
+
+    public long getEmptyMessagesReceived() {
+        return emptyMessagesReceived.sum();
+    }
+}
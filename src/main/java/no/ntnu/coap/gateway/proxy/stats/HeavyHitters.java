@@ -0,0 +1,185 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Tracks the most frequent keys of a stream in constant memory, after the
+ * Space-Saving algorithm: at most a fixed number of keys are tracked, each
+ * with its count and a value, and a key seen often enough replaces the
+ * tracked key with the lowest count.
+ * <p>
+ * Every key is also counted in a {@link CountMinSketch}, which decides if an
+ * untracked key is frequent enough to replace one, and gives the count it
+ * starts from. That count may overestimate the true one by the error of the
+ * entry; the counting after that is exact.
+ * <p>
+ * Counting a tracked key does not lock. Only keys passing the sketch take a
+ * lock to replace the least frequent one.
+ *
+ * @param <V> the type of the values kept with the tracked keys
+ */
+public final class HeavyHitters<V> {
+
+    private final int capacity;
+    private final CountMinSketch sketch;
+    private final ConcurrentMap<Long, Entry<V>> tracked;
+
+    /**
+     * The lowest count of the tracked keys when they were last compared;
+     * only untracked keys estimated above it try to replace one.
+     */
+    private volatile long threshold;
+
+    /**
+     * Creates a tracker.
+     *
+     * @param capacity the number of keys tracked
+     */
+    public HeavyHitters(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.sketch = new CountMinSketch(this.capacity * 16, 4);
+        this.tracked = new ConcurrentHashMap<Long, Entry<V>>(this.capacity * 2);
+    }
+
+    /**
+     * Counts the key once.
+     *
+     * @param context the argument of the factory
+     * @param factory creates the value of the key if it gets tracked
+     * @return the entry of the key, or null if it is not tracked
+     */
+    public <T> Entry<V> record(long key, T context, Function<? super T, ? extends V> factory) {
+        long estimate = sketch.increment(key);
+        Entry<V> entry = tracked.get(key);
+        if (entry != null) {
+            entry.count.increment();
+            return entry;
+        }
+        if (estimate <= threshold && tracked.size() >= capacity) {
+            return null;
+        }
+        return admit(key, estimate, context, factory);
+    }
+
+    /**
+     * Gets the entry of a key without counting it.
+     *
+     * @return the entry, or null if the key is not tracked
+     */
+    public Entry<V> get(long key) {
+        return tracked.get(key);
+    }
+
+    private synchronized <T> Entry<V> admit(long key, long estimate, T context, Function<? super T, ? extends V> factory) {
+        Entry<V> entry = tracked.get(key);
+        if (entry != null) {
+            entry.count.increment();
+            return entry;
+        }
+
+        if (tracked.size() >= capacity) {
+            // find the least and the second least frequent keys
+            Entry<V> min = null;
+            long minCount = Long.MAX_VALUE;
+            long secondCount = Long.MAX_VALUE;
+            for (Entry<V> candidate : tracked.values()) {
+                long count = candidate.getCount();
+                if (count < minCount) {
+                    secondCount = minCount;
+                    minCount = count;
+                    min = candidate;
+                } else if (count < secondCount) {
+                    secondCount = count;
+                }
+            }
+            if (estimate <= minCount) {
+                threshold = minCount;
+                return null;
+            }
+            tracked.remove(min.key);
+            threshold = Math.min(secondCount, estimate);
+        }
+
+        // the true count is at least one, and at least the estimate less the
+        // error bound of the sketch
+        long error = Math.min(estimate - 1, sketch.getErrorBound());
+        entry = new Entry<V>(key, factory.apply(context), estimate, error);
+        tracked.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Gets the tracked entries, the most frequent first.
+     */
+    public List<Entry<V>> getTop() {
+        List<Entry<V>> entries = new ArrayList<Entry<V>>(tracked.values());
+        // counts are read once, as they keep changing while sorting
+        long[] counts = new long[entries.size()];
+        List<Integer> order = new ArrayList<Integer>(entries.size());
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = entries.get(i).getCount();
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(counts[b], counts[a]));
+        List<Entry<V>> top = new ArrayList<Entry<V>>(entries.size());
+        for (int i : order) {
+            top.add(entries.get(i));
+        }
+        return top;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of keys counted, tracked or not
+     */
+    public long getTotal() {
+        return sketch.getTotal();
+    }
+
+    public synchronized void clear() {
+        tracked.clear();
+        sketch.reset();
+        threshold = 0;
+    }
+
+    /**
+     * A tracked key with its value and count. The true count of the key lies
+     * between the count less the error and the count.
+     */
+    public static final class Entry<V> {
+        private final long key;
+        private final V value;
+        private final LongAdder count = new LongAdder();
+        private final long error;
+
+        private Entry(long key, V value, long count, long error) {
+            this.key = key;
+            this.value = value;
+            this.count.add(count);
+            this.error = error;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return by how much the count may exceed the true count
+         */
+        public long getError() {
+            return error;
+        }
+    }
+}
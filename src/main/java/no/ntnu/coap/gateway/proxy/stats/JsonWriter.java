@@ -0,0 +1,148 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import no.ntnu.coap.gateway.proxy.CustomMediaTypeRegistry;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes compact JSON. Numbers that JSON cannot represent, NaN and the
+ * infinities, are written as null.
+ */
+public final class JsonWriter extends StructuredWriter {
+
+    private final StringBuilder out = new StringBuilder(512);
+
+    // whether the next key or array element follows another one
+    private boolean separate;
+
+    @Override
+    public JsonWriter startMap() {
+        separate();
+        out.append('{');
+        separate = false;
+        return this;
+    }
+
+    @Override
+    public JsonWriter endMap() {
+        out.append('}');
+        separate = true;
+        return this;
+    }
+
+    @Override
+    public JsonWriter startArray() {
+        separate();
+        out.append('[');
+        separate = false;
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() {
+        out.append(']');
+        separate = true;
+        return this;
+    }
+
+    @Override
+    public JsonWriter key(String key) {
+        separate();
+        appendString(key);
+        out.append(':');
+        separate = false;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) {
+        separate();
+        out.append(value);
+        separate = true;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append("null");
+        } else {
+            out.append(value);
+        }
+        separate = true;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) {
+        separate();
+        out.append(value);
+        separate = true;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) {
+        separate();
+        if (value == null) {
+            out.append("null");
+        } else {
+            appendString(value);
+        }
+        separate = true;
+        return this;
+    }
+
+    @Override
+    public int getContentFormat() {
+        return CustomMediaTypeRegistry.APPLICATION_JSON;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private void separate() {
+        if (separate) {
+            out.append(',');
+        }
+    }
+
+    private void appendString(String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,121 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies over fixed buckets, from 100 microseconds to 10
+ * seconds in 1-2.5-5 steps, plus one bucket for the longer ones. Recording
+ * does not lock and threads recording at once do not contend, so it can sit
+ * on the path of every request.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The upper bounds of the buckets, inclusive, in nanoseconds. The last
+     * bucket has no bound.
+     */
+    private static final long[] BOUNDS = {
+            micros(100), micros(250), micros(500),
+            millis(1), millis(2) + micros(500), millis(5),
+            millis(10), millis(25), millis(50),
+            millis(100), millis(250), millis(500),
+            millis(1000), millis(2500), millis(5000),
+            millis(10000)};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Gets the upper bounds of the buckets in nanoseconds, without the last
+     * unbounded one.
+     */
+    public static long[] getBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * Gets the number of latencies of each bucket, the last one counting
+     * those above every bound.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the latencies in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Estimates a percentile by the upper bound of the bucket it falls in.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in nanoseconds, 0 if none was recorded, or
+     * Long.MAX_VALUE if it is above every bound
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+    }
+
+    private static long micros(long micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,228 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Journal of metrics snapshots for long-running trends. At a fixed interval,
+ * a single background thread reads every column and appends one CSV row to
+ * the current journal file through a channel kept open.
+ * <p>
+ * The files form a ring: journal-0.csv to journal-(n-1).csv in a directory,
+ * each starting with a header and growing up to a size limit, after which the
+ * next one is truncated and written, overwriting the oldest snapshots. The
+ * journal never takes more than the number of files times their limit.
+ * <p>
+ * Columns are added before the journal is started.
+ */
+public final class MetricsJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsJournal.class.getName());
+
+    private final File directory;
+    private final long intervalMillis;
+    private final long fileBytes;
+    private final int fileCount;
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<Object> columns = new ArrayList<Object>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // used by the journal thread only
+    private final StringBuilder row = new StringBuilder(512);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private FileChannel channel;
+    private int fileIndex;
+
+    private ScheduledFuture<?> task;
+
+    /**
+     * Creates a journal, not started.
+     *
+     * @param directory the directory of the journal files
+     * @param interval  the time between snapshots
+     * @param unit      the unit of that time
+     * @param fileBytes the size from which a journal file is full
+     * @param fileCount the number of journal files in the ring
+     */
+    public MetricsJournal(File directory, long interval, TimeUnit unit, long fileBytes, int fileCount) {
+        this.directory = directory;
+        this.intervalMillis = Math.max(1, unit.toMillis(interval));
+        this.fileBytes = fileBytes;
+        this.fileCount = Math.max(1, fileCount);
+    }
+
+    public synchronized MetricsJournal addColumn(String name, LongSupplier column) {
+        return add(name, column);
+    }
+
+    public synchronized MetricsJournal addColumn(String name, DoubleSupplier column) {
+        return add(name, column);
+    }
+
+    private MetricsJournal add(String name, Object column) {
+        if (task != null) {
+            throw new IllegalStateException("Journal already started");
+        }
+        names.add(name);
+        columns.add(column);
+        return this;
+    }
+
+    /**
+     * Starts taking snapshots, in the file after the one written last.
+     *
+     * @return false if already started
+     */
+    public synchronized boolean start() {
+        if (task != null) {
+            return false;
+        }
+        task = executor.scheduleAtFixedRate(this::snapshot, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Metrics journal started in " + directory.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Stops taking snapshots and closes the current file.
+     *
+     * @return false if not started
+     */
+    public synchronized boolean stop() {
+        if (task == null) {
+            return false;
+        }
+        task.cancel(false);
+        task = null;
+        // closed after the snapshot that may be running
+        executor.execute(this::close);
+        LOGGER.info("Metrics journal stopped");
+        return true;
+    }
+
+    public synchronized boolean isStarted() {
+        return task != null;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the file of the ring with the given index.
+     */
+    public File getFile(int index) {
+        return new File(directory, "journal-" + index + ".csv");
+    }
+
+    private void snapshot() {
+        try {
+            if (channel == null) {
+                open(nextIndex());
+            } else if (channel.size() >= fileBytes) {
+                close();
+                open((fileIndex + 1) % fileCount);
+            }
+
+            row.setLength(0);
+            row.append(System.currentTimeMillis());
+            for (Object column : columns) {
+                row.append(',');
+                if (column instanceof LongSupplier) {
+                    row.append(((LongSupplier) column).getAsLong());
+                } else {
+                    row.append(((DoubleSupplier) column).getAsDouble());
+                }
+            }
+            row.append('\n');
+            write(row);
+        } catch (IOException e) {
+            LOGGER.warning("Cannot write the metrics journal: " + e.getMessage());
+            close();
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            LOGGER.warning("Cannot take a metrics snapshot: " + e);
+        }
+    }
+
+    /**
+     * Finds the file after the one written last, as after a restart.
+     */
+    private int nextIndex() {
+        int newest = -1;
+        long newestModified = Long.MIN_VALUE;
+        for (int i = 0; i < fileCount; i++) {
+            File file = getFile(i);
+            if (file.exists() && file.lastModified() > newestModified) {
+                newest = i;
+                newestModified = file.lastModified();
+            }
+        }
+        return (newest + 1) % fileCount;
+    }
+
+    private void open(int index) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        fileIndex = index;
+        channel = FileChannel.open(getFile(index).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        row.setLength(0);
+        row.append("timestamp");
+        for (String name : names) {
+            row.append(',').append(name);
+        }
+        row.append('\n');
+        write(row);
+    }
+
+    private void write(CharSequence text) throws IOException {
+        buffer.clear();
+        encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warning("Cannot close the metrics journal: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
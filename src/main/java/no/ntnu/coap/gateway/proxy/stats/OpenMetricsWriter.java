@@ -0,0 +1,225 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.util.Arrays;
+
+/**
+ * Writes metrics in the OpenMetrics text format, one family after the other,
+ * into a byte buffer that can be reused from one scrape to the next. Text is
+ * encoded to UTF-8 as it is appended, and numbers are appended directly,
+ * without formatting strings.
+ */
+public final class OpenMetricsWriter {
+
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    private byte[] out;
+    private int length;
+
+    // formats the doubles, reused
+    private final StringBuilder number = new StringBuilder(32);
+
+    /**
+     * Creates a writer.
+     *
+     * @param capacity the initial size of the buffer, which grows as needed
+     */
+    public OpenMetricsWriter(int capacity) {
+        this.out = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Empties the buffer, to write the next exposition.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * @return a copy of the exposition written
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(out, length);
+    }
+
+    public int size() {
+        return length;
+    }
+
+    /**
+     * Starts a family of metrics.
+     *
+     * @param name the name of the family, without the _total suffix of
+     *             counters
+     * @param type counter, gauge or histogram
+     * @param help the description of the family
+     */
+    public OpenMetricsWriter family(String name, String type, String help) {
+        append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        append("# HELP ").append(name).append(' ').append(help).append('\n');
+        return this;
+    }
+
+    /**
+     * Starts a sample, to be followed by its labels, if any, and its value.
+     */
+    public OpenMetricsWriter sample(String name) {
+        append(name);
+        return this;
+    }
+
+    /**
+     * Starts a sample with a suffix, such as _total or _bucket.
+     */
+    public OpenMetricsWriter sample(String name, String suffix) {
+        append(name).append(suffix);
+        return this;
+    }
+
+    /**
+     * Adds a label to the sample started last; the labels are closed by the
+     * value.
+     */
+    public OpenMetricsWriter label(String name, String value) {
+        append(out[length - 1] == '"' ? ',' : '{').append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    append("\\\\");
+                    break;
+                case '"':
+                    append("\\\"");
+                    break;
+                case '\n':
+                    append("\\n");
+                    break;
+                default:
+                    if (c < 0x80) {
+                        append(c);
+                    } else {
+                        appendUtf8(value, i);
+                        if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                                && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            i++;
+                        }
+                    }
+            }
+        }
+        append('"');
+        return this;
+    }
+
+    public void value(long value) {
+        closeLabels();
+        append(' ');
+        appendLong(value);
+        append('\n');
+    }
+
+    public void value(double value) {
+        closeLabels();
+        append(' ');
+        if (Double.isNaN(value)) {
+            append("NaN");
+        } else if (Double.isInfinite(value)) {
+            append(value > 0 ? "+Inf" : "-Inf");
+        } else {
+            number.setLength(0);
+            number.append(value);
+            for (int i = 0; i < number.length(); i++) {
+                append(number.charAt(i));
+            }
+        }
+        append('\n');
+    }
+
+    /**
+     * Ends the exposition.
+     */
+    public void eof() {
+        append("# EOF\n");
+    }
+
+    private void closeLabels() {
+        if (out[length - 1] == '"') {
+            append('}');
+        }
+    }
+
+    /**
+     * Appends text whose characters are all ASCII, as are the names, types
+     * and descriptions of the metrics.
+     */
+    private OpenMetricsWriter append(String ascii) {
+        ensureCapacity(ascii.length());
+        for (int i = 0; i < ascii.length(); i++) {
+            out[length++] = (byte) ascii.charAt(i);
+        }
+        return this;
+    }
+
+    private OpenMetricsWriter append(char ascii) {
+        ensureCapacity(1);
+        out[length++] = (byte) ascii;
+        return this;
+    }
+
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            ensureCapacity(MIN_LONG.length);
+            System.arraycopy(MIN_LONG, 0, out, length, MIN_LONG.length);
+            length += MIN_LONG.length;
+            return;
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Appends the character at the index, or the pair of surrogates starting
+     * there, as UTF-8.
+     */
+    private void appendUtf8(String value, int index) {
+        int codePoint = value.codePointAt(index);
+        if (Character.isSurrogate((char) codePoint)) {
+            // unpaired
+            codePoint = '?';
+        }
+        ensureCapacity(4);
+        if (codePoint < 0x80) {
+            out[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            out[length++] = (byte) (0xC0 | codePoint >> 6);
+            out[length++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            out[length++] = (byte) (0xE0 | codePoint >> 12);
+            out[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            out[length++] = (byte) (0x80 | codePoint & 0x3F);
+        } else {
+            out[length++] = (byte) (0xF0 | codePoint >> 18);
+            out[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            out[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            out[length++] = (byte) (0x80 | codePoint & 0x3F);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length << 1, length + extra));
+        }
+    }
+}
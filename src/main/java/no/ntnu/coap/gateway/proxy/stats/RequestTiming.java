@@ -0,0 +1,199 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.MessageObserver;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * The time a proxied request spent in each stage of its handling, measured
+ * with {@link System#nanoTime()} from the moment the request was received.
+ * <p>
+ * The timing travels with the CoAP request the HTTP request is translated to,
+ * as one of its message observers, so that the stages down to the upstream
+ * exchange can find it with {@link #of(Message)}. The stages are recorded
+ * one after the other by the threads handling the request in turn; a stage
+ * passed more than once adds up.
+ */
+public final class RequestTiming implements MessageObserver {
+
+    /**
+     * The stages of a request, in their order.
+     */
+    public enum Stage {
+        /** translating the HTTP request to CoAP */
+        TRANSLATE("translate"),
+        /** looking up the response in the caches */
+        CACHE("cache"),
+        /** from forwarding the request to getting its response, coalescing and queueing included */
+        FORWARD("forward"),
+        /** from sending the request upstream to its acknowledgement */
+        ACK("ack"),
+        /** from sending the request upstream to its response */
+        UPSTREAM("upstream"),
+        /** translating the CoAP response to HTTP */
+        RESPOND("respond"),
+        /** from receiving the request to submitting the response */
+        TOTAL("total");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the name of the stage in headers and metrics
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final long start = System.nanoTime();
+    private final long[] durations = new long[STAGES.length];
+    private int recorded;
+    private int retransmissions;
+    private boolean timedOut;
+
+    /**
+     * Finds the timing of a request.
+     *
+     * @return the timing, or null if the request is not timed
+     */
+    public static RequestTiming of(Message request) {
+        for (MessageObserver observer : request.getMessageObservers()) {
+            if (observer instanceof RequestTiming) {
+                return (RequestTiming) observer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attaches the timing to the request it is translated to.
+     */
+    public void attachTo(Message request) {
+        request.addMessageObserver(this);
+    }
+
+    /**
+     * Adds the time since the given start to a stage.
+     *
+     * @param stageStart the start of the stage, from {@link System#nanoTime()}
+     */
+    public void record(Stage stage, long stageStart) {
+        durations[stage.ordinal()] += System.nanoTime() - stageStart;
+        recorded |= 1 << stage.ordinal();
+    }
+
+    /**
+     * Records the total time, when the response is submitted.
+     */
+    public void finish() {
+        record(Stage.TOTAL, start);
+    }
+
+    public boolean isRecorded(Stage stage) {
+        return (recorded & 1 << stage.ordinal()) != 0;
+    }
+
+    /**
+     * @return the time spent in the stage in nanoseconds, 0 if not recorded
+     */
+    public long getDuration(Stage stage) {
+        return durations[stage.ordinal()];
+    }
+
+    public void retransmitted() {
+        retransmissions++;
+    }
+
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    public void timedOut() {
+        timedOut = true;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Formats the stages recorded as the value of a Server-Timing header, the
+     * durations in milliseconds.
+     */
+    public String toServerTiming() {
+        StringBuilder builder = new StringBuilder(128);
+        for (Stage stage : STAGES) {
+            if (isRecorded(stage)) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(stage.getLabel()).append(";dur=");
+                appendMillis(builder, durations[stage.ordinal()]);
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(128);
+        for (Stage stage : STAGES) {
+            if (isRecorded(stage)) {
+                builder.append(stage.getLabel()).append('=');
+                appendMillis(builder, durations[stage.ordinal()]);
+                builder.append("ms ");
+            }
+        }
+        builder.append("retransmissions=").append(retransmissions);
+        if (timedOut) {
+            builder.append(" timed out");
+        }
+        return builder.toString();
+    }
+
+    private static void appendMillis(StringBuilder builder, long nanos) {
+        // three decimals, without formatting strings
+        long micros = nanos / 1000;
+        builder.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            builder.append('0');
+        }
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
+    // the timing is carried by the request, not notified by it
+
+    @Override
+    public void onRetransmission() {
+    }
+
+    @Override
+    public void onResponse(Response response) {
+    }
+
+    @Override
+    public void onAcknowledgement() {
+    }
+
+    @Override
+    public void onReject() {
+    }
+
+    @Override
+    public void onTimeout() {
+    }
+
+    @Override
+    public void onCancel() {
+    }
+}
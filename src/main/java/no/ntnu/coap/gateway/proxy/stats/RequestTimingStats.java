@@ -0,0 +1,86 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Gathers the timings of the proxied requests once they are answered: a
+ * histogram of the time spent in each stage, the retransmissions upstream,
+ * and a log of the requests slower than a threshold with the time of each
+ * of their stages.
+ */
+public final class RequestTimingStats {
+
+    /**
+     * The log of the slow requests, which can be routed to its own handler.
+     */
+    private static final Logger SLOW_LOGGER = Logger.getLogger(RequestTimingStats.class.getName() + ".slow");
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[RequestTiming.Stage.values().length];
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder slowCount = new LongAdder();
+    private final long slowThresholdNanos;
+    private final boolean serverTiming;
+
+    /**
+     * Creates the statistics.
+     *
+     * @param slowThreshold the time from which a request is logged as slow,
+     *                      0 to log none
+     * @param unit          the unit of that time
+     * @param serverTiming  whether the responses tell their timing in a
+     *                      Server-Timing header
+     */
+    public RequestTimingStats(long slowThreshold, TimeUnit unit, boolean serverTiming) {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+        this.slowThresholdNanos = slowThreshold > 0 ? unit.toNanos(slowThreshold) : Long.MAX_VALUE;
+        this.serverTiming = serverTiming;
+    }
+
+    /**
+     * Records the timing of a request once answered.
+     *
+     * @param description the method and URI of the request, for the log
+     */
+    public void record(RequestTiming timing, String description) {
+        for (RequestTiming.Stage stage : RequestTiming.Stage.values()) {
+            if (timing.isRecorded(stage)) {
+                stages[stage.ordinal()].record(timing.getDuration(stage));
+            }
+        }
+        if (timing.getRetransmissions() > 0) {
+            retransmissions.add(timing.getRetransmissions());
+        }
+        if (timing.isTimedOut()) {
+            timeouts.increment();
+        }
+        if (timing.getDuration(RequestTiming.Stage.TOTAL) >= slowThresholdNanos) {
+            slowCount.increment();
+            SLOW_LOGGER.warning("Slow request " + description + ": " + timing);
+        }
+    }
+
+    public boolean isServerTimingEnabled() {
+        return serverTiming;
+    }
+
+    public LatencyHistogram getHistogram(RequestTiming.Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public long getRetransmissionCount() {
+        return retransmissions.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getSlowCount() {
+        return slowCount.sum();
+    }
+}
@@ -0,0 +1,112 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count and sum of the values recorded within the last period, such as the
+ * requests of the last minute and their delays. The period is split into
+ * time buckets reused in a ring: a bucket is replaced by an empty one when
+ * its time comes round again, so old values leave the window a bucket at a
+ * time and nothing is kept per value.
+ */
+public final class RollingWindow {
+
+    private final AtomicReferenceArray<Bucket> buckets;
+    private final long bucketNanos;
+
+    /**
+     * Creates a window.
+     *
+     * @param period      the length of the window
+     * @param bucketCount the number of buckets the window is split into
+     * @param unit        the unit of the period
+     */
+    public RollingWindow(long period, int bucketCount, TimeUnit unit) {
+        this.buckets = new AtomicReferenceArray<Bucket>(bucketCount);
+        this.bucketNanos = Math.max(1, unit.toNanos(period) / bucketCount);
+    }
+
+    public void record(long value) {
+        bucket(System.nanoTime() / bucketNanos).add(value);
+    }
+
+    /**
+     * @return the number of values recorded within the period
+     */
+    public long getCount() {
+        long count = 0;
+        long oldest = oldestEpoch();
+        for (int i = 0; i < buckets.length(); i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.epoch >= oldest) {
+                count += bucket.count.sum();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the values recorded within the period
+     */
+    public long getSum() {
+        long sum = 0;
+        long oldest = oldestEpoch();
+        for (int i = 0; i < buckets.length(); i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.epoch >= oldest) {
+                sum += bucket.sum.sum();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the average of the values recorded within the period, 0 if none
+     */
+    public long getAverage() {
+        long count = getCount();
+        return count == 0 ? 0 : getSum() / count;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, null);
+        }
+    }
+
+    private long oldestEpoch() {
+        return System.nanoTime() / bucketNanos - buckets.length() + 1;
+    }
+
+    private Bucket bucket(long epoch) {
+        int index = (int) Math.floorMod(epoch, (long) buckets.length());
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            if (bucket != null && bucket.epoch >= epoch) {
+                // a late value of an earlier bucket goes to the current one
+                return bucket;
+            }
+            Bucket fresh = new Bucket(epoch);
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private final long epoch;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        private Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+
+        private void add(long value) {
+            count.increment();
+            sum.add(value);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the requests for one route, i.e. one resource of an
+ * upstream server: how many were answered from the cache, the round-trip
+ * time and response codes of those forwarded upstream, and the requests and
+ * round-trip times of the last period. All counters can be updated from any
+ * thread without locking.
+ */
+public final class RouteStats {
+
+    private final String address;
+    private final String resource;
+
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder cachedCount = new LongAdder();
+    private final LatencyHistogram roundTripTimes = new LatencyHistogram();
+    private final RollingWindow lastPeriodRequests;
+    private final RollingWindow lastPeriodRoundTripTimes;
+
+    // indexed by the code of the response, created on first use
+    private final AtomicReferenceArray<LongAdder> responseCodes = new AtomicReferenceArray<LongAdder>(256);
+
+    /**
+     * Creates the statistics of a route.
+     *
+     * @param address  the authority of the upstream server
+     * @param resource the path of the resource
+     * @param period   the length of the last period, split in one second
+     *                 buckets
+     * @param unit     the unit of the period
+     */
+    public RouteStats(String address, String resource, long period, TimeUnit unit) {
+        this.address = address;
+        this.resource = resource;
+        int buckets = (int) Math.max(1, unit.toSeconds(period));
+        lastPeriodRequests = new RollingWindow(period, buckets, unit);
+        lastPeriodRoundTripTimes = new RollingWindow(period, buckets, unit);
+    }
+
+    /**
+     * Counts a request, answered from the cache or not.
+     */
+    public void recordRequest(boolean cached) {
+        requestCount.increment();
+        if (cached) {
+            cachedCount.increment();
+        }
+        lastPeriodRequests.record(1);
+    }
+
+    /**
+     * Counts a response from upstream with the time it took.
+     */
+    public void recordResponse(ResponseCode code, long roundTripNanos) {
+        roundTripTimes.record(roundTripNanos);
+        lastPeriodRoundTripTimes.record(roundTripNanos);
+
+        int index = code.value & 0xFF;
+        LongAdder count = responseCodes.get(index);
+        if (count == null) {
+            responseCodes.compareAndSet(index, null, new LongAdder());
+            count = responseCodes.get(index);
+        }
+        count.increment();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    public long getCachedCount() {
+        return cachedCount.sum();
+    }
+
+    public long getMissCount() {
+        return Math.max(0, requestCount.sum() - cachedCount.sum());
+    }
+
+    public LatencyHistogram getRoundTripTimes() {
+        return roundTripTimes;
+    }
+
+    /**
+     * @return the number of requests within the last period
+     */
+    public long getLastPeriodCount() {
+        return lastPeriodRequests.getCount();
+    }
+
+    /**
+     * @return the average round-trip time in nanoseconds of the responses of
+     * the last period
+     */
+    public long getLastPeriodAvgRoundTripTime() {
+        return lastPeriodRoundTripTimes.getAverage();
+    }
+
+    /**
+     * Gets the number of responses from upstream per response code, in the
+     * order of the codes.
+     */
+    public Map<ResponseCode, Long> getResponseCodes() {
+        Map<ResponseCode, Long> codes = new LinkedHashMap<ResponseCode, Long>();
+        for (int i = 0; i < responseCodes.length(); i++) {
+            LongAdder count = responseCodes.get(i);
+            if (count != null) {
+                codes.put(ResponseCode.valueOf(i), count.sum());
+            }
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,112 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of a set of statistics at one point in time, as named sections
+ * of named numbers, e.g. the counters of one route.
+ * <p>
+ * A snapshot can be reduced to its delta from an earlier one: the sections
+ * and values that changed, which still hold absolute values, and the
+ * sections that were removed. Applying a delta to any state at least as
+ * recent as the earlier snapshot gives the later one.
+ */
+public final class StatsSnapshot {
+
+    private final Map<String, Map<String, Number>> sections = new LinkedHashMap<String, Map<String, Number>>();
+    private final List<String> removed;
+
+    public StatsSnapshot() {
+        this.removed = Collections.emptyList();
+    }
+
+    private StatsSnapshot(List<String> removed) {
+        this.removed = removed;
+    }
+
+    public StatsSnapshot put(String section, String name, long value) {
+        return add(section, name, value);
+    }
+
+    public StatsSnapshot put(String section, String name, double value) {
+        return add(section, name, value);
+    }
+
+    private StatsSnapshot add(String section, String name, Number value) {
+        Map<String, Number> values = sections.get(section);
+        if (values == null) {
+            values = new LinkedHashMap<String, Number>();
+            sections.put(section, values);
+        }
+        values.put(name, value);
+        return this;
+    }
+
+    /**
+     * Gets the delta of this snapshot from an earlier one.
+     *
+     * @param previous the earlier snapshot, null for none
+     */
+    public StatsSnapshot deltaFrom(StatsSnapshot previous) {
+        if (previous == null) {
+            return this;
+        }
+        List<String> removedSections = new ArrayList<String>();
+        for (String section : previous.sections.keySet()) {
+            if (!sections.containsKey(section)) {
+                removedSections.add(section);
+            }
+        }
+        StatsSnapshot delta = new StatsSnapshot(removedSections);
+        for (Map.Entry<String, Map<String, Number>> section : sections.entrySet()) {
+            Map<String, Number> previousValues = previous.sections.get(section.getKey());
+            for (Map.Entry<String, Number> value : section.getValue().entrySet()) {
+                if (previousValues == null || !value.getValue().equals(previousValues.get(value.getKey()))) {
+                    delta.add(section.getKey(), value.getKey(), value.getValue());
+                }
+            }
+        }
+        return delta;
+    }
+
+    public boolean isEmpty() {
+        return sections.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Writes the snapshot as a map: "seq" the sequence number of the
+     * snapshot, "full" false if it is a delta, "stats" the map of sections
+     * and, if any, "removed" the array of sections removed.
+     */
+    public void write(StructuredWriter writer, long sequence, boolean full) {
+        writer.startMap();
+        writer.key("seq").value(sequence);
+        writer.key("full").value(full);
+        writer.key("stats").startMap();
+        for (Map.Entry<String, Map<String, Number>> section : sections.entrySet()) {
+            writer.key(section.getKey()).startMap();
+            for (Map.Entry<String, Number> value : section.getValue().entrySet()) {
+                writer.key(value.getKey());
+                if (value.getValue() instanceof Double) {
+                    writer.value(value.getValue().doubleValue());
+                } else {
+                    writer.value(value.getValue().longValue());
+                }
+            }
+            writer.endMap();
+        }
+        writer.endMap();
+        if (!removed.isEmpty()) {
+            writer.key("removed").startArray();
+            for (String section : removed) {
+                writer.value(section);
+            }
+            writer.endArray();
+        }
+        writer.endMap();
+    }
+}
@@ -0,0 +1,34 @@
+package no.ntnu.coap.gateway.proxy.stats;
+
+/**
+ * Writes maps, arrays and scalar values in a machine-oriented format, one
+ * after the other. Entries of a map are written as a key followed by its
+ * value.
+ */
+public abstract class StructuredWriter {
+
+    public abstract StructuredWriter startMap();
+
+    public abstract StructuredWriter endMap();
+
+    public abstract StructuredWriter startArray();
+
+    public abstract StructuredWriter endArray();
+
+    public abstract StructuredWriter key(String key);
+
+    public abstract StructuredWriter value(long value);
+
+    public abstract StructuredWriter value(double value);
+
+    public abstract StructuredWriter value(boolean value);
+
+    public abstract StructuredWriter value(String value);
+
+    /**
+     * @return the CoAP content format of the output
+     */
+    public abstract int getContentFormat();
+
+    public abstract byte[] toByteArray();
+}